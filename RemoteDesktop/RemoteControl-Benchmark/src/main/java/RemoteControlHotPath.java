@@ -0,0 +1,117 @@
+import benchmark.HotPath;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * RemoteControlHotPath implements {@link HotPath} with the server's FramePipeline scaling,
+ * BandEncoder and FrameCodecs and the client's FrameDecoder.
+ */
+public class RemoteControlHotPath implements HotPath {
+    private static final int TILE_SIZE = TileEncoder.DEFAULT_TILE_SIZE;
+
+    @Override
+    public Scaler newScaler(int width, int height) {
+        FramePipeline.CaptureSlot slot = new FramePipeline.CaptureSlot(width, height);
+        return capture -> {
+            slot.scale(capture, null);
+            return slot.pixels;
+        };
+    }
+
+    @Override
+    public Codec newCodec(String codec) {
+        FrameCodec frameCodec = FrameCodecs.parse(codec);
+        return new Codec() {
+            @Override
+            public int maxCompressedLength(int length) {
+                return frameCodec.maxCompressedLength(length);
+            }
+
+            @Override
+            public int compress(ByteBuffer source, ByteBuffer target) throws Exception {
+                return frameCodec.compress(source, target);
+            }
+
+            @Override
+            public int decompress(ByteBuffer source, ByteBuffer target) throws Exception {
+                return frameCodec.decompress(source, target);
+            }
+        };
+    }
+
+    @Override
+    public Encoder newEncoder(int width, int height, boolean delta, boolean yuv420, boolean palette, String codec,
+                              int parallelism) {
+        FrameCodec frameCodec = FrameCodecs.parse(codec);
+        StreamConfig config = new StreamConfig(width, height, width, height,
+                frameCodec.getId() != FrameCodec.RAW, delta, TILE_SIZE, frameCodec, yuv420);
+        BandEncoder bandEncoder = new BandEncoder(width, height, TILE_SIZE, frameCodec, parallelism);
+        TileEncoder tileEncoder = delta ? new TileEncoder(width, height, TILE_SIZE, yuv420, palette) : null;
+        ByteBuffer body = ByteBuffer.allocateDirect(bandEncoder.maxBodyLength(width, height));
+        return new Encoder() {
+            @Override
+            public ByteBuffer encode(byte[] frame) throws Exception {
+                return bandEncoder.encode(frame, tileEncoder, config, body) == 0 ? null : body;
+            }
+
+            @Override
+            public void close() {
+                bandEncoder.close();
+            }
+        };
+    }
+
+    @Override
+    public Decoder newDecoder(int width, int height, boolean delta, boolean yuv420, String codec, int parallelism) {
+        FrameCodec frameCodec = FrameCodecs.parse(codec);
+        FrameDecoder frameDecoder = new FrameDecoder(parallelism);
+        frameDecoder.configure(width, height, frameCodec.getId() != FrameCodec.RAW, delta, TILE_SIZE, frameCodec,
+                yuv420);
+        return new Decoder() {
+            @Override
+            public BufferedImage decode(ByteBuffer body) throws Exception {
+                // Leave the caller's position alone so a body can be decoded again
+                frameDecoder.decode(body.duplicate());
+                return frameDecoder.getImage();
+            }
+
+            @Override
+            public void close() {
+                frameDecoder.close();
+            }
+        };
+    }
+
+    @Override
+    public List<ByteBuffer> tileUpdates(List<byte[]> frames, int width, int height) {
+        TileEncoder tileEncoder = new TileEncoder(width, height, TILE_SIZE);
+        List<ByteBuffer> updates = new ArrayList<>();
+        for (byte[] frame : frames) {
+            ByteBuffer update = ByteBuffer.allocateDirect(TileEncoder.maxEncodedLength(width, height, TILE_SIZE));
+            boolean first = !tileEncoder.hasPrevious();
+            if (tileEncoder.encode(frame, update) > 0 && !first) {
+                updates.add(update);
+            }
+        }
+        return updates;
+    }
+
+    @Override
+    public List<BufferedImage> syntheticFrames(String pattern, int width, int height, int count) {
+        SyntheticFrameSource.Pattern sourcePattern = pattern.equals("scrolling")
+                ? SyntheticFrameSource.Pattern.SCROLLING_TEXT
+                : SyntheticFrameSource.Pattern.valueOf(pattern.toUpperCase());
+        List<BufferedImage> frames = new ArrayList<>();
+        try (SyntheticFrameSource source = new SyntheticFrameSource(width, height, sourcePattern)) {
+            for (int i = 0; i < count; i++) {
+                // The source reuses its image, so keep a copy of each frame
+                BufferedImage frame = source.capture();
+                frames.add(new BufferedImage(frame.getColorModel(), frame.copyData(null), false, null));
+            }
+        }
+        return frames;
+    }
+}
@@ -0,0 +1,113 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compressing and decompressing what the server compresses: whole BGR frames on a full frame
+ * stream, or the tile updates of a delta stream. The byte counters turn the frame rates into
+ * MB/s, and the compression ratio of each codec is printed during setup.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class CompressBenchmark {
+    @Param(FrameCorpus.SYNTHETIC)
+    public String corpus;
+
+    @Param({"snappy", "lz4", "lz4-9", "zstd-1", "zstd-3"})
+    public String codec;
+
+    @Param({"full", "delta"})
+    public String payload;
+
+    private HotPath.Codec frameCodec;
+    private List<ByteBuffer> payloads;
+    private List<ByteBuffer> compressedPayloads;
+    private ByteBuffer compressed;
+    private ByteBuffer restored;
+    private int next;
+
+    /**
+     * Bytes of uncompressed payload processed, reported per second.
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public long payloadBytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            payloadBytes = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        HotPath hotPath = HotPath.load();
+        frameCodec = hotPath.newCodec(codec);
+        List<byte[]> frames = FrameCorpus.toBgr(hotPath, FrameCorpus.load(hotPath, corpus),
+                FrameCorpus.SYNTHETIC_WIDTH, FrameCorpus.SYNTHETIC_HEIGHT);
+        if ("delta".equals(payload)) {
+            payloads = hotPath.tileUpdates(frames, FrameCorpus.SYNTHETIC_WIDTH, FrameCorpus.SYNTHETIC_HEIGHT);
+        } else {
+            payloads = new ArrayList<>();
+            for (byte[] frame : frames) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(frame.length);
+                buffer.put(frame);
+                buffer.flip();
+                payloads.add(buffer);
+            }
+        }
+        if (payloads.isEmpty()) {
+            throw new IOException("The corpus has no changes between frames");
+        }
+
+        int maxLength = 0;
+        for (ByteBuffer buffer : payloads) {
+            maxLength = Math.max(maxLength, buffer.remaining());
+        }
+        compressed = ByteBuffer.allocateDirect(frameCodec.maxCompressedLength(maxLength));
+        restored = ByteBuffer.allocateDirect(maxLength);
+
+        long inputBytes = 0;
+        long outputBytes = 0;
+        compressedPayloads = new ArrayList<>();
+        for (ByteBuffer buffer : payloads) {
+            int length = frameCodec.compress(buffer, compressed);
+            ByteBuffer copy = ByteBuffer.allocateDirect(length);
+            copy.put(compressed);
+            copy.flip();
+            compressedPayloads.add(copy);
+            inputBytes += buffer.remaining();
+            outputBytes += length;
+        }
+        System.out.printf("%n%s on %s payloads of %d bytes on average: ratio %.2f%n", codec, payload,
+                inputBytes / payloads.size(), (double) inputBytes / outputBytes);
+    }
+
+    @Benchmark
+    public int compress(Bytes bytes) throws Exception {
+        ByteBuffer source = payloads.get(next);
+        next = (next + 1) % payloads.size();
+        bytes.payloadBytes += source.remaining();
+        return frameCodec.compress(source, compressed);
+    }
+
+    @Benchmark
+    public int decompress(Bytes bytes) throws Exception {
+        ByteBuffer source = compressedPayloads.get(next);
+        next = (next + 1) % compressedPayloads.size();
+        int length = frameCodec.decompress(source, restored);
+        bytes.payloadBytes += length;
+        return length;
+    }
+}
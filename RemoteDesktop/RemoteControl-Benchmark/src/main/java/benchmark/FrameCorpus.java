@@ -0,0 +1,86 @@
+package benchmark;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * FrameCorpus supplies the frames the benchmarks run on, so they need no screen. The corpora
+ * "synthetic" (a desktop with scrolling text), "static" and "video" come from the server's
+ * SyntheticFrameSource; any other value is a directory of recorded captures (PNG, JPEG or BMP,
+ * in name order), such as one written by {@link RecordCorpus}.
+ * Frames are returned as TYPE_INT_RGB images, like Robot captures.
+ */
+final class FrameCorpus {
+    static final String SYNTHETIC = "synthetic";
+    static final int SYNTHETIC_WIDTH = 1920;
+    static final int SYNTHETIC_HEIGHT = 1080;
+    static final int SYNTHETIC_FRAMES = 30;
+
+    private FrameCorpus() {
+    }
+
+    static List<BufferedImage> load(HotPath hotPath, String corpus) throws IOException {
+        List<BufferedImage> frames = new ArrayList<>();
+        if (SYNTHETIC.equals(corpus)) {
+            return hotPath.syntheticFrames("scrolling", SYNTHETIC_WIDTH, SYNTHETIC_HEIGHT, SYNTHETIC_FRAMES);
+        }
+        if ("static".equals(corpus) || "video".equals(corpus)) {
+            return hotPath.syntheticFrames(corpus, SYNTHETIC_WIDTH, SYNTHETIC_HEIGHT, SYNTHETIC_FRAMES);
+        }
+        File[] files = new File(corpus).listFiles((dir, name) -> name.matches("(?i).*\\.(png|jpe?g|bmp)"));
+        if (files == null || files.length == 0) {
+            throw new IOException("No recorded frames in " + corpus);
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            BufferedImage image = ImageIO.read(file);
+            if (image == null) {
+                throw new IOException("Not an image: " + file);
+            }
+            if (!frames.isEmpty() && (image.getWidth() != frames.get(0).getWidth()
+                    || image.getHeight() != frames.get(0).getHeight())) {
+                throw new IOException("Frames of a corpus must all have the same size: " + file);
+            }
+            frames.add(toIntRgb(image));
+        }
+        return frames;
+    }
+
+    /**
+     * Scales every frame to width x height BGR pixels, as the server's capture stage does.
+     */
+    static List<byte[]> toBgr(HotPath hotPath, List<BufferedImage> frames, int width, int height) {
+        HotPath.Scaler scaler = hotPath.newScaler(width, height);
+        List<byte[]> pixels = new ArrayList<>();
+        for (BufferedImage frame : frames) {
+            pixels.add(scaler.scale(frame).clone());
+        }
+        return pixels;
+    }
+
+    /**
+     * Parses a size such as "1280x720".
+     */
+    static Dimension parseSize(String size) {
+        int separator = size.indexOf('x');
+        return new Dimension(Integer.parseInt(size.substring(0, separator)),
+                Integer.parseInt(size.substring(separator + 1)));
+    }
+
+    private static BufferedImage toIntRgb(BufferedImage image) {
+        if (image.getType() == BufferedImage.TYPE_INT_RGB) {
+            return image;
+        }
+        BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = converted.createGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return converted;
+    }
+}
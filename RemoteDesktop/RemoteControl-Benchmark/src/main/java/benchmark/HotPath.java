@@ -0,0 +1,96 @@
+package benchmark;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * HotPath is the view the benchmarks get of the server and client classes. Those live in the
+ * default package, which code in a named package cannot refer to, and JMH only accepts benchmarks
+ * in a named package; the default package RemoteControlHotPath implements this interface on top
+ * of the real classes and is loaded once by name.
+ */
+public interface HotPath {
+    /**
+     * Scales captures into BGR frames the way the server's capture stage does.
+     */
+    interface Scaler {
+        byte[] scale(BufferedImage capture);
+    }
+
+    /**
+     * Compresses and decompresses payloads with one codec and level.
+     */
+    interface Codec {
+        int maxCompressedLength(int length);
+
+        int compress(ByteBuffer source, ByteBuffer target) throws Exception;
+
+        int decompress(ByteBuffer source, ByteBuffer target) throws Exception;
+    }
+
+    /**
+     * The server's encode stage: diffs a BGR frame against the previous one and encodes and
+     * compresses its bands into a frame body.
+     */
+    interface Encoder extends AutoCloseable {
+        /**
+         * @return the frame body, or null when nothing changed
+         */
+        ByteBuffer encode(byte[] frame) throws Exception;
+
+        @Override
+        void close();
+    }
+
+    /**
+     * The client's decode stage: decompresses the bands of a frame body and applies them.
+     */
+    interface Decoder extends AutoCloseable {
+        BufferedImage decode(ByteBuffer body) throws Exception;
+
+        @Override
+        void close();
+    }
+
+    Scaler newScaler(int width, int height);
+
+    /**
+     * @param codec a codec name with an optional level, e.g. "raw", "snappy", "lz4", "lz4-9" or "zstd-3"
+     */
+    Codec newCodec(String codec);
+
+    /**
+     * @param yuv420  true to send the pixels as YUV 4:2:0 instead of BGR
+     * @param palette true to send delta tiles with few colours as a palette and indices
+     * @param codec   as for {@link #newCodec}; "raw" sends the frames uncompressed
+     */
+    Encoder newEncoder(int width, int height, boolean delta, boolean yuv420, boolean palette, String codec,
+                       int parallelism);
+
+    Decoder newDecoder(int width, int height, boolean delta, boolean yuv420, String codec, int parallelism);
+
+    /**
+     * The tile updates the server sends for consecutive frames, i.e. the payloads it compresses
+     * on a delta stream. The first frame, which the encoder sends whole, has no update.
+     */
+    List<ByteBuffer> tileUpdates(List<byte[]> frames, int width, int height);
+
+    /**
+     * Frames from the server's SyntheticFrameSource.
+     *
+     * @param pattern "static", "scrolling" or "video"
+     */
+    List<BufferedImage> syntheticFrames(String pattern, int width, int height, int count);
+
+    /**
+     * Loads the default package implementation.
+     */
+    static HotPath load() {
+        try {
+            return (HotPath) Class.forName("RemoteControlHotPath").getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException ex) {
+            throw new IllegalStateException("RemoteControlHotPath is missing from the classpath", ex);
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Getting decoded BGR pixels into an image the client can paint. Building a new BufferedImage
+ * and filling it with setDataElements for every frame is compared with reusing the image and
+ * with writing straight into the backing array of a persistent image, which is what the client's
+ * FrameDecoder does. paint measures drawing the frame into an RGB surface of the same size.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class RasterBenchmark {
+    @Param(FrameCorpus.SYNTHETIC)
+    public String corpus;
+
+    @Param({"1920x1080", "1280x720"})
+    public String size;
+
+    private int width;
+    private int height;
+    private List<byte[]> frames;
+    private int next;
+
+    private BufferedImage reusedImage;
+    private byte[] reusedPixels;
+    private BufferedImage surface;
+    private Graphics2D surfaceGraphics;
+
+    @Setup
+    public void setUp() throws IOException {
+        HotPath hotPath = HotPath.load();
+        Dimension dimension = FrameCorpus.parseSize(size);
+        width = dimension.width;
+        height = dimension.height;
+        frames = FrameCorpus.toBgr(hotPath, FrameCorpus.load(hotPath, corpus), width, height);
+        reusedImage = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        reusedPixels = ((DataBufferByte) reusedImage.getRaster().getDataBuffer()).getData();
+        surface = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        surfaceGraphics = surface.createGraphics();
+    }
+
+    @TearDown
+    public void tearDown() {
+        surfaceGraphics.dispose();
+    }
+
+    private byte[] nextFrame() {
+        byte[] frame = frames.get(next);
+        next = (next + 1) % frames.size();
+        return frame;
+    }
+
+    @Benchmark
+    public BufferedImage newImageSetDataElements() {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        image.getRaster().setDataElements(0, 0, width, height, nextFrame());
+        return image;
+    }
+
+    @Benchmark
+    public BufferedImage reusedImageSetDataElements() {
+        reusedImage.getRaster().setDataElements(0, 0, width, height, nextFrame());
+        return reusedImage;
+    }
+
+    @Benchmark
+    public BufferedImage persistentBackingArray() {
+        System.arraycopy(nextFrame(), 0, reusedPixels, 0, reusedPixels.length);
+        return reusedImage;
+    }
+
+    @Benchmark
+    public BufferedImage paint() {
+        System.arraycopy(nextFrame(), 0, reusedPixels, 0, reusedPixels.length);
+        surfaceGraphics.drawImage(reusedImage, 0, 0, null);
+        return surface;
+    }
+}
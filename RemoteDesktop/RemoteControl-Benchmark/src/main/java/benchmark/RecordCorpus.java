@@ -0,0 +1,37 @@
+package benchmark;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Records a corpus of screen captures for the benchmarks, as numbered PNG files.
+ *
+ * Usage: java -cp target/benchmarks.jar benchmark.RecordCorpus directory [frames] [interval millis]
+ */
+public class RecordCorpus {
+    public static void main(String[] args) throws AWTException, IOException, InterruptedException {
+        if (args.length < 1) {
+            System.out.println("Usage: RecordCorpus directory [frames] [interval millis]");
+            return;
+        }
+        File directory = new File(args[0]);
+        int frames = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+        long intervalMillis = args.length > 2 ? Long.parseLong(args[2]) : 100;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+
+        Robot robot = new Robot();
+        Rectangle screenRect = new Rectangle(Toolkit.getDefaultToolkit().getScreenSize());
+        for (int i = 0; i < frames; i++) {
+            BufferedImage capture = robot.createScreenCapture(screenRect);
+            ImageIO.write(capture, "png", new File(directory, String.format("frame-%05d.png", i)));
+            Thread.sleep(intervalMillis);
+        }
+        System.out.println("Recorded " + frames + " frames of " + screenRect.width + "x" + screenRect.height
+                + " to " + directory);
+    }
+}
@@ -0,0 +1,103 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The server's encode stage and the client's decode stage on consecutive frames: diffing,
+ * band splitting and compression with BandEncoder, then decompression and tile application with
+ * FrameDecoder, both on all cores. Each operation is one frame.
+ *
+ * The pixels go as BGR or as YUV 4:2:0, which costs a conversion on each side and saves half the
+ * bytes before compression; the average body size of each is printed during setup.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class RoundTripBenchmark {
+    @Param(FrameCorpus.SYNTHETIC)
+    public String corpus;
+
+    @Param({"raw", "snappy", "lz4", "zstd-1"})
+    public String codec;
+
+    @Param({"true", "false"})
+    public boolean delta;
+
+    @Param({"bgr", "yuv420"})
+    public String format;
+
+    // Compare with -p palette=true,false
+    @Param("true")
+    public boolean palette;
+
+    private List<byte[]> frames;
+    private List<ByteBuffer> bodies;
+    private HotPath.Encoder encoder;
+    private HotPath.Decoder decoder;
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        HotPath hotPath = HotPath.load();
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        int width = FrameCorpus.SYNTHETIC_WIDTH;
+        int height = FrameCorpus.SYNTHETIC_HEIGHT;
+        frames = FrameCorpus.toBgr(hotPath, FrameCorpus.load(hotPath, corpus), width, height);
+        boolean yuv420 = "yuv420".equals(format);
+        encoder = hotPath.newEncoder(width, height, delta, yuv420, palette, codec, parallelism);
+        decoder = hotPath.newDecoder(width, height, delta, yuv420, codec, parallelism);
+
+        // Bodies for decoding alone, encoded in order so that each delta follows its predecessor
+        bodies = new ArrayList<>();
+        long bodyBytes = 0;
+        for (byte[] frame : frames) {
+            ByteBuffer body = encoder.encode(frame);
+            if (body != null) {
+                ByteBuffer copy = ByteBuffer.allocateDirect(body.remaining());
+                bodyBytes += body.remaining();
+                copy.put(body);
+                copy.flip();
+                bodies.add(copy);
+            }
+        }
+        System.out.printf("%n%s%s %s bodies of %d bytes on average%n", format, palette ? " palette" : "", codec,
+                bodies.isEmpty() ? 0 : bodyBytes / bodies.size());
+    }
+
+    @TearDown
+    public void tearDown() {
+        encoder.close();
+        decoder.close();
+    }
+
+    @Benchmark
+    public ByteBuffer encode() throws Exception {
+        byte[] frame = frames.get(next);
+        next = (next + 1) % frames.size();
+        return encoder.encode(frame);
+    }
+
+    @Benchmark
+    public BufferedImage decode() throws Exception {
+        ByteBuffer body = bodies.get(next);
+        next = (next + 1) % bodies.size();
+        return decoder.decode(body);
+    }
+
+    @Benchmark
+    public BufferedImage roundTrip() throws Exception {
+        byte[] frame = frames.get(next);
+        next = (next + 1) % frames.size();
+        ByteBuffer body = encoder.encode(frame);
+        return body == null ? null : decoder.decode(body);
+    }
+}
@@ -0,0 +1,46 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Scaling a capture to the stream size and converting it to BGR, which the server's capture
+ * stage does for every frame. A target the size of the capture measures the conversion alone.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class ScaleBenchmark {
+    @Param(FrameCorpus.SYNTHETIC)
+    public String corpus;
+
+    @Param({"1920x1080", "1280x720", "854x480"})
+    public String target;
+
+    private List<BufferedImage> captures;
+    private HotPath.Scaler scaler;
+    private int next;
+
+    @Setup
+    public void setUp() throws IOException {
+        HotPath hotPath = HotPath.load();
+        captures = FrameCorpus.load(hotPath, corpus);
+        Dimension size = FrameCorpus.parseSize(target);
+        scaler = hotPath.newScaler(size.width, size.height);
+    }
+
+    @Benchmark
+    public byte[] scale() {
+        BufferedImage capture = captures.get(next);
+        next = (next + 1) % captures.size();
+        return scaler.scale(capture);
+    }
+}
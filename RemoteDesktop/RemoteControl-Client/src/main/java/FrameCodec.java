@@ -0,0 +1,43 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * FrameCodec compresses and decompresses the bands of a frame. Keep this interface and
+ * {@link FrameCodecs} identical on the client and the server.
+ *
+ * Both directions work on direct buffers. The source is read from its position to its limit
+ * and left untouched; the result is written from position 0 of the target, whose limit is then
+ * set to the result length. Implementations must be safe to use from several threads at once,
+ * since the bands of a frame are compressed and decompressed in parallel.
+ */
+public interface FrameCodec {
+    byte RAW = 0;
+    byte SNAPPY = 1;
+    byte LZ4 = 2;
+    byte ZSTD = 3;
+
+    /**
+     * The id sent in the stream configuration.
+     */
+    byte getId();
+
+    /**
+     * The compression level; only meaningful to the compressing side.
+     */
+    int getLevel();
+
+    /**
+     * Largest output {@link #compress} can produce for {@code length} input bytes.
+     */
+    int maxCompressedLength(int length);
+
+    /**
+     * @return the compressed length
+     */
+    int compress(ByteBuffer source, ByteBuffer target) throws IOException;
+
+    /**
+     * @return the decompressed length
+     */
+    int decompress(ByteBuffer source, ByteBuffer target) throws IOException;
+}
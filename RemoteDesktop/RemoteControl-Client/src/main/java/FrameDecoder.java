@@ -0,0 +1,461 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * FrameDecoder applies the frame bodies sent by the server's BandEncoder to a persistent frame.
+ * The bands of a frame cover disjoint rows and are compressed on their own, so the calling thread
+ * decodes the first band while a fixed pool of workers takes the rest.
+ *
+ * Frame body layout:
+ *   delta streams only: int moveCount, moveCount x { int srcX, int srcY, int x, int y, int w, int h }
+ *   int bandCount
+ *   bandCount x { int y, int height, int length, int compressedLength }
+ *   bandCount x byte[compressedLength] band data
+ *
+ * A band of a delta stream holds a tile update (int tileCount, then per tile int x, y, w, h and
+ * a byte encoding, followed by w * h * 3 BGR bytes for a RAW tile or a {@link PaletteTile});
+ * a band of a full frame stream holds its rows of BGR pixels.
+ * On a YUV 4:2:0 stream the pixels of raw tiles and bands are in the {@link Yuv420} format instead
+ * and are converted to BGR as they are applied.
+ * The moves copy pixels the frame already shows to where they moved, such as the lines of a
+ * scrolled page. They are applied before the bands, all sources being read before any
+ * destination is written, because the moves cross band boundaries.
+ */
+public class FrameDecoder implements Closeable {
+	private static final int BYTES_PER_PIXEL = 3;
+	private static final int BAND_HEADER_LENGTH = 4 * 4;
+	private static final int MOVE_LENGTH = 6 * 4;
+
+	// Stream parameters from the server's init message
+	private int width;
+	private int height;
+	private boolean isCompress;
+	private boolean isDelta;
+	private int tileSize;
+	private FrameCodec codec;
+	private boolean isYuv420;
+
+	// Persistent frame that delta tiles are patched into
+	private BufferedImage frameImage;
+	private byte[] framePixels;
+	// Decompressed band data, only used while the stream is compressed
+	private ByteBuffer decodeBuffer;
+	// The moved pixels between reading the sources and writing the destinations
+	private byte[] moveScratch = new byte[0];
+
+	// True when the last decoded frame replaced every pixel
+	private boolean lastFrameComplete;
+	// Bounds of the pixels each band of the last frame changed, and the non-empty ones among them
+	private Rectangle[] bandBounds = new Rectangle[0];
+	private final Rectangle moveBounds = new Rectangle();
+	private final List<Rectangle> dirtyRegions = new ArrayList<>();
+
+	private final ExecutorService workers;
+	private Future<Integer>[] bandFutures = newFutures(0);
+
+	/**
+	 * @param parallelism the number of threads decoding the bands of a frame, normally the number of cores
+	 */
+	public FrameDecoder(int parallelism) {
+		workers = parallelism > 1 ? Executors.newFixedThreadPool(parallelism - 1, runnable -> {
+			Thread thread = new Thread(runnable, "band-decoder");
+			thread.setDaemon(true);
+			return thread;
+		}) : null;
+	}
+
+	/**
+	 * Applies new stream parameters. The frame is reallocated on resize only; the next update
+	 * from the server is a full one anyway.
+	 */
+	public void configure(int width, int height, boolean isCompress, boolean isDelta, int tileSize, FrameCodec codec,
+			boolean isYuv420) {
+		this.width = width;
+		this.height = height;
+		this.isCompress = isCompress;
+		this.isDelta = isDelta;
+		this.tileSize = tileSize;
+		this.codec = codec;
+		this.isYuv420 = isYuv420;
+		if (frameImage == null || frameImage.getWidth() != width || frameImage.getHeight() != height) {
+			frameImage = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+			framePixels = ((DataBufferByte) frameImage.getRaster().getDataBuffer()).getData();
+		}
+		int maxPayloadLength = maxPayloadLength();
+		if (isCompress && (decodeBuffer == null || decodeBuffer.capacity() < maxPayloadLength)) {
+			decodeBuffer = ByteBuffer.allocateDirect(maxPayloadLength);
+		}
+	}
+
+	/**
+	 * The persistent frame the bands are applied to.
+	 */
+	public BufferedImage getImage() {
+		return frameImage;
+	}
+
+	/**
+	 * True when the last decoded frame replaced every pixel, so it can be decoded without the
+	 * frames before it: a full frame, or a delta update whose tiles cover the whole picture.
+	 */
+	public boolean isLastFrameComplete() {
+		return lastFrameComplete;
+	}
+
+	/**
+	 * The regions of the frame the last decoded frame changed, one per band that changed
+	 * anything and one around the moves. The list and its rectangles are reused by the next decode.
+	 */
+	public List<Rectangle> getDirtyRegions() {
+		return dirtyRegions;
+	}
+
+	/**
+	 * Largest frame body the server can send for the current parameters. There is at most one band
+	 * per tile row, each with its own table entry, tile count and codec overhead, and a delta
+	 * frame can move every tile.
+	 */
+	public int maxBodyLength() {
+		int maxBands = maxBands();
+		int maxPayloadLength = maxPayloadLength();
+		int maxMovesLength = isDelta ? 4 + maxTiles() * MOVE_LENGTH : 0;
+		return maxMovesLength + 4 + maxBands * BAND_HEADER_LENGTH + (isCompress
+				? codec.maxCompressedLength(maxPayloadLength) + maxBands * codec.maxCompressedLength(0)
+				: maxPayloadLength);
+	}
+
+	private int maxBands() {
+		return (height + tileSize - 1) / tileSize;
+	}
+
+	private int maxTiles() {
+		return (width + tileSize - 1) / tileSize * maxBands();
+	}
+
+	// Uncompressed size of every band together: tile updates with their headers, or the bare pixels.
+	// YUV 4:2:0 pixels and palette tiles take less room than BGR, so the BGR size covers them all.
+	private int maxPayloadLength() {
+		if (!isDelta) {
+			return width * height * BYTES_PER_PIXEL;
+		}
+		return maxBands() * 4 + maxTiles() * 17 + width * height * BYTES_PER_PIXEL;
+	}
+
+	/**
+	 * Decodes a frame body, read from its position, into the persistent frame.
+	 */
+	public void decode(ByteBuffer body) throws IOException, InterruptedException {
+		lastFrameComplete = false;
+		dirtyRegions.clear();
+		int moveCount = isDelta ? applyMoves(body) : 0;
+		int bandCount = body.getInt();
+		if (bandCount < 0 || (bandCount == 0 && moveCount == 0) || bandCount > height
+				|| bandCount * BAND_HEADER_LENGTH > body.remaining()) {
+			throw new IOException("Invalid band count: " + bandCount);
+		}
+		if (bandFutures.length < bandCount) {
+			bandFutures = newFutures(bandCount);
+			Rectangle[] bounds = new Rectangle[bandCount];
+			for (int i = 0; i < bandCount; i++) {
+				bounds[i] = i < bandBounds.length ? bandBounds[i] : new Rectangle();
+			}
+			bandBounds = bounds;
+		}
+		int dataOffset = body.position() + bandCount * BAND_HEADER_LENGTH;
+		int decodeOffset = 0;
+		BandTask firstBand = null;
+		long coveredPixels = 0;
+		try {
+			for (int i = 0; i < bandCount; i++) {
+				int y = body.getInt();
+				int bandHeight = body.getInt();
+				int length = body.getInt();
+				int compressedLength = body.getInt();
+				if (y < 0 || bandHeight <= 0 || y + bandHeight > height || length < 0 || compressedLength < 0
+						|| compressedLength > body.limit() - dataOffset
+						|| (isCompress && length > decodeBuffer.capacity() - decodeOffset)) {
+					throw new IOException("Invalid band " + i + ": rows " + y + "+" + bandHeight
+							+ ", " + compressedLength + " -> " + length + " bytes");
+				}
+				ByteBuffer source = slice(body, dataOffset, compressedLength);
+				ByteBuffer target = isCompress ? slice(decodeBuffer, decodeOffset, length) : source;
+				dataOffset += compressedLength;
+				decodeOffset += length;
+				BandTask band = new BandTask(source, target, y, bandHeight, length, bandBounds[i]);
+				if (workers == null) {
+					coveredPixels += band.call();
+				} else if (i == 0) {
+					firstBand = band;
+				} else {
+					bandFutures[i] = workers.submit(band);
+				}
+			}
+			if (firstBand != null) {
+				coveredPixels += firstBand.call();
+			}
+			for (int i = 1; i < bandCount; i++) {
+				if (bandFutures[i] != null) {
+					coveredPixels += bandFutures[i].get();
+				}
+			}
+			lastFrameComplete = coveredPixels == (long) width * height;
+			if (moveCount > 0) {
+				dirtyRegions.add(moveBounds);
+			}
+			for (int i = 0; i < bandCount; i++) {
+				if (!bandBounds[i].isEmpty()) {
+					dirtyRegions.add(bandBounds[i]);
+				}
+			}
+		} catch (ExecutionException ex) {
+			throw new IOException("Band decoding failed", ex.getCause());
+		} finally {
+			// After a failure the other bands are left to finish, as cancelling would not stop the
+			// running ones, so none of them writes into the frame while the next body is decoded
+			for (int i = 1; i < bandCount; i++) {
+				if (bandFutures[i] != null) {
+					awaitQuietly(bandFutures[i]);
+					bandFutures[i] = null;
+				}
+			}
+		}
+	}
+
+	// Waits for a band whose outcome is no longer of interest, keeping an interrupt for later
+	private static void awaitQuietly(Future<Integer> future) {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				future.get();
+				break;
+			} catch (InterruptedException ex) {
+				interrupted = true;
+			} catch (ExecutionException | CancellationException ex) {
+				break;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Reads the moves at the start of a delta frame and copies their pixels, reading every source
+	 * before writing any destination.
+	 *
+	 * @return the number of moves
+	 */
+	private int applyMoves(ByteBuffer body) throws IOException {
+		int moveCount = body.getInt();
+		if (moveCount < 0 || moveCount > maxTiles() || moveCount * MOVE_LENGTH > body.remaining()) {
+			throw new IOException("Invalid move count: " + moveCount);
+		}
+		if (moveCount == 0) {
+			return 0;
+		}
+		int start = body.position();
+		long total = 0;
+		for (int i = 0; i < moveCount; i++) {
+			int srcX = body.getInt();
+			int srcY = body.getInt();
+			int x = body.getInt();
+			int y = body.getInt();
+			int w = body.getInt();
+			int h = body.getInt();
+			if (w <= 0 || h <= 0 || !isInside(srcX, srcY, w, h) || !isInside(x, y, w, h)) {
+				throw new IOException("Move out of bounds: " + srcX + "," + srcY + " to " + x + "," + y
+						+ " " + w + "x" + h);
+			}
+			total += (long) w * h * BYTES_PER_PIXEL;
+		}
+		if (total > framePixels.length) {
+			throw new IOException("Moves of " + total + " bytes in a frame of " + framePixels.length);
+		}
+		if (moveScratch.length < total) {
+			moveScratch = new byte[(int) total];
+		}
+
+		body.position(start);
+		int offset = 0;
+		for (int i = 0; i < moveCount; i++) {
+			int srcX = body.getInt();
+			int srcY = body.getInt();
+			body.position(body.position() + 2 * 4);
+			int w = body.getInt();
+			int h = body.getInt();
+			int rowBytes = w * BYTES_PER_PIXEL;
+			for (int row = srcY; row < srcY + h; row++) {
+				System.arraycopy(framePixels, (row * width + srcX) * BYTES_PER_PIXEL, moveScratch, offset, rowBytes);
+				offset += rowBytes;
+			}
+		}
+		body.position(start);
+		offset = 0;
+		int minX = width;
+		int minY = height;
+		int maxX = 0;
+		int maxY = 0;
+		for (int i = 0; i < moveCount; i++) {
+			body.position(body.position() + 2 * 4);
+			int x = body.getInt();
+			int y = body.getInt();
+			int w = body.getInt();
+			int h = body.getInt();
+			int rowBytes = w * BYTES_PER_PIXEL;
+			for (int row = y; row < y + h; row++) {
+				System.arraycopy(moveScratch, offset, framePixels, (row * width + x) * BYTES_PER_PIXEL, rowBytes);
+				offset += rowBytes;
+			}
+			minX = Math.min(minX, x);
+			minY = Math.min(minY, y);
+			maxX = Math.max(maxX, x + w);
+			maxY = Math.max(maxY, y + h);
+		}
+		moveBounds.setBounds(minX, minY, maxX - minX, maxY - minY);
+		return moveCount;
+	}
+
+	private boolean isInside(int x, int y, int w, int h) {
+		return x >= 0 && y >= 0 && x <= width - w && y <= height - h;
+	}
+
+	/**
+	 * Decompresses one band (if the stream is compressed) and applies it: a tile update on a
+	 * delta stream, or its rows of pixels otherwise.
+	 *
+	 * @param bounds set to the bounds of the pixels the band changed
+	 * @return the number of pixels the band replaced
+	 */
+	private int decodeBand(ByteBuffer source, ByteBuffer target, int y, int bandHeight, int length,
+			Rectangle bounds) throws IOException {
+		bounds.setBounds(0, 0, 0, 0);
+		if (isCompress && codec.decompress(source, target) != length) {
+			throw new IOException("Band at row " + y + " did not decompress to " + length + " bytes");
+		}
+		if (isDelta) {
+			return applyTiles(target, bounds);
+		}
+		if (length != pixelBytes(width, bandHeight)) {
+			throw new IOException("Band at row " + y + " has " + length + " bytes for " + bandHeight + " rows");
+		}
+		if (isYuv420) {
+			Yuv420.decode(target, framePixels, width, 0, y, width, bandHeight);
+		} else {
+			target.get(framePixels, y * width * BYTES_PER_PIXEL, length);
+		}
+		bounds.setBounds(0, y, width, bandHeight);
+		return bandHeight * width;
+	}
+
+	/**
+	 * Copies the changed tiles of a delta update into the persistent frame.
+	 *
+	 * @param bounds set to the bounding box of the tiles
+	 * @return the number of pixels the tiles cover
+	 */
+	private int applyTiles(ByteBuffer update, Rectangle bounds) throws IOException {
+		int pixels = 0;
+		int minX = width;
+		int minY = height;
+		int maxX = 0;
+		int maxY = 0;
+		int tileCount = update.getInt();
+		for (int i = 0; i < tileCount; i++) {
+			int x = update.getInt();
+			int y = update.getInt();
+			int w = update.getInt();
+			int h = update.getInt();
+			if (x < 0 || y < 0 || w < 0 || h < 0 || x + w > width || y + h > height) {
+				throw new IOException("Tile out of bounds: " + x + "," + y + " " + w + "x" + h);
+			}
+			byte encoding = update.get();
+			if (encoding != PaletteTile.RAW) {
+				PaletteTile.decode(encoding, update, framePixels, width, x, y, w, h);
+			} else if (update.remaining() < pixelBytes(w, h)) {
+				throw new IOException("Tile at " + x + "," + y + " is cut short");
+			} else if (isYuv420) {
+				Yuv420.decode(update, framePixels, width, x, y, w, h);
+			} else {
+				int rowBytes = w * BYTES_PER_PIXEL;
+				for (int row = y; row < y + h; row++) {
+					update.get(framePixels, (row * width + x) * BYTES_PER_PIXEL, rowBytes);
+				}
+			}
+			pixels += w * h;
+			minX = Math.min(minX, x);
+			minY = Math.min(minY, y);
+			maxX = Math.max(maxX, x + w);
+			maxY = Math.max(maxY, y + h);
+		}
+		if (maxX > minX && maxY > minY) {
+			bounds.setBounds(minX, minY, maxX - minX, maxY - minY);
+		}
+		return pixels;
+	}
+
+	// Bytes of a w x h rectangle of pixels in the stream's format
+	private int pixelBytes(int w, int h) {
+		return isYuv420 ? Yuv420.encodedLength(w, h) : w * h * BYTES_PER_PIXEL;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Future<Integer>[] newFutures(int length) {
+		return (Future<Integer>[]) new Future<?>[length];
+	}
+
+	// A view of length bytes of the buffer starting at offset, with its own position and limit
+	private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+		ByteBuffer view = buffer.duplicate();
+		view.limit(offset + length);
+		view.position(offset);
+		return view.slice();
+	}
+
+	/**
+	 * Stops the worker threads.
+	 */
+	@Override
+	public void close() {
+		if (workers != null) {
+			workers.shutdownNow();
+		}
+	}
+
+	/**
+	 * One band of a frame waiting to be decoded by the calling thread or a worker.
+	 */
+	private class BandTask implements Callable<Integer> {
+		private final ByteBuffer source;
+		private final ByteBuffer target;
+		private final int y;
+		private final int height;
+		private final int length;
+		private final Rectangle bounds;
+
+		BandTask(ByteBuffer source, ByteBuffer target, int y, int height, int length, Rectangle bounds) {
+			this.source = source;
+			this.target = target;
+			this.y = y;
+			this.height = height;
+			this.length = length;
+			this.bounds = bounds;
+		}
+
+		@Override
+		public Integer call() throws IOException {
+			return decodeBand(source, target, y, height, length, bounds);
+		}
+	}
+}
@@ -0,0 +1,192 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * InputBatcher coalesces the mouse events of the screen panel and sends them in batches on the
+ * mouse channel, encoded as described in {@link InputEvents}.
+ *
+ * At most one batch goes out per {@link #FLUSH_INTERVAL_NANOS}. A move after a quiet period is
+ * sent at once, so a single move is no slower than before; during continuous motion only the
+ * latest position of each interval is sent, and consecutive wheel notches are summed. Presses and
+ * releases are sent immediately, after the pending move, so a click lands where the pointer was.
+ * Batches that are due are sent on the event dispatch thread; the timer thread sends the ones
+ * that have to wait.
+ */
+public class InputBatcher {
+	// About one batch per display refresh of a 120 Hz monitor
+	public static final long FLUSH_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(8);
+
+	private static final Metrics.Histogram INPUT_DELAY = Metrics.histogram("client_input_delay_micros",
+			"Time the oldest event of a mouse batch waited to be sent");
+	private static final Metrics.Counter EVENTS = Metrics.counter("client_input_events", "Mouse events");
+	private static final Metrics.Counter MESSAGES = Metrics.counter("client_input_messages",
+			"Mouse batches sent");
+	private static final Metrics.Counter BYTES = Metrics.counter("client_input_bytes", "Mouse batch bytes sent");
+
+	private final MuxConnection connection;
+	private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "input-batcher");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	// Guarded by this
+	private final InputEvents.Writer batch = new InputEvents.Writer();
+	private boolean hasPendingMove = false;
+	private int pendingX;
+	private int pendingY;
+	private int pendingWheel = 0;
+	private long lastFlushNanos = System.nanoTime() - FLUSH_INTERVAL_NANOS;
+	private boolean flushScheduled = false;
+	private boolean closed = false;
+	// When the oldest event not sent yet arrived, or 0
+	private long oldestEventNanos = 0;
+	// Counters for the once-per-second statistics, reset by takeStats
+	private int eventCount = 0;
+	private int batchCount = 0;
+	private int byteCount = 0;
+
+	public InputBatcher(MuxConnection connection) {
+		this.connection = connection;
+	}
+
+	public synchronized void mouseMove(int x, int y) {
+		eventCount++;
+		countEvent();
+		writePendingWheel();
+		pendingX = x;
+		pendingY = y;
+		hasPendingMove = true;
+		flushSoon();
+	}
+
+	public synchronized void mouseWheel(int notches) {
+		eventCount++;
+		countEvent();
+		writePendingMove();
+		pendingWheel += notches;
+		flushSoon();
+	}
+
+	public synchronized void mousePress(int button) {
+		eventCount++;
+		countEvent();
+		writePending();
+		makeRoom();
+		batch.press(button);
+		flush();
+	}
+
+	public synchronized void mouseRelease(int button) {
+		eventCount++;
+		countEvent();
+		writePending();
+		makeRoom();
+		batch.release(button);
+		flush();
+	}
+
+	/**
+	 * Returns "events in batches (bytes)" since the last call, or null if there was no input.
+	 */
+	public synchronized String takeStats() {
+		if (eventCount == 0) {
+			return null;
+		}
+		String stats = String.format("%d events in %d messages (%d bytes)", eventCount, batchCount, byteCount);
+		eventCount = 0;
+		batchCount = 0;
+		byteCount = 0;
+		return stats;
+	}
+
+	/**
+	 * Stops the timer. Input still pending is dropped.
+	 */
+	public synchronized void close() {
+		closed = true;
+		timer.shutdownNow();
+	}
+
+	// Sends now if the last batch is old enough, else makes sure a send is scheduled
+	private void flushSoon() {
+		if (closed) {
+			return;
+		}
+		long waitNanos = lastFlushNanos + FLUSH_INTERVAL_NANOS - System.nanoTime();
+		if (waitNanos <= 0) {
+			flush();
+		} else if (!flushScheduled) {
+			flushScheduled = true;
+			timer.schedule(this::scheduledFlush, waitNanos, TimeUnit.NANOSECONDS);
+		}
+	}
+
+	private synchronized void scheduledFlush() {
+		flushScheduled = false;
+		flush();
+	}
+
+	private void flush() {
+		writePending();
+		if (batch.isEmpty()) {
+			return;
+		}
+		lastFlushNanos = System.nanoTime();
+		send(batch.take());
+	}
+
+	private void countEvent() {
+		EVENTS.increment();
+		if (oldestEventNanos == 0) {
+			oldestEventNanos = System.nanoTime();
+		}
+	}
+
+	private void send(ByteBuffer message) {
+		batchCount++;
+		byteCount += message.remaining();
+		MESSAGES.increment();
+		BYTES.add(message.remaining());
+		if (oldestEventNanos != 0) {
+			INPUT_DELAY.recordNanos(System.nanoTime() - oldestEventNanos);
+			oldestEventNanos = 0;
+		}
+		try {
+			connection.send(MuxConnection.CHANNEL_MOUSE, message);
+		} catch (IOException ex) {
+			Log.error("Unable to send mouse input", ex);
+		}
+	}
+
+	private void writePending() {
+		writePendingMove();
+		writePendingWheel();
+	}
+
+	private void writePendingMove() {
+		if (hasPendingMove) {
+			makeRoom();
+			batch.move(pendingX, pendingY);
+			hasPendingMove = false;
+		}
+	}
+
+	private void writePendingWheel() {
+		if (pendingWheel != 0) {
+			makeRoom();
+			batch.wheel(pendingWheel);
+			pendingWheel = 0;
+		}
+	}
+
+	// A full batch goes out early rather than growing
+	private void makeRoom() {
+		if (!batch.hasRoom()) {
+			send(batch.take());
+		}
+	}
+}
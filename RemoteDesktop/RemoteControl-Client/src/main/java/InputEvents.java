@@ -0,0 +1,157 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * InputEvents is the encoding of the mouse channel. Keep this class identical on the client and
+ * the server.
+ *
+ * A mouse message is a batch of events, each a type byte followed by varint arguments. Moves
+ * carry zigzag-coded deltas from the previous move in the same batch (the first move of a batch
+ * is relative to 0,0), so a typical move costs three to five bytes instead of twelve. Every
+ * batch is self-contained: a lost or skipped message never corrupts the positions of the next.
+ */
+public final class InputEvents {
+    public static final byte MOUSE_MOVE = 1;
+    public static final byte MOUSE_PRESSED = 2;
+    public static final byte MOUSE_RELEASED = 3;
+    // Wheel notches, negative away from the user
+    public static final byte MOUSE_WHEEL = 4;
+
+    // Largest encoded event: the type byte and two five-byte varints
+    public static final int MAX_EVENT_LENGTH = 1 + 2 * 5;
+    // Largest batch the client sends and the server accepts
+    public static final int MAX_BATCH_LENGTH = 64 * MAX_EVENT_LENGTH;
+
+    private InputEvents() {
+    }
+
+    /**
+     * Builds one batch. Not thread safe.
+     */
+    public static final class Writer {
+        private final ByteBuffer buffer = ByteBuffer.allocate(MAX_BATCH_LENGTH);
+        private int lastX;
+        private int lastY;
+
+        public void move(int x, int y) {
+            buffer.put(MOUSE_MOVE);
+            putVarint(buffer, zigzag(x - lastX));
+            putVarint(buffer, zigzag(y - lastY));
+            lastX = x;
+            lastY = y;
+        }
+
+        public void press(int button) {
+            buffer.put(MOUSE_PRESSED);
+            putVarint(buffer, button);
+        }
+
+        public void release(int button) {
+            buffer.put(MOUSE_RELEASED);
+            putVarint(buffer, button);
+        }
+
+        public void wheel(int notches) {
+            buffer.put(MOUSE_WHEEL);
+            putVarint(buffer, zigzag(notches));
+        }
+
+        public boolean isEmpty() {
+            return buffer.position() == 0;
+        }
+
+        // Whether another event is guaranteed to fit
+        public boolean hasRoom() {
+            return buffer.remaining() >= MAX_EVENT_LENGTH;
+        }
+
+        /**
+         * Returns the batch as a new buffer ready to send and starts the next batch.
+         */
+        public ByteBuffer take() {
+            buffer.flip();
+            ByteBuffer batch = ByteBuffer.allocate(buffer.remaining());
+            batch.put(buffer).flip();
+            buffer.clear();
+            lastX = 0;
+            lastY = 0;
+            return batch;
+        }
+    }
+
+    /**
+     * Receives the events of a batch in order.
+     */
+    public interface Handler {
+        void mouseMove(int x, int y);
+
+        void mousePress(int button);
+
+        void mouseRelease(int button);
+
+        void mouseWheel(int notches);
+    }
+
+    /**
+     * Decodes a whole batch into the handler.
+     *
+     * @throws IllegalArgumentException on an unknown event type or a truncated batch
+     */
+    public static void read(ByteBuffer batch, Handler handler) {
+        int x = 0;
+        int y = 0;
+        try {
+            while (batch.hasRemaining()) {
+                byte type = batch.get();
+                switch (type) {
+                    case MOUSE_MOVE:
+                        x += unzigzag(getVarint(batch));
+                        y += unzigzag(getVarint(batch));
+                        handler.mouseMove(x, y);
+                        break;
+                    case MOUSE_PRESSED:
+                        handler.mousePress(getVarint(batch));
+                        break;
+                    case MOUSE_RELEASED:
+                        handler.mouseRelease(getVarint(batch));
+                        break;
+                    case MOUSE_WHEEL:
+                        handler.mouseWheel(unzigzag(getVarint(batch)));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown mouse event: " + type);
+                }
+            }
+        } catch (BufferUnderflowException ex) {
+            throw new IllegalArgumentException("Truncated mouse event batch");
+        }
+    }
+
+    static void putVarint(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    static int getVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
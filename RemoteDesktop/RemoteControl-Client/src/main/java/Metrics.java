@@ -0,0 +1,328 @@
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+
+/**
+ * Metrics is a process-wide registry of latency histograms, counters and gauges. Keep this class
+ * identical on the client and the server.
+ *
+ * Recording is lock free and allocation free, so it can sit on the frame and input paths.
+ * Histograms hold microseconds in log-linear buckets (8 per power of two, so percentiles are
+ * within 12.5%). The registry can be served over HTTP on the loopback interface in the Prometheus
+ * text format, at {@code /metrics}, and dumped to the log periodically with the percentiles and
+ * rates of the last interval. Both are off unless configured through system properties:
+ * {@code remotecontrol.metrics.port} and {@code remotecontrol.metrics.dump} (seconds).
+ */
+public final class Metrics {
+    public static final String PORT_PROPERTY = "remotecontrol.metrics.port";
+    public static final String DUMP_PROPERTY = "remotecontrol.metrics.dump";
+
+    private static final ConcurrentMap<String, Metric> registry = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "metrics-dump");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private Metrics() {
+    }
+
+    public static Histogram histogram(String name, String help) {
+        return (Histogram) registry.computeIfAbsent(name, key -> new Histogram(key, help));
+    }
+
+    public static Counter counter(String name, String help) {
+        return (Counter) registry.computeIfAbsent(name, key -> new Counter(key, help));
+    }
+
+    /**
+     * Registers a value read when the metrics are reported, replacing an earlier gauge of the
+     * same name.
+     */
+    public static void gauge(String name, String help, DoubleSupplier value) {
+        registry.put(name, new Gauge(name, help, value));
+    }
+
+    /**
+     * Starts the HTTP endpoint and the periodic dump as configured by the system properties.
+     */
+    public static void startFromSystemProperties() {
+        int port = Integer.getInteger(PORT_PROPERTY, 0);
+        if (port > 0) {
+            try {
+                startHttp(port);
+            } catch (IOException ex) {
+                Log.error("Unable to serve metrics on port " + port, ex);
+            }
+        }
+        int dumpSeconds = Integer.getInteger(DUMP_PROPERTY, 0);
+        if (dumpSeconds > 0) {
+            startDump(dumpSeconds);
+        }
+    }
+
+    /**
+     * Serves the metrics in the Prometheus text format at http://localhost:port/metrics.
+     */
+    public static void startHttp(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = prometheusText().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-http");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+        Log.info("Serving metrics at http://localhost:%d/metrics", port);
+    }
+
+    /**
+     * Logs every metric once per period: histogram percentiles and counter rates cover the
+     * period, so consecutive dumps can be graphed as they are.
+     */
+    public static void startDump(long periodSeconds) {
+        Map<String, long[]> previous = new HashMap<>();
+        long[] lastNanos = {System.nanoTime()};
+        dumper.scheduleAtFixedRate(() -> {
+            long now = System.nanoTime();
+            double seconds = (now - lastNanos[0]) / 1e9;
+            lastNanos[0] = now;
+            StringBuilder text = new StringBuilder("Metrics for the last ")
+                    .append(Math.round(seconds)).append(" s:");
+            for (Metric metric : new TreeMap<>(registry).values()) {
+                text.append(System.lineSeparator()).append("  ");
+                metric.appendInterval(text, previous, seconds);
+            }
+            Log.info(text.toString());
+        }, periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Returns the metrics in the Prometheus text exposition format; histograms are summaries with
+     * quantiles over the whole run.
+     */
+    public static String prometheusText() {
+        StringBuilder text = new StringBuilder();
+        for (Metric metric : new TreeMap<>(registry).values()) {
+            text.append("# HELP ").append(metric.name).append(' ').append(metric.help).append('\n');
+            metric.appendPrometheus(text);
+        }
+        return text.toString();
+    }
+
+    private abstract static class Metric {
+        final String name;
+        final String help;
+
+        Metric(String name, String help) {
+            this.name = name;
+            this.help = help;
+        }
+
+        abstract void appendPrometheus(StringBuilder text);
+
+        // Appends the values since the previous call, keeping this metric's state in previous
+        abstract void appendInterval(StringBuilder text, Map<String, long[]> previous, double seconds);
+    }
+
+    /**
+     * A latency distribution in microseconds.
+     */
+    public static final class Histogram extends Metric {
+        private static final int SUB_BUCKETS = 8;
+        private static final int BUCKETS = (63 - 2) * SUB_BUCKETS;
+        private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        Histogram(String name, String help) {
+            super(name, help);
+        }
+
+        public void record(long micros) {
+            long value = Math.max(0, micros);
+            counts.incrementAndGet(bucket(value));
+            sum.add(value);
+            if (value > max.get()) {
+                max.accumulateAndGet(value, Math::max);
+            }
+        }
+
+        public void recordNanos(long nanos) {
+            record(nanos / 1000);
+        }
+
+        static int bucket(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            return (exponent - 2) * SUB_BUCKETS + (int) ((value >>> (exponent - 3)) & (SUB_BUCKETS - 1));
+        }
+
+        // The largest value that falls in a bucket
+        static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exponent = bucket / SUB_BUCKETS + 2;
+            long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - 3);
+            return lower + (1L << (exponent - 3)) - 1;
+        }
+
+        // Counts per bucket followed by the sum
+        private long[] snapshot() {
+            long[] snapshot = new long[BUCKETS + 1];
+            for (int i = 0; i < BUCKETS; i++) {
+                snapshot[i] = counts.get(i);
+            }
+            snapshot[BUCKETS] = sum.sum();
+            return snapshot;
+        }
+
+        private static long quantile(long[] buckets, long count, double quantile) {
+            long rank = (long) Math.ceil(quantile * count);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += buckets[i];
+                if (seen >= rank && buckets[i] > 0) {
+                    return upperBound(i);
+                }
+            }
+            return 0;
+        }
+
+        private static long total(long[] buckets) {
+            long count = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                count += buckets[i];
+            }
+            return count;
+        }
+
+        @Override
+        void appendPrometheus(StringBuilder text) {
+            long[] snapshot = snapshot();
+            long count = total(snapshot);
+            text.append("# TYPE ").append(name).append(" summary\n");
+            for (double q : QUANTILES) {
+                text.append(name).append("{quantile=\"").append(q).append("\"} ")
+                        .append(quantile(snapshot, count, q)).append('\n');
+            }
+            text.append(name).append("_sum ").append(snapshot[BUCKETS]).append('\n');
+            text.append(name).append("_count ").append(count).append('\n');
+            text.append(name).append("_max ").append(max.get()).append('\n');
+        }
+
+        @Override
+        void appendInterval(StringBuilder text, Map<String, long[]> previous, double seconds) {
+            long[] snapshot = snapshot();
+            long[] last = previous.put(name, snapshot);
+            long[] delta = snapshot.clone();
+            if (last != null) {
+                for (int i = 0; i < delta.length; i++) {
+                    delta[i] -= last[i];
+                }
+            }
+            long count = total(delta);
+            text.append(name).append(": ").append(count).append(" samples");
+            if (count > 0) {
+                long maxBucket = 0;
+                for (int i = BUCKETS - 1; i >= 0; i--) {
+                    if (delta[i] > 0) {
+                        maxBucket = upperBound(i);
+                        break;
+                    }
+                }
+                text.append(String.format(Locale.ROOT, ", avg %.2f ms, p50 %.2f ms, p90 %.2f ms, p99 %.2f ms, max %.2f ms",
+                        delta[BUCKETS] / 1000.0 / count, quantile(delta, count, 0.5) / 1000.0,
+                        quantile(delta, count, 0.9) / 1000.0, quantile(delta, count, 0.99) / 1000.0,
+                        maxBucket / 1000.0));
+            }
+        }
+    }
+
+    /**
+     * A monotonically increasing count, such as bytes or dropped frames.
+     */
+    public static final class Counter extends Metric {
+        private final LongAdder value = new LongAdder();
+
+        Counter(String name, String help) {
+            super(name, help);
+        }
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long amount) {
+            value.add(amount);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+
+        @Override
+        void appendPrometheus(StringBuilder text) {
+            text.append("# TYPE ").append(name).append(" counter\n");
+            text.append(name).append(' ').append(get()).append('\n');
+        }
+
+        @Override
+        void appendInterval(StringBuilder text, Map<String, long[]> previous, double seconds) {
+            long total = get();
+            long[] last = previous.put(name, new long[]{total});
+            long delta = last == null ? total : total - last[0];
+            text.append(String.format(Locale.ROOT, "%s: %.1f/s (total %d)", name,
+                    seconds > 0 ? delta / seconds : 0, total));
+        }
+    }
+
+    private static final class Gauge extends Metric {
+        private final DoubleSupplier value;
+
+        Gauge(String name, String help, DoubleSupplier value) {
+            super(name, help);
+            this.value = value;
+        }
+
+        @Override
+        void appendPrometheus(StringBuilder text) {
+            text.append("# TYPE ").append(name).append(" gauge\n");
+            text.append(name).append(' ').append(value.getAsDouble()).append('\n');
+        }
+
+        @Override
+        void appendInterval(StringBuilder text, Map<String, long[]> previous, double seconds) {
+            text.append(String.format(Locale.ROOT, "%s: %.2f", name, value.getAsDouble()));
+        }
+    }
+}
@@ -4,18 +4,72 @@ import java.awt.event.*;
 import java.awt.image.BufferedImage;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.text.SimpleDateFormat;
+import java.util.Date;
 import java.util.concurrent.*;
-import org.xerial.snappy.Snappy;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class NetworkScreenClient extends JFrame {
 	// UI and connection constants
 	private static final int FRAME_WIDTH = 1080;
 	private static final int FRAME_HEIGHT = 720;
 
-	// Make sure these ports match the ones on your server.
+	// Make sure this port matches the one on your server.
 	private static final int SERVER_PORT = 9090;
-	private static final int SERVER_CURSOR_PORT = SERVER_PORT - 1;    // 8079
-	private static final int SERVER_KEYBOARD_PORT = SERVER_PORT - 2;    // 8078
+
+	// Largest control message: the init message with its type byte, four ints, two booleans, the tile size,
+	// the codec and the YUV flag, or the list of the server's screens
+	private static final int MAX_CONTROL_MESSAGE_LENGTH = Math.max(1 + 4 * 4 + 2 + 4 + 2 + 1,
+			1 + 4 + MuxConnection.MAX_SCREENS * 4 * 4);
+
+	// Capture region request: type, screen, then x, y, width and height
+	private static final int REGION_MESSAGE_LENGTH = 1 + 5 * 4;
+
+	// Smallest region, in panel pixels, that a drag selects; a shorter drag cancels the selection
+	private static final int MIN_SELECTION_SIZE = 8;
+
+	// Viewport message: type, view width and height, then x, y, width and height of the visible part
+	private static final int VIEWPORT_MESSAGE_LENGTH = 1 + 6 * 4;
+	// Zoom factor of one zoom step, and the largest zoom
+	private static final double ZOOM_STEP = Math.sqrt(2);
+	private static final double MAX_ZOOM = 8;
+
+	// Feedback message: frames decoded and their average decode time in microseconds
+	private static final int FEEDBACK_MESSAGE_LENGTH = 2 * 4;
+
+	// Header in front of every video frame: sequence, capture time and server capture-to-publish microseconds
+	private static final int FRAME_HEADER_LENGTH = 4 + 8 + 4;
+
+	// Ack message: sequence, capture time, then receive, decode and paint times in microseconds
+	private static final int ACK_MESSAGE_LENGTH = 4 + 8 + 3 * 4;
+
+	// Captured streams are saved here
+	private static final File CAPTURES_DIRECTORY = new File("captures");
+
+	// While capturing, the server is asked for a keyframe this often so the capture can be seeked quickly
+	private static final long CAPTURE_KEYFRAME_INTERVAL_MILLIS = 5000;
+
+	// Per-frame debug messages are logged at most once a second
+	private static final Log.Sampler FRAME_LOG = new Log.Sampler(1, TimeUnit.SECONDS);
+
+	private static final Metrics.Histogram RECEIVE_TIME = Metrics.histogram("client_receive_micros",
+			"Time from the first to the last chunk of a frame");
+	private static final Metrics.Histogram DECODE_TIME = Metrics.histogram("client_decode_micros",
+			"Time to decompress a frame and apply it to the image");
+	private static final Metrics.Histogram PAINT_TIME = Metrics.histogram("client_paint_micros",
+			"Time from the end of decoding until the frame was painted");
+	private static final Metrics.Histogram RENDER_TIME = Metrics.histogram("client_render_micros",
+			"Time to scale the changed regions of a frame into the view");
+	private static final Metrics.Counter BYTES_RECEIVED = Metrics.counter("client_bytes_received",
+			"Frame bytes received");
+	private static final Metrics.Counter FRAMES_DECODED = Metrics.counter("client_frames_decoded",
+			"Frames decoded");
+	private static final Metrics.Counter FRAMES_PAINTED = Metrics.counter("client_frames_painted",
+			"Frames painted; decoded frames not painted were superseded by a newer one");
 
 	// Main panels for connection and streaming
 	private ControlPanel controlPanel;
@@ -54,23 +108,33 @@ public class NetworkScreenClient extends JFrame {
 		private JTextField addressField;
 		private JButton connectBtn;
 		private JButton exitBtn;
+		private JCheckBox captureCheckBox;
+		private JButton playBtn;
 
 		public ControlPanel() {
 			setLayout(null);
 			addressField = new JTextField(PLACEHOLDER);
 			connectBtn = new JButton("Connect");
 			exitBtn = new JButton("Exit");
+			captureCheckBox = new JCheckBox("Capture");
+			captureCheckBox.setToolTipText("Save the received stream to the " + CAPTURES_DIRECTORY + " folder");
+			playBtn = new JButton("Play...");
+			playBtn.setToolTipText("Play back a saved stream or a server recording");
 
 			// Set bounds
 			addressField.setBounds(0, 0, 200, FRAME_HEIGHT - 50);
 			connectBtn.setBounds(200, 0, 150, FRAME_HEIGHT - 50);
 			exitBtn.setBounds(350, 0, 150, FRAME_HEIGHT - 50);
+			captureCheckBox.setBounds(500, 0, 150, FRAME_HEIGHT - 50);
+			playBtn.setBounds(650, 0, 150, FRAME_HEIGHT - 50);
 
 			// Use a modern font and color
 			Font font = new Font("Calibri", Font.PLAIN, 20);
 			addressField.setFont(font);
 			connectBtn.setFont(font);
 			exitBtn.setFont(font);
+			captureCheckBox.setFont(font);
+			playBtn.setFont(font);
 			addressField.setForeground(Color.LIGHT_GRAY);
 			addressField.setCaretPosition(0);
 			addressField.setMargin(new Insets(1, 15, 1, 15));
@@ -115,41 +179,71 @@ public class NetworkScreenClient extends JFrame {
 			add(addressField);
 			add(connectBtn);
 			add(exitBtn);
+			add(captureCheckBox);
+			add(playBtn);
 			exitBtn.setEnabled(false);
 
-			// Connect button: attempt to open three sockets and then swap to the streaming panel.
+			// Connect button: open the multiplexed connection and then swap to the streaming panel.
 			connectBtn.addActionListener(e -> {
 				String ip = addressField.getText().trim();
 				if (ip.equals(PLACEHOLDER) || ip.equals("Connect Fail")) {
 					ip = "localhost";
 				}
 				try {
-					Socket mainSocket = new Socket();
-					Socket cursorSocket = new Socket();
-					Socket keyboardSocket = new Socket();
-
-					InetSocketAddress mainAddress = new InetSocketAddress(ip, SERVER_PORT);
-					InetSocketAddress cursorAddress = new InetSocketAddress(ip, SERVER_CURSOR_PORT);
-					InetSocketAddress keyboardAddress = new InetSocketAddress(ip, SERVER_KEYBOARD_PORT);
+					long connectStart = System.nanoTime();
+					SocketChannel channel = SocketChannel.open();
+					InetSocketAddress address = new InetSocketAddress(ip, SERVER_PORT);
 
 					// Connect with a timeout (here 5000 ms)
-					mainSocket.connect(mainAddress, 5000);
-					cursorSocket.connect(cursorAddress, 5000);
-					keyboardSocket.connect(keyboardAddress, 5000);
+					channel.socket().connect(address, 5000);
+					MuxConnection connection = new MuxConnection(channel);
 
 					// Indicate success and swap to screen panel
 					addressField.setText("Connect Success!");
-					screenPanel = new ScreenPanel(mainSocket, cursorSocket, keyboardSocket);
+					File captureFile = captureCheckBox.isSelected() ? newCaptureFile() : null;
+					screenPanel = new ScreenPanel(connection, connectStart, captureFile);
 					setContentPane(screenPanel);
+					setJMenuBar(screenPanel.createMenuBar());
 					revalidate();
 					screenPanel.requestFocusInWindow();
 				} catch (IOException ex) {
-					ex.printStackTrace();
+					Log.error("Unable to connect to " + ip, ex);
 					addressField.setText("Connect Fail");
 				}
 			});
 
 			exitBtn.addActionListener(e -> System.exit(0));
+			playBtn.addActionListener(e -> openPlayer());
+		}
+
+		private File newCaptureFile() {
+			CAPTURES_DIRECTORY.mkdirs();
+			return new File(CAPTURES_DIRECTORY,
+					"capture-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".rcs");
+		}
+
+		/**
+		 * Lets the user pick a saved stream and swaps to a player for it; closing the player
+		 * comes back here.
+		 */
+		private void openPlayer() {
+			JFileChooser chooser = new JFileChooser(CAPTURES_DIRECTORY.isDirectory() ? CAPTURES_DIRECTORY : null);
+			if (chooser.showOpenDialog(NetworkScreenClient.this) != JFileChooser.APPROVE_OPTION) {
+				return;
+			}
+			try {
+				SessionPlayer player = new SessionPlayer(chooser.getSelectedFile(), () -> {
+					setContentPane(controlPanel);
+					revalidate();
+					repaint();
+				});
+				setContentPane(player);
+				revalidate();
+			} catch (IOException ex) {
+				Log.error("Unable to play " + chooser.getSelectedFile(), ex);
+				JOptionPane.showMessageDialog(NetworkScreenClient.this, "Unable to play "
+						+ chooser.getSelectedFile() + ": " + ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+			}
 		}
 	}
 
@@ -157,53 +251,108 @@ public class NetworkScreenClient extends JFrame {
 	 * The panel that displays the remote screen and sends mouse (and later keyboard) events.
 	 */
 	private class ScreenPanel extends JPanel {
-		// Sockets and streams
-		private Socket mainSocket;
-		private Socket cursorSocket;
-		private Socket keyboardSocket;
-		private DataInputStream dataInputStream;
-		// Removed unused ObjectInputStream
-		private DataOutputStream mouseOutputStream;
-		private DataOutputStream keyboardOutputStream;
+		// Multiplexed connection carrying the control, video, mouse and keyboard channels
+		private final MuxConnection connection;
+		// Coalesces mouse input into batches on the mouse channel
+		private final InputBatcher inputBatcher;
+		// System.nanoTime() when the connect started, used to report setup time
+		private final long connectStart;
+		// Saves the received stream as it arrives, or null when not capturing; used by the reader thread only
+		private SessionFile.Writer capture;
+		// Server capture time of the first captured frame, the zero of the capture's clock
+		private long captureStartNanos = -1;
+		private long nextKeyframeRequestMillis;
 
 		// Screen image parameters received from the server
 		private int screenWidth, screenHeight;
 		private int imageWidth, imageHeight;
 		private boolean isCompress;
-
-		// Latest image to display (volatile for safe publication)
-		private volatile BufferedImage latestImage;
+		private boolean isDelta;
+		private boolean isYuv420;
+		private int tileSize;
+		// Codec of the compressed bands
+		private FrameCodec codec;
+
+		// Decompresses the bands of each frame in parallel and patches them into a persistent frame
+		private final FrameDecoder frameDecoder = new FrameDecoder(Runtime.getRuntime().availableProcessors());
+		// Keeps the frame scaled to the panel in triple-buffered views, updated on the reader thread
+		// and handed to the paints without locks
+		private final ScreenRenderer renderer = new ScreenRenderer();
+
+		// Reusable direct buffer for the video channel
+		private ByteBuffer receiveBuffer;
+		private final ByteBuffer controlBuffer = ByteBuffer.allocate(MAX_CONTROL_MESSAGE_LENGTH);
+		// Decode measurements reported to the server once per second
+		private final AtomicLong decodedFrames = new AtomicLong();
+		private final AtomicLong decodeNanos = new AtomicLong();
+		// When the first chunk of the frame being received arrived
+		private long receiveStart;
+		// The newest decoded frame waiting to be painted and acknowledged
+		private final AtomicReference<FrameTiming> pendingPaint = new AtomicReference<>();
+		// The newest painted frame waiting for its ack, handed from the paint to the ack thread,
+		// so a stalled connection never blocks the event dispatch thread
+		private final AtomicReference<FrameTiming> pendingAck = new AtomicReference<>();
+		private final ExecutorService ackExecutor = Executors.newSingleThreadExecutor(runnable -> {
+			Thread thread = new Thread(runnable, "frame-ack");
+			thread.setDaemon(true);
+			return thread;
+		});
+		// Frames decoded but not painted yet, and the per-stage totals printed once per second
+		private final AtomicInteger framesInFlight = new AtomicInteger();
+		private final AtomicLong statsServerMicros = new AtomicLong();
+		private final AtomicLong statsReceiveMicros = new AtomicLong();
+		private final AtomicLong statsPaintMicros = new AtomicLong();
+		private final AtomicLong paintedFrames = new AtomicLong();
 		// FPS counter and label
 		private int fpsCount = 0;
 		private JLabel fpsLabel;
 
+		// Lists the server's screens and starts region selection
+		private final JMenu viewMenu = new JMenu("View");
+		// While selecting, the next drag picks the region to stream instead of going to the server;
+		// all three are used on the event dispatch thread only
+		private boolean selectingRegion = false;
+		private Point selectionStart;
+		private Rectangle selection;
+		// Zoom and pan within the selected screen or region: the zoom and the visible part's top left
+		// corner as fractions of the selection, and where a Ctrl+drag pan started; used on the event
+		// dispatch thread only
+		private double zoom = 1;
+		private double viewportX = 0;
+		private double viewportY = 0;
+		private Point panStart;
+		private double panStartX;
+		private double panStartY;
+
 		// Executor for background tasks on the panel
 		private ExecutorService panelExecutor = Executors.newCachedThreadPool();
 		private static final int FPS_UPDATE_INTERVAL = 1000;
 
-		public ScreenPanel(Socket mainSocket, Socket cursorSocket, Socket keyboardSocket) {
-			this.mainSocket = mainSocket;
-			this.cursorSocket = cursorSocket;
-			this.keyboardSocket = keyboardSocket;
+		/**
+		 * @param captureFile where to save the received stream, or null to only show it
+		 */
+		public ScreenPanel(MuxConnection connection, long connectStart, File captureFile) {
+			this.connection = connection;
+			this.connectStart = connectStart;
+			this.inputBatcher = new InputBatcher(connection);
 			setLayout(null);
+			if (captureFile != null) {
+				try {
+					capture = new SessionFile.Writer(captureFile);
+					Log.info("Capturing the stream to %s", captureFile);
+				} catch (IOException ex) {
+					Log.error("Unable to capture to " + captureFile, ex);
+				}
+			}
 
 			fpsLabel = new JLabel("FPS: 0");
 			fpsLabel.setFont(new Font("Serif", Font.BOLD, 20));
 			fpsLabel.setBounds(10, 10, 100, 50);
 			add(fpsLabel);
 
-			try {
-				mainSocket.setTcpNoDelay(true);
-				dataInputStream = new DataInputStream(mainSocket.getInputStream());
-				mouseOutputStream = new DataOutputStream(cursorSocket.getOutputStream());
-				keyboardOutputStream = new DataOutputStream(keyboardSocket.getOutputStream());
-			} catch (IOException ex) {
-				ex.printStackTrace();
-			}
-
-			// Read initialization parameters from the server (blocking call)
-			panelExecutor.submit(this::initializeParameters);
-			// Start the screen data reading task
+			// Tell the server which codecs this client can decode, then read the initialization
+			// parameters and the screen data
+			sendHello();
 			panelExecutor.submit(this::readScreenData);
 			// Start the FPS update task
 			panelExecutor.submit(this::updateFPS);
@@ -214,61 +363,342 @@ public class NetworkScreenClient extends JFrame {
 		}
 
 		/**
-		 * Reads initial parameters from the server.
+		 * Reads the stream parameters from the server's init message. The server sends it when the
+		 * stream starts and again whenever it adapts the size or compression to the connection.
 		 */
-		private void initializeParameters() {
-			try {
-				screenWidth = dataInputStream.readInt();
-				screenHeight = dataInputStream.readInt();
-				imageWidth = dataInputStream.readInt();
-				imageHeight = dataInputStream.readInt();
-				isCompress = dataInputStream.readBoolean();
-				System.out.println("Init params: screenWidth=" + screenWidth +
-						", screenHeight=" + screenHeight +
-						", imageWidth=" + imageWidth +
-						", imageHeight=" + imageHeight +
-						", isCompress=" + isCompress);
-			} catch (IOException ex) {
-				ex.printStackTrace();
+		private void initializeParameters(ByteBuffer init) {
+			boolean first = receiveBuffer == null;
+			screenWidth = init.getInt();
+			screenHeight = init.getInt();
+			imageWidth = init.getInt();
+			imageHeight = init.getInt();
+			isCompress = init.get() != 0;
+			isDelta = init.get() != 0;
+			tileSize = init.getInt();
+			byte codecId = init.get();
+			int codecLevel = init.get();
+			isYuv420 = init.get() != 0;
+			if (codec == null || codec.getId() != codecId) {
+				codec = FrameCodecs.create(codecId, codecLevel);
+			}
+			frameDecoder.configure(imageWidth, imageHeight, isCompress, isDelta, tileSize, codec, isYuv420);
+
+			// Size the buffer for the largest frame the server can send; the server only scales
+			// down from the first configuration, so it is kept unless compression is switched on.
+			int receiveLength = FRAME_HEADER_LENGTH + frameDecoder.maxBodyLength();
+			if (receiveBuffer == null || receiveBuffer.capacity() < receiveLength) {
+				receiveBuffer = ByteBuffer.allocateDirect(receiveLength);
+			}
+			receiveBuffer.clear();
+			Log.info("Init params: screenWidth=%d, screenHeight=%d, imageWidth=%d, imageHeight=%d,"
+							+ " isCompress=%b, codec=%s, isDelta=%b, tileSize=%d, isYuv420=%b", screenWidth, screenHeight,
+					imageWidth, imageHeight, isCompress, FrameCodecs.describe(codec), isDelta, tileSize, isYuv420);
+			if (first) {
+				Log.info("Connection setup took %d ms", (System.nanoTime() - connectStart) / 1000000);
 			}
 		}
 
 		/**
-		 * Reads incoming image data from the server and creates BufferedImages.
+		 * Reads messages from the connection. The control channel carries the stream parameters;
+		 * video chunks are gathered in a reusable direct buffer and, once a frame is complete,
+		 * its bands are decompressed direct-to-direct and patched into the persistent frame in
+		 * parallel. The regions the frame changed are scaled into the renderer's view and
+		 * repainted, and the frame's timings are handed to the next paint, which has the ack thread
+		 * acknowledge it.
 		 */
 		private void readScreenData() {
 			while (!Thread.currentThread().isInterrupted()) {
 				try {
-					int length = dataInputStream.readInt();
-					System.out.println("Frame length: " + length);
-					if (length <= 0) {
-						System.out.println("Invalid frame length, skipping.");
+					byte channel = connection.readHeader();
+					if (channel == MuxConnection.CHANNEL_CONTROL) {
+						if (connection.getLastLength() > controlBuffer.capacity()) {
+							connection.skipPayload();
+							continue;
+						}
+						controlBuffer.clear();
+						connection.readPayload(controlBuffer);
+						controlBuffer.flip();
+						ByteBuffer message = controlBuffer.duplicate();
+						byte type = controlBuffer.get();
+						if (type == MuxConnection.CONTROL_INIT) {
+							initializeParameters(controlBuffer);
+							if (capture != null) {
+								capture.writeConfig(message);
+							}
+						} else if (type == MuxConnection.CONTROL_SCREENS) {
+							Rectangle[] screens = readScreens(controlBuffer);
+							SwingUtilities.invokeLater(() -> updateViewMenu(screens));
+						}
 						continue;
 					}
-					byte[] imageBytes = new byte[length];
-					dataInputStream.readFully(imageBytes, 0, length);
-
-					byte[] processedBytes = isCompress ? Snappy.uncompress(imageBytes) : imageBytes;
-					if (processedBytes.length != imageWidth * imageHeight * 3) {
-						System.out.println("Warning: Processed bytes size (" + processedBytes.length +
-								") does not match expected (" + (imageWidth * imageHeight * 3) + ")");
+					if (channel != MuxConnection.CHANNEL_VIDEO || receiveBuffer == null) {
+						connection.skipPayload();
+						continue;
+					}
+					if (receiveBuffer.position() == 0) {
+						receiveStart = System.nanoTime();
+					}
+					connection.readPayload(receiveBuffer);
+					if (!connection.isLastChunk()) {
+						continue;
+					}
+					receiveBuffer.flip();
+					if (Log.isDebugEnabled() && FRAME_LOG.sample()) {
+						Log.debug("Frame length: %d (%d frames since last logged)", receiveBuffer.remaining(),
+								FRAME_LOG.takeSkipped());
 					}
-					BufferedImage image = new BufferedImage(imageWidth, imageHeight, BufferedImage.TYPE_3BYTE_BGR);
-					image.getRaster().setDataElements(0, 0, imageWidth, imageHeight, processedBytes);
-					latestImage = image;
+					ByteBuffer message = receiveBuffer.duplicate();
+					BYTES_RECEIVED.add(message.remaining());
+
+					long decodeStart = System.nanoTime();
+					FrameTiming timing = new FrameTiming();
+					timing.sequence = receiveBuffer.getInt();
+					timing.captureNanos = receiveBuffer.getLong();
+					timing.serverMicros = receiveBuffer.getInt();
+					timing.receiveMicros = (int) ((decodeStart - receiveStart) / 1000);
+					try {
+						frameDecoder.decode(receiveBuffer);
+					} catch (IOException | RuntimeException ex) {
+						// A malformed frame is not a broken connection: drop it and resynchronize
+						// from a keyframe, since the frames after it build on what it would have shown
+						receiveBuffer.clear();
+						Log.error("Dropping a frame that could not be decoded", ex);
+						sendKeyframeRequest();
+						continue;
+					}
+					if (capture != null) {
+						captureFrame(timing.captureNanos, message);
+					}
+					receiveBuffer.clear();
+					timing.decodedNanos = System.nanoTime();
+					timing.decodeMicros = (int) ((timing.decodedNanos - decodeStart) / 1000);
+					decodeNanos.addAndGet(timing.decodedNanos - decodeStart);
+					decodedFrames.incrementAndGet();
+					RECEIVE_TIME.record(timing.receiveMicros);
+					DECODE_TIME.record(timing.decodeMicros);
+					FRAMES_DECODED.increment();
+					statsServerMicros.addAndGet(timing.serverMicros);
+					statsReceiveMicros.addAndGet(timing.receiveMicros);
+					framesInFlight.incrementAndGet();
+					// A frame not painted yet is superseded; the ack for this one covers it too
+					pendingPaint.set(timing);
 					fpsCount++;
-					repaint();
+					long renderStart = System.nanoTime();
+					for (Rectangle region : renderer.render(frameDecoder.getImage(), frameDecoder.getDirtyRegions(), getWidth(),
+							getHeight(), getGraphicsConfiguration())) {
+						repaint(region.x, region.y, region.width, region.height);
+					}
+					RENDER_TIME.recordNanos(System.nanoTime() - renderStart);
 				} catch (IOException ex) {
-					ex.printStackTrace();
+					Log.error("Connection to the server failed", ex);
 					break;
 				} catch (Exception ex) {
-					ex.printStackTrace();
+					if (receiveBuffer != null) {
+						receiveBuffer.clear();
+					}
+					Log.error("Unable to decode a frame", ex);
 				}
 			}
+			closeCapture();
+			inputBatcher.close();
+			ackExecutor.shutdownNow();
 		}
 
 		/**
-		 * Updates the FPS label once per second.
+		 * Appends a received frame to the capture exactly as it arrived. The capture's clock is
+		 * the server's capture time, so playback reproduces the original pacing rather than the
+		 * network's. Frames the decoder found to cover the whole picture become seek points.
+		 * The write goes to the page cache on this thread; it costs about what handing a copy
+		 * to another thread would.
+		 */
+		private void captureFrame(long captureNanos, ByteBuffer message) {
+			if (captureStartNanos < 0) {
+				captureStartNanos = captureNanos;
+			}
+			try {
+				capture.writeFrame((captureNanos - captureStartNanos) / 1000, frameDecoder.isLastFrameComplete(),
+						message);
+			} catch (IOException ex) {
+				Log.error("Capture failed", ex);
+				try {
+					capture.abandon();
+				} catch (IOException closeEx) {
+					Log.error("Unable to close the capture", closeEx);
+				}
+				capture = null;
+			}
+		}
+
+		// Finishes the capture with its index once the stream has ended
+		private void closeCapture() {
+			if (capture == null) {
+				return;
+			}
+			try {
+				capture.close();
+				Log.info("Captured %d frames (%d keyframes)", capture.getFrameCount(), capture.getKeyframeCount());
+			} catch (IOException ex) {
+				Log.error("Unable to finish the capture", ex);
+			}
+			capture = null;
+		}
+
+		/**
+		 * Reads the bounds of the server's screens from a screens message.
+		 */
+		private Rectangle[] readScreens(ByteBuffer message) {
+			int count = Math.min(message.getInt(), message.remaining() / (4 * 4));
+			Rectangle[] screens = new Rectangle[Math.max(0, count)];
+			for (int i = 0; i < screens.length; i++) {
+				screens[i] = new Rectangle(message.getInt(), message.getInt(), message.getInt(), message.getInt());
+			}
+			return screens;
+		}
+
+		/**
+		 * Creates the menu bar shown above the panel while connected.
+		 */
+		public JMenuBar createMenuBar() {
+			JMenuBar menuBar = new JMenuBar();
+			menuBar.add(viewMenu);
+			updateViewMenu(new Rectangle[0]);
+			return menuBar;
+		}
+
+		// Lists the server's screens, then all screens and region selection
+		private void updateViewMenu(Rectangle[] screens) {
+			viewMenu.removeAll();
+			for (int i = 0; i < screens.length; i++) {
+				int screen = i;
+				JMenuItem item = new JMenuItem(String.format("Screen %d (%dx%d)", i + 1, screens[i].width,
+						screens[i].height));
+				item.addActionListener(e -> {
+					resetZoom();
+					sendCaptureRegion(screen, null);
+				});
+				viewMenu.add(item);
+			}
+			if (screens.length > 1) {
+				JMenuItem all = new JMenuItem("All screens");
+				all.addActionListener(e -> {
+					resetZoom();
+					sendCaptureRegion(MuxConnection.REGION_ALL_SCREENS, null);
+				});
+				viewMenu.add(all);
+			}
+			if (screens.length > 0) {
+				viewMenu.addSeparator();
+			}
+			JMenuItem select = new JMenuItem("Select region...");
+			select.setToolTipText("Drag a rectangle around the part of the picture to stream, such as a window");
+			select.addActionListener(e -> {
+				selectingRegion = true;
+				setCursor(Cursor.getPredefinedCursor(Cursor.CROSSHAIR_CURSOR));
+			});
+			viewMenu.add(select);
+			viewMenu.addSeparator();
+			JMenuItem zoomIn = new JMenuItem("Zoom in (Ctrl+wheel)");
+			zoomIn.addActionListener(e -> zoomAt(ZOOM_STEP, getWidth() / 2, getHeight() / 2));
+			viewMenu.add(zoomIn);
+			JMenuItem zoomOut = new JMenuItem("Zoom out (Ctrl+wheel)");
+			zoomOut.addActionListener(e -> zoomAt(1 / ZOOM_STEP, getWidth() / 2, getHeight() / 2));
+			viewMenu.add(zoomOut);
+			JMenuItem fit = new JMenuItem("Fit to window");
+			fit.setToolTipText("Show the whole screen or region, streamed at the size of this window");
+			fit.addActionListener(e -> {
+				resetZoom();
+				sendViewport();
+			});
+			viewMenu.add(fit);
+		}
+
+		/**
+		 * Zooms by a factor, keeping the point under the given panel position in place, and asks
+		 * the server to stream the new visible part at this panel's size.
+		 */
+		private void zoomAt(double factor, int panelX, int panelY) {
+			double newZoom = Math.max(1, Math.min(MAX_ZOOM, zoom * factor));
+			double fractionX = (double) panelX / getWidth();
+			double fractionY = (double) panelY / getHeight();
+			viewportX = clampViewport(viewportX + fractionX / zoom - fractionX / newZoom, newZoom);
+			viewportY = clampViewport(viewportY + fractionY / zoom - fractionY / newZoom, newZoom);
+			zoom = newZoom;
+			sendViewport();
+		}
+
+		// Keeps a visible part of size 1 / zoom inside the selection
+		private double clampViewport(double offset, double zoom) {
+			return Math.max(0, Math.min(1 - 1 / zoom, offset));
+		}
+
+		private void resetZoom() {
+			zoom = 1;
+			viewportX = 0;
+			viewportY = 0;
+		}
+
+		/**
+		 * Reports the panel size and the visible part of the selected screen or region, so the
+		 * server captures just that part at the size it is shown.
+		 */
+		private void sendViewport() {
+			int size = (int) Math.round(MuxConnection.VIEWPORT_UNIT / zoom);
+			ByteBuffer message = ByteBuffer.allocate(VIEWPORT_MESSAGE_LENGTH);
+			message.put(MuxConnection.CONTROL_VIEWPORT);
+			message.putInt(getWidth()).putInt(getHeight());
+			message.putInt((int) Math.round(viewportX * MuxConnection.VIEWPORT_UNIT));
+			message.putInt((int) Math.round(viewportY * MuxConnection.VIEWPORT_UNIT));
+			message.putInt(size).putInt(size);
+			message.flip();
+			try {
+				connection.send(MuxConnection.CHANNEL_CONTROL, message);
+			} catch (IOException ex) {
+				Log.error("Unable to send the viewport", ex);
+			}
+		}
+
+		/**
+		 * Asks the server to stream a screen, all screens or part of the current picture.
+		 *
+		 * @param part the part of the screen to stream, in its coordinates, or null for all of it
+		 */
+		private void sendCaptureRegion(int screen, Rectangle part) {
+			ByteBuffer message = ByteBuffer.allocate(REGION_MESSAGE_LENGTH);
+			message.put(MuxConnection.CONTROL_CAPTURE_REGION);
+			message.putInt(screen);
+			if (part != null) {
+				message.putInt(part.x).putInt(part.y).putInt(part.width).putInt(part.height);
+			} else {
+				message.putInt(0).putInt(0).putInt(0).putInt(0);
+			}
+			message.flip();
+			try {
+				connection.send(MuxConnection.CHANNEL_CONTROL, message);
+			} catch (IOException ex) {
+				Log.error("Unable to request a capture region", ex);
+			}
+		}
+
+		// Ends region selection; a large enough selection is mapped to the remote screen and requested
+		private void finishSelection() {
+			selectingRegion = false;
+			setCursor(Cursor.getDefaultCursor());
+			if (selection != null && selection.width >= MIN_SELECTION_SIZE && selection.height >= MIN_SELECTION_SIZE) {
+				resetZoom();
+				int x = selection.x * screenWidth / getWidth();
+				int y = selection.y * screenHeight / getHeight();
+				int width = (selection.x + selection.width) * screenWidth / getWidth() - x;
+				int height = (selection.y + selection.height) * screenHeight / getHeight() - y;
+				sendCaptureRegion(MuxConnection.REGION_CURRENT, new Rectangle(x, y, width, height));
+			}
+			selectionStart = null;
+			selection = null;
+			repaint();
+		}
+
+		/**
+		 * Updates the FPS label, prints the per-stage timings and reports the decode time to the
+		 * server once per second.
 		 */
 		private void updateFPS() {
 			while (!Thread.currentThread().isInterrupted()) {
@@ -281,11 +711,84 @@ public class NetworkScreenClient extends JFrame {
 					fpsLabel.setText("FPS: " + fpsCount);
 					fpsCount = 0;
 				});
+				long frames = decodedFrames.getAndSet(0);
+				long nanos = decodeNanos.getAndSet(0);
+				long serverMicros = statsServerMicros.getAndSet(0);
+				long receiveMicros = statsReceiveMicros.getAndSet(0);
+				long painted = paintedFrames.getAndSet(0);
+				long paintMicros = statsPaintMicros.getAndSet(0);
+				if (frames > 0) {
+					Log.info("Frames: %d decoded, %d painted, %d in flight;"
+									+ " server %.1f ms, receive %.1f ms, decode %.1f ms, paint %.1f ms",
+							frames, painted, framesInFlight.get(), serverMicros / 1000.0 / frames,
+							receiveMicros / 1000.0 / frames, nanos / 1e6 / frames,
+							painted == 0 ? 0 : paintMicros / 1000.0 / painted);
+				}
+				String inputStats = inputBatcher.takeStats();
+				if (inputStats != null) {
+					Log.info("Mouse: %s", inputStats);
+				}
+				sendFeedback(frames, nanos);
+				if (capture != null && System.currentTimeMillis() >= nextKeyframeRequestMillis) {
+					nextKeyframeRequestMillis = System.currentTimeMillis() + CAPTURE_KEYFRAME_INTERVAL_MILLIS;
+					sendKeyframeRequest();
+				}
 			}
 		}
 
 		/**
-		 * Sets up mouse listeners to send mouse events to the server.
+		 * Asks the server to send a keyframe, so the capture gets a seek point or the frame recovers
+		 * from one that could not be decoded.
+		 */
+		private void sendKeyframeRequest() {
+			ByteBuffer message = ByteBuffer.allocate(1);
+			message.put(MuxConnection.CONTROL_KEYFRAME_REQUEST);
+			message.flip();
+			try {
+				connection.send(MuxConnection.CHANNEL_CONTROL, message);
+			} catch (IOException ex) {
+				Log.error("Unable to request a keyframe", ex);
+			}
+		}
+
+		/**
+		 * Sends the ids of the codecs this client can decode. The server drops the connection if
+		 * the stream's codec is not among them.
+		 */
+		private void sendHello() {
+			byte[] codecIds = FrameCodecs.availableIds();
+			ByteBuffer message = ByteBuffer.allocate(2 + codecIds.length);
+			message.put(MuxConnection.CONTROL_HELLO);
+			message.put((byte) codecIds.length);
+			message.put(codecIds);
+			message.flip();
+			try {
+				connection.send(MuxConnection.CHANNEL_CONTROL, message);
+			} catch (IOException ex) {
+				Log.error("Unable to send the hello message", ex);
+			}
+		}
+
+		/**
+		 * Sends the number of frames decoded since the last report and their average decode time
+		 * on the feedback channel, so the server can adapt the stream to this client.
+		 */
+		private void sendFeedback(long frames, long nanos) {
+			ByteBuffer message = ByteBuffer.allocate(FEEDBACK_MESSAGE_LENGTH);
+			message.putInt((int) frames);
+			message.putInt(frames == 0 ? 0 : (int) (nanos / 1000 / frames));
+			message.flip();
+			try {
+				connection.send(MuxConnection.CHANNEL_FEEDBACK, message);
+			} catch (IOException ex) {
+				Log.error("Unable to send feedback", ex);
+			}
+		}
+
+		/**
+		 * Sets up mouse listeners to send mouse events to the server through the input batcher.
+		 * While a region is being selected, the mouse draws the selection instead; Ctrl+wheel zooms
+		 * and Ctrl+drag pans the view instead of going to the server.
 		 */
 		private void setupMouseListeners() {
 			// Send mouse movements (both move and drag)
@@ -297,21 +800,28 @@ public class NetworkScreenClient extends JFrame {
 
 				@Override
 				public void mouseDragged(MouseEvent e) {
+					if (panStart != null) {
+						viewportX = clampViewport(panStartX - (double) (e.getX() - panStart.x) / getWidth() / zoom, zoom);
+						viewportY = clampViewport(panStartY - (double) (e.getY() - panStart.y) / getHeight() / zoom, zoom);
+						return;
+					}
+					if (selectionStart != null) {
+						selection = new Rectangle(selectionStart);
+						selection.add(e.getPoint());
+						repaint();
+						return;
+					}
 					sendMouseMove(e);
 				}
 
 				private void sendMouseMove(MouseEvent e) {
+					if (selectingRegion) {
+						return;
+					}
 					// Map local panel coordinates to the remote screen's coordinate system
 					int mappedX = e.getX() * screenWidth / getWidth();
 					int mappedY = e.getY() * screenHeight / getHeight();
-					try {
-						mouseOutputStream.writeInt(1); // MOUSE_MOVE
-						mouseOutputStream.writeInt(mappedX);
-						mouseOutputStream.writeInt(mappedY);
-						mouseOutputStream.flush();
-					} catch (IOException ex) {
-						ex.printStackTrace();
-					}
+					inputBatcher.mouseMove(mappedX, mappedY);
 				}
 			});
 
@@ -319,53 +829,126 @@ public class NetworkScreenClient extends JFrame {
 			addMouseListener(new MouseAdapter() {
 				@Override
 				public void mousePressed(MouseEvent e) {
-					try {
-						mouseOutputStream.writeInt(2); // MOUSE_PRESSED
-						mouseOutputStream.writeInt(e.getButton());
-						mouseOutputStream.flush();
-					} catch (IOException ex) {
-						ex.printStackTrace();
+					if (selectingRegion) {
+						selectionStart = e.getPoint();
+						return;
+					}
+					if (e.isControlDown()) {
+						panStart = e.getPoint();
+						panStartX = viewportX;
+						panStartY = viewportY;
+						return;
 					}
+					inputBatcher.mousePress(e.getButton());
 				}
 
 				@Override
 				public void mouseReleased(MouseEvent e) {
-					try {
-						mouseOutputStream.writeInt(3); // MOUSE_RELEASED
-						mouseOutputStream.writeInt(e.getButton());
-						mouseOutputStream.flush();
-					} catch (IOException ex) {
-						ex.printStackTrace();
+					if (selectingRegion) {
+						finishSelection();
+						return;
 					}
+					if (panStart != null) {
+						// The server streams the new part once the pan is done
+						panStart = null;
+						if (viewportX != panStartX || viewportY != panStartY) {
+							sendViewport();
+						}
+						return;
+					}
+					inputBatcher.mouseRelease(e.getButton());
 				}
 			});
 
-			// Mouse wheel events
+			// Mouse wheel events; high-resolution wheels report fractions of a notch as 0
 			addMouseWheelListener(e -> {
-				try {
-					if (e.getWheelRotation() < 0) {
-						mouseOutputStream.writeInt(4); // MOUSE_DOWN_WHEEL
-					} else {
-						mouseOutputStream.writeInt(5); // MOUSE_UP_WHEEL
-					}
-					mouseOutputStream.flush();
-				} catch (IOException ex) {
-					ex.printStackTrace();
+				if (selectingRegion) {
+					return;
+				}
+				if (e.isControlDown()) {
+					zoomAt(e.getPreciseWheelRotation() < 0 ? ZOOM_STEP : 1 / ZOOM_STEP, e.getX(), e.getY());
+					return;
 				}
+				int notches = e.getWheelRotation();
+				if (notches == 0) {
+					notches = e.getPreciseWheelRotation() < 0 ? -1 : 1;
+				}
+				inputBatcher.mouseWheel(notches);
 			});
 		}
 
+		/**
+		 * Acknowledges the newest painted frame on the ack channel, echoing its sequence number and
+		 * capture time together with the time this client spent on it. Runs on the ack thread; acks
+		 * are cumulative, so a frame painted over before its ack went out needs none of its own.
+		 */
+		private void sendAck() {
+			FrameTiming timing = pendingAck.getAndSet(null);
+			if (timing == null) {
+				return;
+			}
+			// A fresh buffer each time: the connection may queue it until another writer is done
+			ByteBuffer message = ByteBuffer.allocate(ACK_MESSAGE_LENGTH);
+			message.putInt(timing.sequence);
+			message.putLong(timing.captureNanos);
+			message.putInt(timing.receiveMicros);
+			message.putInt(timing.decodeMicros);
+			message.putInt(timing.paintMicros);
+			message.flip();
+			try {
+				connection.send(MuxConnection.CHANNEL_ACK, message);
+			} catch (IOException ex) {
+				Log.error("Unable to acknowledge frame " + timing.sequence, ex);
+			}
+		}
+
 		@Override
 		protected void paintComponent(Graphics g) {
-			super.paintComponent(g);
-			if (latestImage != null) {
-				// Draw the image scaled to the panel size
-				g.drawImage(latestImage, 0, 0, getWidth(), getHeight(), this);
+			// The view covers the panel, so the background is only painted until there is one
+			if (!renderer.paint(g, getWidth(), getHeight())) {
+				super.paintComponent(g);
+			}
+			if (selection != null) {
+				g.setColor(Color.YELLOW);
+				g.drawRect(selection.x, selection.y, selection.width, selection.height);
+			}
+			FrameTiming painted = pendingPaint.getAndSet(null);
+			if (painted != null) {
+				int paintMicros = (int) ((System.nanoTime() - painted.decodedNanos) / 1000);
+				framesInFlight.set(0);
+				paintedFrames.incrementAndGet();
+				statsPaintMicros.addAndGet(paintMicros);
+				PAINT_TIME.record(paintMicros);
+				FRAMES_PAINTED.increment();
+				painted.paintMicros = paintMicros;
+				// Only the paint that finds no ack waiting wakes the ack thread
+				if (pendingAck.getAndSet(painted) == null) {
+					try {
+						ackExecutor.execute(this::sendAck);
+					} catch (RejectedExecutionException ex) {
+						// The connection is gone and the ack thread with it
+					}
+				}
 			}
 		}
 	}
 
+	/**
+	 * Timings of one decoded frame, carried from the reader thread to the paint that shows it and on
+	 * to the ack thread.
+	 */
+	private static class FrameTiming {
+		int sequence;
+		long captureNanos;
+		int serverMicros;
+		int receiveMicros;
+		int decodeMicros;
+		long decodedNanos;
+		int paintMicros;
+	}
+
 	public static void main(String[] args) {
+		Metrics.startFromSystemProperties();
 		SwingUtilities.invokeLater(NetworkScreenClient::new);
 	}
 }
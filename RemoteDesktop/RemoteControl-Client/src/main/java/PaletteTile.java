@@ -0,0 +1,316 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * PaletteTile encodes tiles with few colours, such as the text of terminals, editors and
+ * spreadsheets, as a palette and an index per pixel instead of a colour per pixel. Keep this
+ * class identical on the client and the server.
+ *
+ * Every tile of a delta update starts with an encoding byte:
+ *   RAW:     the pixels in the stream's format, BGR or YUV 4:2:0
+ *   PALETTE: byte colourCount - 1, colourCount x 3 BGR bytes, then per row the indices packed at
+ *            0, 1, 2, 4 or 8 bits, most significant bits first, each row padded to a whole byte
+ *   RUNS:    the same palette, then { byte index, varint length - 1 } runs in row order
+ *
+ * The encoder sends whichever of the three is smallest. A tile with more colours than
+ * {@link #MAX_COLORS}, such as part of a photo, stays raw; that is found within the first few
+ * hundred pixels. Palette colours are exact, so text stays sharp on a YUV 4:2:0 stream too.
+ * The indices and runs are staged in per-thread buffers, so the band threads encode and decode
+ * in parallel without allocating.
+ */
+public final class PaletteTile {
+    public static final byte RAW = 0;
+    public static final byte PALETTE = 1;
+    public static final byte RUNS = 2;
+    public static final int MAX_COLORS = 256;
+
+    private static final int BYTES_PER_PIXEL = 3;
+    // Colour lookup by open addressing, at most half full
+    private static final int TABLE_BITS = 9;
+    private static final int TABLE_MASK = (1 << TABLE_BITS) - 1;
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    private PaletteTile() {
+    }
+
+    /**
+     * Writes the encoding byte and the w x h tile at x, y of a BGR image that is {@code stride}
+     * pixels wide, as a palette, if that takes fewer bytes than sending it raw.
+     *
+     * @param rawLength the bytes of the tile's pixels when sent raw
+     * @return false, with nothing written, when the tile is better sent raw
+     */
+    public static boolean encode(byte[] bgr, int stride, int x, int y, int w, int h, int rawLength,
+                                 ByteBuffer output) {
+        Scratch scratch = SCRATCH.get();
+        byte[] indices = scratch.indices(w * h);
+        scratch.clearColors();
+        int previousColor = -1;
+        int index = 0;
+        int runLength = 0;
+        int runsLength = 0;
+        int pixel = 0;
+        for (int row = 0; row < h; row++) {
+            int offset = ((y + row) * stride + x) * BYTES_PER_PIXEL;
+            for (int i = 0; i < w; i++, offset += BYTES_PER_PIXEL) {
+                int color = (bgr[offset] & 0xFF) | (bgr[offset + 1] & 0xFF) << 8 | (bgr[offset + 2] & 0xFF) << 16;
+                if (color != previousColor) {
+                    // Neighbouring pixels mostly share a colour, so the table is seldom looked at
+                    index = scratch.indexOf(color);
+                    if (index < 0) {
+                        return false;
+                    }
+                    if (runLength > 0) {
+                        runsLength += 1 + varintLength(runLength - 1);
+                    }
+                    previousColor = color;
+                    runLength = 0;
+                }
+                indices[pixel++] = (byte) index;
+                runLength++;
+            }
+        }
+        runsLength += 1 + varintLength(runLength - 1);
+
+        int colorCount = scratch.colorCount;
+        int bits = bitsPerIndex(colorCount);
+        int packedLength = h * rowLength(w, bits);
+        int paletteLength = 1 + colorCount * BYTES_PER_PIXEL;
+        if (paletteLength + Math.min(packedLength, runsLength) >= rawLength) {
+            return false;
+        }
+        output.put(packedLength <= runsLength ? PALETTE : RUNS);
+        output.put((byte) (colorCount - 1));
+        for (int i = 0; i < colorCount; i++) {
+            int color = scratch.colors[i];
+            output.put((byte) color).put((byte) (color >> 8)).put((byte) (color >> 16));
+        }
+        byte[] data = scratch.data(Math.min(packedLength, runsLength));
+        int length = packedLength <= runsLength
+                ? pack(indices, w, h, bits, data)
+                : writeRuns(indices, w * h, data);
+        output.put(data, 0, length);
+        return true;
+    }
+
+    /**
+     * Reads a tile in the PALETTE or RUNS encoding, after its encoding byte, and writes its
+     * pixels at x, y of a BGR image that is {@code stride} pixels wide.
+     */
+    public static void decode(byte encoding, ByteBuffer input, byte[] bgr, int stride, int x, int y, int w, int h)
+            throws IOException {
+        Scratch scratch = SCRATCH.get();
+        try {
+            int colorCount = (input.get() & 0xFF) + 1;
+            byte[] palette = scratch.palette;
+            input.get(palette, 0, colorCount * BYTES_PER_PIXEL);
+            if (encoding == PALETTE) {
+                decodePacked(input, scratch, palette, colorCount, bgr, stride, x, y, w, h);
+            } else if (encoding == RUNS) {
+                decodeRuns(input, palette, colorCount, bgr, stride, x, y, w, h);
+            } else {
+                throw new IOException("Unknown tile encoding " + encoding);
+            }
+        } catch (BufferUnderflowException ex) {
+            throw new IOException("Palette tile at " + x + "," + y + " is cut short");
+        }
+    }
+
+    private static void decodePacked(ByteBuffer input, Scratch scratch, byte[] palette, int colorCount,
+                                     byte[] bgr, int stride, int x, int y, int w, int h) throws IOException {
+        int bits = bitsPerIndex(colorCount);
+        int rowLength = rowLength(w, bits);
+        byte[] data = scratch.data(h * rowLength);
+        input.get(data, 0, h * rowLength);
+        int mask = (1 << bits) - 1;
+        for (int row = 0; row < h; row++) {
+            int source = row * rowLength;
+            int target = ((y + row) * stride + x) * BYTES_PER_PIXEL;
+            for (int i = 0; i < w; i++, target += BYTES_PER_PIXEL) {
+                int index = 0;
+                if (bits > 0) {
+                    int bit = i * bits;
+                    index = (data[source + (bit >> 3)] >> (8 - bits - (bit & 7))) & mask;
+                    if (index >= colorCount) {
+                        throw new IOException("Palette index " + index + " of " + colorCount + " colours");
+                    }
+                }
+                int color = index * BYTES_PER_PIXEL;
+                bgr[target] = palette[color];
+                bgr[target + 1] = palette[color + 1];
+                bgr[target + 2] = palette[color + 2];
+            }
+        }
+    }
+
+    private static void decodeRuns(ByteBuffer input, byte[] palette, int colorCount,
+                                   byte[] bgr, int stride, int x, int y, int w, int h) throws IOException {
+        int pixels = w * h;
+        int pixel = 0;
+        int column = 0;
+        int target = (y * stride + x) * BYTES_PER_PIXEL;
+        while (pixel < pixels) {
+            int index = input.get() & 0xFF;
+            int length = readVarint(input) + 1;
+            if (index >= colorCount || length <= 0 || length > pixels - pixel) {
+                throw new IOException("Invalid run of " + length + " pixels of colour " + index
+                        + " at pixel " + pixel);
+            }
+            int color = index * BYTES_PER_PIXEL;
+            byte b = palette[color];
+            byte g = palette[color + 1];
+            byte r = palette[color + 2];
+            pixel += length;
+            for (int i = 0; i < length; i++) {
+                bgr[target] = b;
+                bgr[target + 1] = g;
+                bgr[target + 2] = r;
+                target += BYTES_PER_PIXEL;
+                if (++column == w) {
+                    column = 0;
+                    target += (stride - w) * BYTES_PER_PIXEL;
+                }
+            }
+        }
+    }
+
+    // The fewest of the supported index widths that hold every index; a single colour needs none
+    private static int bitsPerIndex(int colorCount) {
+        if (colorCount <= 1) {
+            return 0;
+        } else if (colorCount <= 2) {
+            return 1;
+        } else if (colorCount <= 4) {
+            return 2;
+        } else if (colorCount <= 16) {
+            return 4;
+        }
+        return 8;
+    }
+
+    private static int rowLength(int w, int bits) {
+        return (w * bits + 7) / 8;
+    }
+
+    private static int pack(byte[] indices, int w, int h, int bits, byte[] data) {
+        int length = 0;
+        if (bits == 0) {
+            return 0;
+        }
+        for (int row = 0; row < h; row++) {
+            int packed = 0;
+            int used = 0;
+            for (int i = row * w; i < (row + 1) * w; i++) {
+                packed = packed << bits | (indices[i] & 0xFF);
+                used += bits;
+                if (used == 8) {
+                    data[length++] = (byte) packed;
+                    packed = 0;
+                    used = 0;
+                }
+            }
+            if (used > 0) {
+                data[length++] = (byte) (packed << (8 - used));
+            }
+        }
+        return length;
+    }
+
+    private static int writeRuns(byte[] indices, int pixels, byte[] data) {
+        int length = 0;
+        int start = 0;
+        while (start < pixels) {
+            byte index = indices[start];
+            int end = start + 1;
+            while (end < pixels && indices[end] == index) {
+                end++;
+            }
+            data[length++] = index;
+            for (int value = end - start - 1; ; value >>>= 7) {
+                if ((value & ~0x7F) == 0) {
+                    data[length++] = (byte) value;
+                    break;
+                }
+                data[length++] = (byte) ((value & 0x7F) | 0x80);
+            }
+            start = end;
+        }
+        return length;
+    }
+
+    private static int varintLength(int value) {
+        int length = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    private static int readVarint(ByteBuffer input) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = input.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Run length varint is too long");
+    }
+
+    /**
+     * The buffers of one thread: the colour table of the tile being encoded, and the indices and
+     * packed data grown to the largest tile seen.
+     */
+    private static final class Scratch {
+        private final int[] table = new int[1 << TABLE_BITS];
+        private final int[] tableIndex = new int[1 << TABLE_BITS];
+        private final int[] colors = new int[MAX_COLORS];
+        private final byte[] palette = new byte[MAX_COLORS * BYTES_PER_PIXEL];
+        private int colorCount;
+        private byte[] indices = new byte[0];
+        private byte[] data = new byte[0];
+
+        void clearColors() {
+            Arrays.fill(table, 0);
+            colorCount = 0;
+        }
+
+        // The palette index of the colour, added if it is new, or -1 when the palette is full
+        int indexOf(int color) {
+            int slot = (color * 0x9E3779B1) >>> (32 - TABLE_BITS);
+            // Stored as colour + 1 so that 0 marks a free slot
+            while (table[slot] != 0) {
+                if (table[slot] == color + 1) {
+                    return tableIndex[slot];
+                }
+                slot = (slot + 1) & TABLE_MASK;
+            }
+            if (colorCount == MAX_COLORS) {
+                return -1;
+            }
+            table[slot] = color + 1;
+            tableIndex[slot] = colorCount;
+            colors[colorCount] = color;
+            return colorCount++;
+        }
+
+        byte[] indices(int length) {
+            if (indices.length < length) {
+                indices = new byte[length];
+            }
+            return indices;
+        }
+
+        byte[] data(int length) {
+            if (data.length < length) {
+                data = new byte[length];
+            }
+            return data;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ScreenRenderer keeps a view of the decoded frame at the size it is shown, in images
+ * compatible with the screen, and brings it up to date off the event dispatch thread.
+ *
+ * After each decode, only the regions the frame changed are scaled from the decoder's BGR frame
+ * into a view, which converts their pixels to the screen format once. The paint then copies
+ * the view unscaled, and only the part inside its clip, so a small change costs a small repaint
+ * and the event dispatch thread never rescales a whole frame. The regions of the view that
+ * changed are returned for the caller to repaint.
+ *
+ * The views are triple buffered: the decoding thread draws into a back view while the painter
+ * shows the front one, and a finished view is handed over by a single atomic swap with the
+ * middle slot. The painter always takes the newest finished view, so it never sees one half
+ * drawn and never waits, and the decoder never waits for a paint; no image is allocated per
+ * frame. Each view remembers the regions changed since it was last drawn into, so a view that
+ * comes back after sitting out a frame or two is brought up to date incrementally too.
+ */
+public class ScreenRenderer {
+	private static final int VIEW_COUNT = 3;
+	// Set in the middle slot when it holds a view the painter has not taken yet
+	private static final int FRESH = 1 << 8;
+	private static final int INDEX_MASK = FRESH - 1;
+	// More pending regions than this in a view are merged into their bounds
+	private static final int MAX_PENDING_REGIONS = 32;
+
+	// Replaced on the decoding thread when the view size changes, read by the paints
+	private volatile Views views;
+	// The frame the views were last rendered from; another frame means a full redraw
+	private BufferedImage lastFrame;
+	private final Rectangle viewRegion = new Rectangle();
+	private final Rectangle viewBounds = new Rectangle();
+	private final List<Rectangle> changedRegions = new ArrayList<>();
+
+	/**
+	 * Redraws the whole view on the next render, for example after a seek. Called on the thread
+	 * that renders.
+	 */
+	public void invalidate() {
+		lastFrame = null;
+	}
+
+	/**
+	 * Brings a view up to date with the regions of the frame that changed and publishes it.
+	 * Called on the thread that decodes the frames.
+	 *
+	 * @param frame the decoded frame
+	 * @param dirtyRegions the regions of the frame that changed since the last render
+	 * @param viewWidth width to show the frame at
+	 * @param viewHeight height to show the frame at
+	 * @param configuration where the view is shown, or null if not known yet
+	 * @return the regions of the view that changed, valid until the next render
+	 */
+	public List<Rectangle> render(BufferedImage frame, List<Rectangle> dirtyRegions, int viewWidth, int viewHeight,
+			GraphicsConfiguration configuration) {
+		changedRegions.clear();
+		if (viewWidth <= 0 || viewHeight <= 0) {
+			return changedRegions;
+		}
+		viewBounds.setBounds(0, 0, viewWidth, viewHeight);
+		Views current = views;
+		boolean replaced = current == null || current.width != viewWidth || current.height != viewHeight;
+		if (replaced) {
+			current = new Views(viewWidth, viewHeight, configuration);
+		}
+		if (replaced || frame != lastFrame) {
+			lastFrame = frame;
+			changedRegions.add(new Rectangle(viewBounds));
+		} else {
+			mapToView(frame, dirtyRegions);
+		}
+		for (int i = 0; i < VIEW_COUNT; i++) {
+			current.addPending(i, changedRegions, viewBounds);
+		}
+
+		int back = current.back;
+		Graphics2D g = current.images[back].createGraphics();
+		try {
+			for (Rectangle region : current.pending.get(back)) {
+				// Drawing the whole frame through the clip gives the same pixels as a full redraw,
+				// without seams between regions, while only the clipped pixels are scaled
+				g.setClip(region);
+				g.drawImage(frame, 0, 0, viewWidth, viewHeight, null);
+			}
+		} finally {
+			g.dispose();
+		}
+		current.pending.get(back).clear();
+		current.back = current.middle.getAndSet(back | FRESH) & INDEX_MASK;
+		if (replaced) {
+			// Published with a finished view in the middle slot, so it is never painted blank
+			views = current;
+		}
+		return changedRegions;
+	}
+
+	// Adds the view regions that sample the dirty regions of the frame to changedRegions, as new
+	// rectangles
+	private void mapToView(BufferedImage frame, List<Rectangle> dirtyRegions) {
+		int frameWidth = frame.getWidth();
+		int frameHeight = frame.getHeight();
+		for (Rectangle dirty : dirtyRegions) {
+			// Widened by one for the rounding of the scale
+			int x0 = (int) ((long) dirty.x * viewBounds.width / frameWidth) - 1;
+			int y0 = (int) ((long) dirty.y * viewBounds.height / frameHeight) - 1;
+			int x1 = (int) (((long) (dirty.x + dirty.width) * viewBounds.width + frameWidth - 1) / frameWidth) + 1;
+			int y1 = (int) (((long) (dirty.y + dirty.height) * viewBounds.height + frameHeight - 1) / frameHeight) + 1;
+			viewRegion.setBounds(x0, y0, x1 - x0, y1 - y0);
+			Rectangle region = viewRegion.intersection(viewBounds);
+			if (!region.isEmpty()) {
+				changedRegions.add(region);
+			}
+		}
+	}
+
+	/**
+	 * Copies the part of the newest finished view inside the clip to the graphics; unscaled
+	 * unless the size to show it at has changed since it was rendered. Returns false when no
+	 * view has been rendered yet, so the caller paints the background instead. Called on the
+	 * event dispatch thread.
+	 */
+	public boolean paint(Graphics g, int viewWidth, int viewHeight) {
+		Views current = views;
+		if (current == null) {
+			return false;
+		}
+		if ((current.middle.get() & FRESH) != 0) {
+			current.front = current.middle.getAndSet(current.front) & INDEX_MASK;
+		}
+		BufferedImage image = current.images[current.front];
+		if (current.width == viewWidth && current.height == viewHeight) {
+			g.drawImage(image, 0, 0, null);
+		} else {
+			// Until the next frame renders views of the new size
+			g.drawImage(image, 0, 0, viewWidth, viewHeight, null);
+		}
+		return true;
+	}
+
+	/**
+	 * A set of views of one size. The back view belongs to the decoding thread and the front
+	 * view to the painter; the middle slot holds the third and is only touched by atomic swaps.
+	 */
+	private static final class Views {
+		final int width;
+		final int height;
+		final BufferedImage[] images = new BufferedImage[VIEW_COUNT];
+		// Regions of each view that are out of date; used by the decoding thread only
+		final List<List<Rectangle>> pending = new ArrayList<>(VIEW_COUNT);
+		final AtomicInteger middle = new AtomicInteger(1);
+		int back = 2;
+		int front = 0;
+
+		Views(int width, int height, GraphicsConfiguration configuration) {
+			this.width = width;
+			this.height = height;
+			for (int i = 0; i < VIEW_COUNT; i++) {
+				images[i] = configuration != null
+						? configuration.createCompatibleImage(width, height, Transparency.OPAQUE)
+						: new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+				pending.add(new ArrayList<>());
+			}
+		}
+
+		// Adds the regions to a view's pending ones, merging overlapping regions so a view that
+		// sat out a few frames does not redraw the same pixels once per frame
+		void addPending(int view, List<Rectangle> regions, Rectangle bounds) {
+			List<Rectangle> viewPending = pending.get(view);
+			for (Rectangle region : regions) {
+				// The regions are new for every frame and never changed, so the views share them
+				Rectangle merged = region;
+				for (int i = viewPending.size() - 1; i >= 0; i--) {
+					Rectangle other = viewPending.get(i);
+					if (other.intersects(merged)) {
+						merged = merged.union(other);
+						viewPending.remove(i);
+						// The larger region may overlap ones already passed
+						i = viewPending.size();
+					}
+				}
+				viewPending.add(merged);
+			}
+			if (viewPending.size() > MAX_PENDING_REGIONS) {
+				Rectangle union = new Rectangle(viewPending.get(0));
+				for (Rectangle region : viewPending) {
+					union.add(region);
+				}
+				viewPending.clear();
+				viewPending.add(union.intersection(bounds));
+			}
+		}
+	}
+}
@@ -0,0 +1,402 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * SessionFile reads a recorded session: a server recording or a client capture of the stream.
+ * The file is memory-mapped, so a record's payload is handed out as a view of the mapping
+ * without copying, and seeking uses the time index instead of reading through the file.
+ * {@link Writer} writes the format.
+ *
+ * File layout (all numbers big-endian):
+ *   header:  int MAGIC, int VERSION, long start time (epoch milliseconds)
+ *   records: byte type, int payload length, long time (microseconds since the start), payload
+ *   trailer: an INDEX record, then long offset of the INDEX record, int END_MAGIC
+ *
+ * Record types:
+ *   CONFIG    the stream configuration message, as sent on the control channel
+ *   KEYFRAME  a video message (frame header and body) that holds the whole picture
+ *   DELTA     a video message that updates the picture decoded before it
+ *   INDEX     one entry per keyframe: long time, long offset of the CONFIG record in effect,
+ *             long offset of the KEYFRAME record
+ *
+ * The file is only ever appended to. A recording that was cut short has no trailer; it is
+ * then read by scanning its records, and a torn last record is ignored.
+ *
+ * The server and the client keep identical copies of this class.
+ */
+public class SessionFile implements Closeable {
+    public static final int MAGIC = 0x52435331; // "RCS1"
+    public static final int VERSION = 4;
+    public static final int END_MAGIC = 0x52435345; // "RCSE"
+    public static final int HEADER_LENGTH = 4 + 4 + 8;
+    public static final int RECORD_HEADER_LENGTH = 1 + 4 + 8;
+    public static final int TRAILER_LENGTH = 8 + 4;
+    public static final int INDEX_ENTRY_LENGTH = 3 * 8;
+
+    public static final byte RECORD_CONFIG = 1;
+    public static final byte RECORD_KEYFRAME = 2;
+    public static final byte RECORD_DELTA = 3;
+    public static final byte RECORD_INDEX = 4;
+
+    // Records are read through a mapped window of this size, moved along as needed
+    private static final long WINDOW_SIZE = 256L * 1024 * 1024;
+
+    private final FileChannel channel;
+    private final long startEpochMillis;
+    // End of the last complete record; the whole file until that is known
+    private long endOffset;
+    // Time index: time, config offset and keyframe offset of every keyframe, in time order
+    private final long[] index;
+    private final int keyframeCount;
+    private final long durationMicros;
+
+    private ByteBuffer window;
+    private long windowStart;
+
+    public SessionFile(File file) throws IOException {
+        channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            endOffset = size;
+            if (size < HEADER_LENGTH) {
+                throw new IOException(file + " is not a recorded session");
+            }
+            ByteBuffer header = map(0, HEADER_LENGTH, size);
+            if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+                throw new IOException(file + " is not a recorded session");
+            }
+            startEpochMillis = header.getLong();
+
+            Record record = new Record();
+            long indexOffset = trailerIndexOffset(size);
+            if (indexOffset >= 0 && read(indexOffset, record) && record.type == RECORD_INDEX) {
+                ByteBuffer entries = record.payload;
+                keyframeCount = entries.remaining() / INDEX_ENTRY_LENGTH;
+                index = new long[keyframeCount * 3];
+                for (int i = 0; i < index.length; i++) {
+                    index[i] = entries.getLong();
+                }
+                endOffset = indexOffset;
+            } else {
+                // No trailer: the recorder did not finish, so rebuild the index from the records
+                LongList entries = new LongList();
+                long offset = HEADER_LENGTH;
+                long configOffset = -1;
+                while (read(offset, record) && record.type != RECORD_INDEX) {
+                    if (record.type == RECORD_CONFIG) {
+                        configOffset = offset;
+                    } else if (record.type == RECORD_KEYFRAME && configOffset >= 0) {
+                        entries.add(record.timeMicros);
+                        entries.add(configOffset);
+                        entries.add(offset);
+                    }
+                    offset = record.nextOffset;
+                }
+                index = entries.toArray();
+                keyframeCount = index.length / 3;
+                endOffset = offset;
+            }
+            durationMicros = findDuration(record);
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex;
+        }
+    }
+
+    public long getStartEpochMillis() {
+        return startEpochMillis;
+    }
+
+    /**
+     * Time of the last frame, in microseconds since the start.
+     */
+    public long getDurationMicros() {
+        return durationMicros;
+    }
+
+    public int getKeyframeCount() {
+        return keyframeCount;
+    }
+
+    /**
+     * Offset of the first record, where playback from the start begins.
+     */
+    public long firstOffset() {
+        return HEADER_LENGTH;
+    }
+
+    /**
+     * Finds the last keyframe at or before a time. Decoding its CONFIG record, the keyframe and
+     * the deltas after it up to {@code timeMicros} reproduces the picture at that time.
+     *
+     * @return the index of the keyframe, or -1 if the recording has none at or before the time
+     */
+    public int findKeyframe(long timeMicros) {
+        int low = 0;
+        int high = keyframeCount - 1;
+        int found = -1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (index[middle * 3] <= timeMicros) {
+                found = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        return found;
+    }
+
+    public long getKeyframeTime(int keyframe) {
+        return index[keyframe * 3];
+    }
+
+    /**
+     * Offset of the CONFIG record the keyframe was encoded with.
+     */
+    public long getKeyframeConfigOffset(int keyframe) {
+        return index[keyframe * 3 + 1];
+    }
+
+    public long getKeyframeOffset(int keyframe) {
+        return index[keyframe * 3 + 2];
+    }
+
+    /**
+     * Reads the record at {@code offset} into {@code record}. Its payload is a view of the
+     * mapping and stays valid until the next read.
+     *
+     * @return false at the end of the recording
+     */
+    public boolean read(long offset, Record record) throws IOException {
+        long limit = endOffset;
+        if (offset + RECORD_HEADER_LENGTH > limit) {
+            return false;
+        }
+        ByteBuffer header = map(offset, RECORD_HEADER_LENGTH, limit);
+        byte type = header.get();
+        int length = header.getInt();
+        long timeMicros = header.getLong();
+        long payloadOffset = offset + RECORD_HEADER_LENGTH;
+        if (type < RECORD_CONFIG || type > RECORD_INDEX || length < 0 || payloadOffset + length > limit) {
+            return false;
+        }
+        record.type = type;
+        record.timeMicros = timeMicros;
+        record.offset = offset;
+        record.nextOffset = payloadOffset + length;
+        record.payload = map(payloadOffset, length, limit);
+        return true;
+    }
+
+    // Returns the index offset the trailer points to, or -1 without a valid trailer
+    private long trailerIndexOffset(long size) throws IOException {
+        if (size < HEADER_LENGTH + RECORD_HEADER_LENGTH + TRAILER_LENGTH) {
+            return -1;
+        }
+        ByteBuffer trailer = map(size - TRAILER_LENGTH, TRAILER_LENGTH, size);
+        long indexOffset = trailer.getLong();
+        if (trailer.getInt() != END_MAGIC || indexOffset < HEADER_LENGTH || indexOffset >= size - TRAILER_LENGTH) {
+            return -1;
+        }
+        return indexOffset;
+    }
+
+    // The last frame is after the last keyframe, so only the records from there on are read
+    private long findDuration(Record record) throws IOException {
+        if (keyframeCount == 0) {
+            return 0;
+        }
+        long duration = getKeyframeTime(keyframeCount - 1);
+        long offset = getKeyframeOffset(keyframeCount - 1);
+        while (read(offset, record) && record.type != RECORD_INDEX) {
+            duration = Math.max(duration, record.timeMicros);
+            offset = record.nextOffset;
+        }
+        return duration;
+    }
+
+    // Returns a view of [offset, offset + length), moving the mapped window if it does not cover it
+    private ByteBuffer map(long offset, int length, long limit) throws IOException {
+        if (window == null || offset < windowStart || offset + length > windowStart + window.capacity()) {
+            windowStart = offset;
+            long size = Math.min(limit - offset, Math.max(WINDOW_SIZE, length));
+            window = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+        }
+        ByteBuffer view = window.duplicate();
+        view.position((int) (offset - windowStart));
+        view.limit(view.position() + length);
+        return view.slice();
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+    }
+
+    /**
+     * Writer appends records to a new session file and finishes it with the time index when it
+     * is closed. Only one thread may use a writer.
+     */
+    public static class Writer implements Closeable {
+        private final FileChannel channel;
+        private final ByteBuffer recordHeader = ByteBuffer.allocateDirect(RECORD_HEADER_LENGTH);
+        private final ByteBuffer[] record = new ByteBuffer[2];
+        private final ByteBuffer empty = ByteBuffer.allocate(0);
+        private final LongList index = new LongList();
+        private long position = 0;
+        private long lastTimeMicros = 0;
+        private long configOffset = -1;
+        private long frameCount = 0;
+
+        /**
+         * Creates the file, replacing an existing one, and writes its header.
+         */
+        public Writer(File file) throws IOException {
+            channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            header.putInt(MAGIC);
+            header.putInt(VERSION);
+            header.putLong(System.currentTimeMillis());
+            header.flip();
+            writeFully(header, empty);
+        }
+
+        /**
+         * Appends a stream configuration message; the frames after it were encoded with it.
+         */
+        public void writeConfig(ByteBuffer message) throws IOException {
+            configOffset = position;
+            write(RECORD_CONFIG, lastTimeMicros, message);
+        }
+
+        /**
+         * Appends a video message.
+         *
+         * @param timeMicros time since the start of the recording; earlier times than the last
+         *                   frame's are moved up to it, so the records stay in time order
+         * @param keyframe   true when the frame holds the whole picture
+         */
+        public void writeFrame(long timeMicros, boolean keyframe, ByteBuffer message) throws IOException {
+            timeMicros = Math.max(lastTimeMicros, timeMicros);
+            // A keyframe is only a seek point once a configuration has been written before it
+            if (keyframe && configOffset >= 0) {
+                index.add(timeMicros);
+                index.add(configOffset);
+                index.add(position);
+            }
+            lastTimeMicros = timeMicros;
+            frameCount++;
+            write(keyframe ? RECORD_KEYFRAME : RECORD_DELTA, timeMicros, message);
+        }
+
+        public long getFrameCount() {
+            return frameCount;
+        }
+
+        public int getKeyframeCount() {
+            return index.size() / 3;
+        }
+
+        /**
+         * Bytes written so far.
+         */
+        public long getLength() {
+            return position;
+        }
+
+        private void write(byte type, long timeMicros, ByteBuffer payload) throws IOException {
+            recordHeader.clear();
+            recordHeader.put(type);
+            recordHeader.putInt(payload.remaining());
+            recordHeader.putLong(timeMicros);
+            recordHeader.flip();
+            writeFully(recordHeader, payload);
+        }
+
+        private void writeFully(ByteBuffer header, ByteBuffer payload) throws IOException {
+            record[0] = header;
+            record[1] = payload;
+            while (header.hasRemaining() || payload.hasRemaining()) {
+                position += channel.write(record);
+            }
+        }
+
+        /**
+         * Appends the INDEX record and the trailer that points to it, and closes the file.
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                ByteBuffer entries = ByteBuffer.allocate(index.size() * 8);
+                for (int i = 0; i < index.size(); i++) {
+                    entries.putLong(index.get(i));
+                }
+                entries.flip();
+                long indexOffset = position;
+                write(RECORD_INDEX, lastTimeMicros, entries);
+                ByteBuffer trailer = ByteBuffer.allocate(TRAILER_LENGTH);
+                trailer.putLong(indexOffset);
+                trailer.putInt(END_MAGIC);
+                trailer.flip();
+                writeFully(trailer, empty);
+            } finally {
+                channel.close();
+            }
+        }
+
+        /**
+         * Closes the file without the index, for when a write failed. Readers treat it as a
+         * recording that was cut short.
+         */
+        public void abandon() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * One record of the file, filled in by {@link #read}.
+     */
+    public static class Record {
+        public byte type;
+        public long timeMicros;
+        public long offset;
+        public long nextOffset;
+        public ByteBuffer payload;
+    }
+
+    // A growable array of longs, for the index
+    private static class LongList {
+        private long[] values = new long[3 * 64];
+        private int size;
+
+        void add(long value) {
+            if (size == values.length) {
+                long[] grown = new long[values.length * 2];
+                System.arraycopy(values, 0, grown, 0, size);
+                values = grown;
+            }
+            values[size++] = value;
+        }
+
+        int size() {
+            return size;
+        }
+
+        long get(int i) {
+            return values[i];
+        }
+
+        long[] toArray() {
+            long[] result = new long[size];
+            System.arraycopy(values, 0, result, 0, size);
+            return result;
+        }
+    }
+}
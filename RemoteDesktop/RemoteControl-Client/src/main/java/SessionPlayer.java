@@ -0,0 +1,336 @@
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * SessionPlayer plays a saved stream (a capture made by this client or a server recording) back
+ * through the same FrameDecoder as the live view. The file is memory-mapped and frames are
+ * decoded straight from the mapping, so playback holds no more than the decoder's frame and
+ * decompression buffers, however long the session.
+ *
+ * Seeking jumps to the last keyframe at or before the target time through the file's index and
+ * decodes the deltas from there. Playback runs at 1x to 16x; when decoding cannot keep up with
+ * the chosen speed it skips ahead to the next keyframe instead of falling further behind.
+ */
+public class SessionPlayer extends JPanel {
+	private static final String[] SPEEDS = {"1x", "2x", "4x", "8x", "16x"};
+	// Playback more than this far behind schedule jumps ahead through the index
+	private static final long MAX_LAG_MICROS = TimeUnit.MILLISECONDS.toMicros(500);
+	private static final int SLIDER_UPDATE_MILLIS = 100;
+	private static final int FRAME_HEADER_LENGTH = 4 + 8 + 4;
+
+	private final SessionFile session;
+	private final FrameDecoder frameDecoder = new FrameDecoder(Runtime.getRuntime().availableProcessors());
+	private final SessionFile.Record record = new SessionFile.Record();
+	private final Runnable onClose;
+	private final Thread playbackThread;
+
+	// Playback state, guarded by lock; the player thread waits on it
+	private final Object lock = new Object();
+	private boolean playing = false;
+	private int speed = 1;
+	private long seekTarget = -1;
+	private boolean closed = false;
+
+	// Owned by the player thread
+	private long position;
+	private boolean configured = false;
+	// Wall clock and session time that the schedule is counted from
+	private long anchorNanos;
+	private long anchorMicros;
+
+	// Session time of the frame on screen, read by the slider timer
+	private volatile long currentMicros = 0;
+	private volatile BufferedImage image;
+	// Keeps the frame scaled to the area above the controls in triple-buffered views, updated on
+	// the player thread
+	private final ScreenRenderer renderer = new ScreenRenderer();
+
+	private final JButton playButton = new JButton("Play");
+	private final JComboBox<String> speedComboBox = new JComboBox<>(SPEEDS);
+	private final JSlider slider;
+	private final JLabel timeLabel = new JLabel();
+	private final Timer sliderTimer;
+	private boolean updatingSlider = false;
+
+	/**
+	 * @param onClose called on the event dispatch thread once the player is closed
+	 */
+	public SessionPlayer(File file, Runnable onClose) throws IOException {
+		this.session = new SessionFile(file);
+		this.onClose = onClose;
+		this.position = session.firstOffset();
+		setLayout(new BorderLayout());
+		setBackground(Color.BLACK);
+
+		int durationMillis = (int) (session.getDurationMicros() / 1000);
+		slider = new JSlider(0, Math.max(1, durationMillis), 0);
+		JButton closeButton = new JButton("Close");
+		JPanel controls = new JPanel(new BorderLayout(8, 0));
+		JPanel buttons = new JPanel(new FlowLayout(FlowLayout.LEFT, 4, 0));
+		buttons.add(playButton);
+		buttons.add(speedComboBox);
+		buttons.add(closeButton);
+		controls.add(buttons, BorderLayout.WEST);
+		controls.add(slider, BorderLayout.CENTER);
+		controls.add(timeLabel, BorderLayout.EAST);
+		add(controls, BorderLayout.SOUTH);
+
+		playButton.addActionListener(e -> setPlaying(!isPlaying()));
+		speedComboBox.addActionListener(e -> setSpeed(1 << speedComboBox.getSelectedIndex()));
+		closeButton.addActionListener(e -> close());
+		slider.addChangeListener(e -> {
+			if (!updatingSlider) {
+				seek(TimeUnit.MILLISECONDS.toMicros(slider.getValue()));
+			}
+		});
+		sliderTimer = new Timer(SLIDER_UPDATE_MILLIS, e -> updateControls());
+		sliderTimer.start();
+		updateControls();
+
+		Log.info("Playing %s: %d ms, %d keyframes", file, session.getDurationMicros() / 1000,
+				session.getKeyframeCount());
+		playbackThread = new Thread(this::playbackLoop, "session-player");
+		playbackThread.setDaemon(true);
+		playbackThread.start();
+		seek(0);
+	}
+
+	private boolean isPlaying() {
+		synchronized (lock) {
+			return playing;
+		}
+	}
+
+	private void setPlaying(boolean play) {
+		synchronized (lock) {
+			playing = play;
+			reanchor();
+			lock.notifyAll();
+		}
+	}
+
+	private void setSpeed(int newSpeed) {
+		synchronized (lock) {
+			speed = newSpeed;
+			reanchor();
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Shows the picture at a session time. Requests made while an earlier seek is still being
+	 * decoded replace it, so dragging the slider only decodes the latest position.
+	 */
+	private void seek(long timeMicros) {
+		synchronized (lock) {
+			seekTarget = timeMicros;
+			lock.notifyAll();
+		}
+	}
+
+	// Restarts the schedule from the frame on screen; called with the lock held
+	private void reanchor() {
+		anchorNanos = System.nanoTime();
+		anchorMicros = currentMicros;
+	}
+
+	/**
+	 * Player thread: serves seeks and, while playing, decodes each frame when its time comes.
+	 */
+	private void playbackLoop() {
+		try {
+			while (true) {
+				long target;
+				synchronized (lock) {
+					while (!closed && seekTarget < 0 && !playing) {
+						lock.wait();
+					}
+					if (closed) {
+						return;
+					}
+					target = seekTarget;
+					seekTarget = -1;
+				}
+				if (target >= 0) {
+					seekTo(target);
+					synchronized (lock) {
+						reanchor();
+					}
+					continue;
+				}
+				playNext();
+			}
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} catch (IOException ex) {
+			Log.error("Playback failed", ex);
+		}
+	}
+
+	/**
+	 * Waits for the next frame's time and decodes it. Config records are applied right away.
+	 */
+	private void playNext() throws IOException, InterruptedException {
+		if (!session.read(position, record) || record.type == SessionFile.RECORD_INDEX) {
+			// The end of the session: stop on the last frame
+			synchronized (lock) {
+				playing = false;
+			}
+			return;
+		}
+		if (record.type == SessionFile.RECORD_CONFIG) {
+			configure(record.payload);
+			position = record.nextOffset;
+			return;
+		}
+		long dueMicros;
+		synchronized (lock) {
+			long elapsedMicros = (System.nanoTime() - anchorNanos) / 1000 * speed;
+			long nowMicros = anchorMicros + elapsedMicros;
+			if (nowMicros - record.timeMicros > MAX_LAG_MICROS) {
+				// Too far behind to catch up by decoding every delta
+				int keyframe = session.findKeyframe(nowMicros);
+				if (keyframe >= 0 && session.getKeyframeOffset(keyframe) > position) {
+					seekTarget = nowMicros;
+					return;
+				}
+			}
+			dueMicros = record.timeMicros - nowMicros;
+			if (dueMicros > 0) {
+				// Wake up early for a seek, pause or speed change
+				TimeUnit.MICROSECONDS.timedWait(lock, dueMicros / speed);
+				return;
+			}
+		}
+		if (configured) {
+			decode(record);
+		}
+		position = record.nextOffset;
+		currentMicros = record.timeMicros;
+		render();
+	}
+
+	/**
+	 * Decodes from the last keyframe at or before the target up to the target. A target ahead
+	 * of the frame on screen with no keyframe in between just decodes forward.
+	 */
+	private void seekTo(long targetMicros) throws IOException, InterruptedException {
+		int keyframe = session.findKeyframe(targetMicros);
+		boolean forward = configured && targetMicros >= currentMicros
+				&& (keyframe < 0 || session.getKeyframeOffset(keyframe) <= position);
+		if (!forward) {
+			if (keyframe < 0) {
+				// Before the first keyframe: decode from the start
+				position = session.firstOffset();
+			} else {
+				if (!session.read(session.getKeyframeConfigOffset(keyframe), record)) {
+					throw new IOException("Index points past the end of the session");
+				}
+				configure(record.payload);
+				position = session.getKeyframeOffset(keyframe);
+			}
+		}
+		while (session.read(position, record) && record.type != SessionFile.RECORD_INDEX
+				&& record.timeMicros <= targetMicros) {
+			if (record.type == SessionFile.RECORD_CONFIG) {
+				configure(record.payload);
+			} else if (configured) {
+				decode(record);
+			}
+			position = record.nextOffset;
+		}
+		currentMicros = targetMicros;
+		// Many frames were decoded, so their changed regions are not tracked
+		renderer.invalidate();
+		render();
+	}
+
+	// Scales the regions the last frame changed into the view and repaints them
+	private void render() {
+		BufferedImage current = image;
+		if (current == null) {
+			return;
+		}
+		for (Rectangle region : renderer.render(current, frameDecoder.getDirtyRegions(), getWidth(), getViewHeight(),
+				getGraphicsConfiguration())) {
+			repaint(region.x, region.y, region.width, region.height);
+		}
+	}
+
+	// Height of the area above the controls
+	private int getViewHeight() {
+		return getHeight() - getComponent(0).getHeight();
+	}
+
+	// Applies a stream configuration message: the same init message the live client reads
+	private void configure(ByteBuffer message) {
+		ByteBuffer init = message.duplicate();
+		if (init.get() != MuxConnection.CONTROL_INIT) {
+			return;
+		}
+		init.getInt(); // screen width
+		init.getInt(); // screen height
+		int width = init.getInt();
+		int height = init.getInt();
+		boolean isCompress = init.get() != 0;
+		boolean isDelta = init.get() != 0;
+		int tileSize = init.getInt();
+		FrameCodec codec = FrameCodecs.create(init.get(), init.get());
+		boolean isYuv420 = init.get() != 0;
+		frameDecoder.configure(width, height, isCompress, isDelta, tileSize, codec, isYuv420);
+		image = frameDecoder.getImage();
+		configured = true;
+	}
+
+	private void decode(SessionFile.Record frame) throws IOException, InterruptedException {
+		ByteBuffer body = frame.payload.duplicate();
+		body.position(FRAME_HEADER_LENGTH);
+		frameDecoder.decode(body);
+	}
+
+	private void updateControls() {
+		long micros = currentMicros;
+		updatingSlider = true;
+		slider.setValue((int) (micros / 1000));
+		updatingSlider = false;
+		timeLabel.setText(formatTime(micros) + " / " + formatTime(session.getDurationMicros()));
+		playButton.setText(isPlaying() ? "Pause" : "Play");
+	}
+
+	private static String formatTime(long micros) {
+		long millis = micros / 1000;
+		return String.format("%d:%02d.%03d", millis / 60000, millis / 1000 % 60, millis % 1000);
+	}
+
+	/**
+	 * Stops playback, releases the file and the decoder and hands back to the caller.
+	 */
+	private void close() {
+		synchronized (lock) {
+			closed = true;
+			lock.notifyAll();
+		}
+		sliderTimer.stop();
+		try {
+			playbackThread.join(TimeUnit.SECONDS.toMillis(1));
+			session.close();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+		} catch (IOException ex) {
+			Log.error("Unable to close the session", ex);
+		}
+		frameDecoder.close();
+		onClose.run();
+	}
+
+	@Override
+	protected void paintComponent(Graphics g) {
+		super.paintComponent(g);
+		renderer.paint(g, getWidth(), getViewHeight());
+	}
+}
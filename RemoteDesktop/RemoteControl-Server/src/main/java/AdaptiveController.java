@@ -0,0 +1,159 @@
+/**
+ * AdaptiveController adjusts the frame interval, the scale of the streamed image and whether
+ * frames are compressed, so the slowest viewer sees frames within a target latency.
+ *
+ * Once per period it is fed a {@link Sample} with the worst viewer's delivery latency (time from
+ * publishing a frame until its last byte was written), that viewer's reported decode time,
+ * the encoder's own time per frame, the measured send throughput and the number of frames
+ * dropped because a viewer's queue overflowed.
+ *
+ * Over target, it first turns compression on, then stretches the frame interval, and when the
+ * latency is far over target also steps the scale down. Comfortably under target for a few
+ * periods in a row, it undoes those steps in reverse order. On fast links with a busy encoder
+ * it switches compression off, since the bandwidth is there and the CPU is not.
+ */
+public class AdaptiveController {
+    public static final long TARGET_LATENCY_MILLIS = 150;
+    private static final long MIN_INTERVAL_MILLIS = 15;
+    private static final long MAX_INTERVAL_MILLIS = 500;
+    private static final double[] SCALES = {1.0, 0.75, 0.5, 0.375, 0.25};
+    private static final int CALM_PERIODS_BEFORE_UPGRADE = 3;
+
+    /**
+     * Measurements over one controller period.
+     */
+    public static class Sample {
+        final double latencyMillis;
+        final double decodeMillis;
+        final double encodeMillis;
+        final double throughputBytesPerSecond;
+        final double bytesPerFrame;
+        final long droppedFrames;
+
+        public Sample(double latencyMillis, double decodeMillis, double encodeMillis,
+                      double throughputBytesPerSecond, double bytesPerFrame, long droppedFrames) {
+            this.latencyMillis = latencyMillis;
+            this.decodeMillis = decodeMillis;
+            this.encodeMillis = encodeMillis;
+            this.throughputBytesPerSecond = throughputBytesPerSecond;
+            this.bytesPerFrame = bytesPerFrame;
+            this.droppedFrames = droppedFrames;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("latency=%.1fms decode=%.1fms encode=%.1fms throughput=%.0fKB/s frame=%.0fKB dropped=%d",
+                    latencyMillis, decodeMillis, encodeMillis,
+                    throughputBytesPerSecond / 1024, bytesPerFrame / 1024, droppedFrames);
+        }
+    }
+
+    private final long baseIntervalMillis;
+    private int maxWidth;
+    private int maxHeight;
+    private long intervalMillis;
+    private int scaleIndex = 0;
+    private boolean compress;
+    private int calmPeriods = 0;
+
+    public AdaptiveController(long baseIntervalMillis, int maxWidth, int maxHeight, boolean compress) {
+        this.baseIntervalMillis = Math.max(MIN_INTERVAL_MILLIS, baseIntervalMillis);
+        this.intervalMillis = this.baseIntervalMillis;
+        this.maxWidth = maxWidth;
+        this.maxHeight = maxHeight;
+        this.compress = compress;
+    }
+
+    public long getIntervalMillis() {
+        return intervalMillis;
+    }
+
+    public boolean isCompress() {
+        return compress;
+    }
+
+    /**
+     * The full size the scale steps apply to.
+     */
+    public int getMaxWidth() {
+        return maxWidth;
+    }
+
+    public int getMaxHeight() {
+        return maxHeight;
+    }
+
+    public int getWidth() {
+        return scaled(maxWidth);
+    }
+
+    public int getHeight() {
+        return scaled(maxHeight);
+    }
+
+    /**
+     * Changes the full size the scale steps apply to, for example when another region of the
+     * screen is streamed. The current step is kept.
+     */
+    public void setMaxSize(int width, int height) {
+        maxWidth = width;
+        maxHeight = height;
+    }
+
+    // Scales a dimension by the current step, keeping it even and at least 2 pixels
+    private int scaled(int dimension) {
+        return Math.max(2, (int) (dimension * SCALES[scaleIndex]) & ~1);
+    }
+
+    /**
+     * Updates the settings from one period of measurements.
+     *
+     * @return true when the image size or compression changed and the stream must be reconfigured;
+     * interval changes take effect without reconfiguration
+     */
+    public boolean update(Sample sample) {
+        double latency = sample.latencyMillis + sample.decodeMillis + sample.encodeMillis;
+        boolean decodeBound = sample.decodeMillis > intervalMillis;
+
+        if (latency > TARGET_LATENCY_MILLIS * 1.25 || sample.droppedFrames > 0 || decodeBound) {
+            calmPeriods = 0;
+            boolean changed = false;
+            if (!compress && !decodeBound) {
+                compress = true;
+                changed = true;
+            } else if (intervalMillis < MAX_INTERVAL_MILLIS) {
+                intervalMillis = Math.min(MAX_INTERVAL_MILLIS, intervalMillis * 3 / 2);
+            }
+            if ((latency > TARGET_LATENCY_MILLIS * 2 || decodeBound) && scaleIndex < SCALES.length - 1) {
+                scaleIndex++;
+                changed = true;
+            }
+            return changed;
+        }
+
+        if (latency < TARGET_LATENCY_MILLIS * 0.6) {
+            if (++calmPeriods < CALM_PERIODS_BEFORE_UPGRADE) {
+                return false;
+            }
+            calmPeriods = 0;
+            if (intervalMillis > baseIntervalMillis) {
+                intervalMillis = Math.max(baseIntervalMillis, intervalMillis * 4 / 5);
+                return false;
+            }
+            if (scaleIndex > 0) {
+                scaleIndex--;
+                return true;
+            }
+            // Plenty of bandwidth for uncompressed frames but the encoder is busy: skip compression
+            double rawBytesPerSecond = (double) maxWidth * maxHeight * 3 * 1000 / intervalMillis;
+            if (compress && sample.encodeMillis > intervalMillis / 2.0
+                    && sample.throughputBytesPerSecond > rawBytesPerSecond * 2) {
+                compress = false;
+                return true;
+            }
+        } else {
+            calmPeriods = 0;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,311 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * BandEncoder splits every frame into horizontal bands of whole tile rows and encodes and
+ * compresses the bands in parallel, so a large frame is not compressed on a single core.
+ * The encoder thread works on the first band itself and a fixed pool of workers takes the rest.
+ * Every band is compressed on its own, so the client can decompress and apply the bands of a
+ * frame in parallel as well.
+ *
+ * Frame body layout:
+ *   moves, on delta streams only (see {@link MotionDetector})
+ *   int bandCount
+ *   bandCount x { int y, int height, int length, int compressedLength }
+ *   bandCount x byte[compressedLength] band data
+ *
+ * A band of a delta stream holds a {@link TileEncoder} update for its rows; a band of a full
+ * frame stream holds its rows of pixels, BGR or {@link Yuv420}. The band data is compressed with
+ * the stream's {@link FrameCodec}; without compression it is stored as is and compressedLength
+ * equals length.
+ * Delta bands without changed tiles are left out.
+ *
+ * On a delta stream the encoder thread first looks for tiles that moved. The client applies
+ * the moves to its frame before the bands, so moved tiles leave the bands and a scrolled page
+ * costs a few bytes instead of every pixel it shows.
+ */
+public class BandEncoder implements Closeable {
+    private static final int BYTES_PER_PIXEL = 3;
+    private static final int BAND_HEADER_LENGTH = 4 * 4;
+    // Bands smaller than this are not worth handing to another core
+    private static final int MIN_BAND_PIXELS = 64 * 1024;
+
+    private static final Metrics.Histogram COMPRESS_TIME = Metrics.histogram("server_compress_micros",
+            "CPU time compressing the bands of a frame, summed over the bands");
+    private static final Metrics.Counter RAW_BYTES = Metrics.counter("server_encoded_raw_bytes",
+            "Tile bytes before compression");
+    private static final Metrics.Counter COMPRESSED_BYTES = Metrics.counter("server_encoded_bytes",
+            "Band bytes after compression");
+
+    static {
+        Metrics.gauge("server_compression_ratio", "Tile bytes per compressed byte since the start",
+                () -> COMPRESSED_BYTES.get() == 0 ? 0 : (double) RAW_BYTES.get() / COMPRESSED_BYTES.get());
+    }
+
+    private final int tileSize;
+    private final FrameCodec codec;
+    private final Band[] bands;
+    private final Future<?>[] pending;
+    private final ExecutorService workers;
+    // Moves of the frame being encoded
+    private final ByteBuffer moves;
+
+    /**
+     * @param codec       the codec used while the stream is compressed
+     * @param parallelism the most bands a frame is split into, normally the number of cores
+     */
+    public BandEncoder(int maxWidth, int maxHeight, int tileSize, FrameCodec codec, int parallelism) {
+        this.tileSize = tileSize;
+        this.codec = codec;
+        int maxBands = Math.max(1, Math.min(parallelism, tileRows(maxHeight)));
+        bands = new Band[maxBands];
+        for (int i = 0; i < maxBands; i++) {
+            bands[i] = new Band();
+        }
+        pending = new Future<?>[maxBands];
+        moves = ByteBuffer.allocateDirect(MotionDetector.maxEncodedLength(maxWidth, maxHeight, tileSize));
+        // Allocate the band buffers for the largest frame up front
+        layout(maxWidth, maxHeight);
+        workers = maxBands > 1 ? Executors.newFixedThreadPool(maxBands - 1, runnable -> {
+            Thread thread = new Thread(runnable, "band-encoder");
+            thread.setDaemon(true);
+            return thread;
+        }) : null;
+    }
+
+    /**
+     * Largest body this encoder can produce for frames up to the given size.
+     */
+    public int maxBodyLength(int maxWidth, int maxHeight) {
+        int count = bands.length;
+        // Each band repeats the tile count and the codec adds a small fixed overhead per band
+        int payload = TileEncoder.maxEncodedLength(maxWidth, maxHeight, tileSize) + count * 4;
+        return MotionDetector.maxEncodedLength(maxWidth, maxHeight, tileSize)
+                + 4 + count * BAND_HEADER_LENGTH + codec.maxCompressedLength(payload)
+                + count * codec.maxCompressedLength(0);
+    }
+
+    private int tileRows(int height) {
+        return (height + tileSize - 1) / tileSize;
+    }
+
+    /**
+     * Encodes one captured frame into {@code body}.
+     *
+     * @param tileEncoder the delta encoder, or null to send the full frame
+     * @return the body length, or 0 when no tile changed or moved
+     */
+    public int encode(byte[] frame, TileEncoder tileEncoder, StreamConfig config, ByteBuffer body)
+            throws IOException, InterruptedException {
+        int length = encodeBands(frame, tileEncoder, false, config, body);
+        if (tileEncoder != null) {
+            tileEncoder.commit();
+        }
+        return length;
+    }
+
+    /**
+     * Encodes the tile encoder's reference frame into {@code body}, for viewers that resynchronize.
+     *
+     * @return the body length, or 0 when no frame has been encoded yet
+     */
+    public int encodeSnapshot(TileEncoder tileEncoder, StreamConfig config, ByteBuffer body)
+            throws IOException, InterruptedException {
+        return encodeBands(null, tileEncoder, true, config, body);
+    }
+
+    // Spreads the tile rows of a frame evenly over the bands and returns the number of bands used
+    private int layout(int width, int height) {
+        int tileRows = tileRows(height);
+        int count = Math.max(1, Math.min(Math.min(bands.length, tileRows), width * height / MIN_BAND_PIXELS));
+        for (int i = 0; i < count; i++) {
+            Band band = bands[i];
+            band.y = tileRows * i / count * tileSize;
+            band.height = Math.min(height, tileRows * (i + 1) / count * tileSize) - band.y;
+            band.width = width;
+            band.ensureCapacity(TileEncoder.maxEncodedLength(width, band.height, tileSize), codec);
+        }
+        return count;
+    }
+
+    private int encodeBands(byte[] frame, TileEncoder tileEncoder, boolean snapshot, StreamConfig config,
+                            ByteBuffer body) throws IOException, InterruptedException {
+        int moveCount = 0;
+        if (tileEncoder != null && !snapshot) {
+            // Before the bands, which then compare against the reference with the moves applied
+            moveCount = tileEncoder.encodeMoves(frame, moves);
+        } else {
+            moves.clear();
+            moves.putInt(0).flip();
+        }
+        int count = layout(config.getWidth(), config.getHeight());
+        for (int i = 0; i < count; i++) {
+            Band band = bands[i];
+            band.frame = frame;
+            band.tileEncoder = tileEncoder;
+            band.snapshot = snapshot;
+            band.isYuv420 = config.isYuv420();
+            band.codec = config.isCompress() ? codec : null;
+        }
+        try {
+            for (int i = 1; i < count; i++) {
+                pending[i] = workers.submit(bands[i]);
+            }
+            bands[0].call();
+            for (int i = 1; i < count; i++) {
+                pending[i].get();
+            }
+        } catch (ExecutionException ex) {
+            throw new IOException("Band encoding failed", ex.getCause());
+        } finally {
+            // Even after a failure, no band may still be running when its state is cleared and
+            // reused by the next frame; a band that was never submitted has no future
+            for (int i = 1; i < count; i++) {
+                if (pending[i] != null) {
+                    awaitQuietly(pending[i]);
+                    pending[i] = null;
+                }
+                bands[i].frame = null;
+            }
+            bands[0].frame = null;
+        }
+        return writeBody(count, tileEncoder != null, moveCount, body);
+    }
+
+    // Waits for a band that is cleaned up after a failure, whose own outcome is no longer of interest.
+    // Cancelling would not stop a running band, so it is left to finish; an interrupt is kept for later.
+    private static void awaitQuietly(Future<?> future) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                future.get();
+                break;
+            } catch (InterruptedException ex) {
+                interrupted = true;
+            } catch (ExecutionException | CancellationException ex) {
+                break;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Lays out the moves and the band table and copies the band data behind them
+    private int writeBody(int count, boolean delta, int moveCount, ByteBuffer body) {
+        int nonEmpty = 0;
+        for (int i = 0; i < count; i++) {
+            if (bands[i].length > 0) {
+                nonEmpty++;
+            }
+        }
+        body.clear();
+        if (nonEmpty == 0 && moveCount == 0) {
+            body.flip();
+            return 0;
+        }
+        if (delta) {
+            body.put(moves);
+        }
+        body.putInt(nonEmpty);
+        long rawBytes = 0;
+        long compressedBytes = 0;
+        long compressNanos = 0;
+        for (int i = 0; i < count; i++) {
+            Band band = bands[i];
+            if (band.length > 0) {
+                body.putInt(band.y).putInt(band.height).putInt(band.length).putInt(band.data.remaining());
+                rawBytes += band.length;
+                compressedBytes += band.data.remaining();
+                compressNanos += band.compressNanos;
+            }
+        }
+        RAW_BYTES.add(rawBytes);
+        COMPRESSED_BYTES.add(compressedBytes);
+        if (compressNanos > 0) {
+            COMPRESS_TIME.recordNanos(compressNanos);
+        }
+        for (int i = 0; i < count; i++) {
+            if (bands[i].length > 0) {
+                body.put(bands[i].data);
+            }
+        }
+        body.flip();
+        return body.limit();
+    }
+
+    /**
+     * Stops the worker threads.
+     */
+    @Override
+    public void close() {
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * One band of rows with its own staging and compression buffers, which grow when the
+     * stream is reconfigured to a shape with taller or wider bands.
+     */
+    private static class Band implements Callable<Void> {
+        int y;
+        int height;
+        int width;
+        byte[] frame;
+        TileEncoder tileEncoder;
+        boolean snapshot;
+        boolean isYuv420;
+        // Null when the band is sent uncompressed
+        FrameCodec codec;
+
+        ByteBuffer staging = ByteBuffer.allocateDirect(0);
+        ByteBuffer compressed = ByteBuffer.allocateDirect(0);
+        // Results: the uncompressed length (0 for an empty band), the bytes to send and the time
+        // spent compressing them
+        int length;
+        ByteBuffer data;
+        long compressNanos;
+
+        void ensureCapacity(int maxLength, FrameCodec codec) {
+            if (staging.capacity() < maxLength) {
+                staging = ByteBuffer.allocateDirect(maxLength);
+                compressed = ByteBuffer.allocateDirect(codec.maxCompressedLength(maxLength));
+            }
+        }
+
+        @Override
+        public Void call() throws IOException {
+            if (tileEncoder == null) {
+                staging.clear();
+                if (isYuv420) {
+                    Yuv420.encode(frame, width, 0, y, width, height, staging);
+                } else {
+                    staging.put(frame, y * width * BYTES_PER_PIXEL, height * width * BYTES_PER_PIXEL);
+                }
+                staging.flip();
+                length = staging.limit();
+            } else if (snapshot) {
+                length = tileEncoder.encodeSnapshotRows(staging, y, y + height);
+            } else {
+                length = tileEncoder.encodeRows(frame, staging, y, y + height);
+            }
+            data = staging;
+            compressNanos = 0;
+            if (length > 0 && codec != null) {
+                long start = System.nanoTime();
+                codec.compress(staging, compressed);
+                compressNanos = System.nanoTime() - start;
+                data = compressed;
+            }
+            return null;
+        }
+    }
+}
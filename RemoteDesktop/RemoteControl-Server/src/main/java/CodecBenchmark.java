@@ -0,0 +1,161 @@
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * CodecBenchmark compares the available {@link FrameCodec}s on real screen content, so the codec
+ * and level offered by default can be chosen from measurements rather than guesses.
+ *
+ * The frames are captured from the screen, loaded from the image files given as arguments, or,
+ * on a headless machine without arguments, drawn by {@link SyntheticDesktop}. Every frame is
+ * encoded the way the server sends it, once as a full frame and once as a delta against the
+ * previous frame, and each payload is compressed and decompressed with every codec and level.
+ *
+ * Usage: java CodecBenchmark [image files...]
+ */
+public class CodecBenchmark {
+    private static final int FRAME_COUNT = 20;
+    private static final int SYNTHETIC_WIDTH = 1920;
+    private static final int SYNTHETIC_HEIGHT = 1080;
+    private static final long CAPTURE_INTERVAL_MILLIS = 100;
+    // Each payload is compressed until at least this much time has passed
+    private static final long MIN_MEASURE_NANOS = 200_000_000L;
+
+    public static void main(String[] args) throws Exception {
+        List<BufferedImage> frames = loadFrames(args);
+        int width = frames.get(0).getWidth();
+        int height = frames.get(0).getHeight();
+        System.out.println(frames.size() + " frames of " + width + "x" + height);
+
+        List<ByteBuffer> fullPayloads = new ArrayList<>();
+        List<ByteBuffer> deltaPayloads = new ArrayList<>();
+        TileEncoder tileEncoder = new TileEncoder(width, height, TileEncoder.DEFAULT_TILE_SIZE);
+        for (BufferedImage frame : frames) {
+            byte[] pixels = toBgr(frame, width, height);
+            ByteBuffer full = ByteBuffer.allocateDirect(pixels.length);
+            full.put(pixels);
+            full.flip();
+            fullPayloads.add(full);
+
+            ByteBuffer delta = ByteBuffer.allocateDirect(
+                    TileEncoder.maxEncodedLength(width, height, TileEncoder.DEFAULT_TILE_SIZE));
+            // The first update holds every tile, and unchanged frames send nothing
+            if (tileEncoder.encode(pixels, delta) > 0 && fullPayloads.size() > 1) {
+                deltaPayloads.add(delta);
+            }
+        }
+
+        System.out.println(String.format("%-10s %-6s %9s %14s %14s", "Codec", "Input", "Ratio",
+                "Compress MB/s", "Decompress MB/s"));
+        for (FrameCodec codec : codecsToCompare()) {
+            report(codec, "full", fullPayloads);
+            report(codec, "delta", deltaPayloads);
+        }
+    }
+
+    private static List<FrameCodec> codecsToCompare() {
+        List<FrameCodec> codecs = new ArrayList<>();
+        for (byte id : FrameCodecs.availableIds()) {
+            switch (id) {
+                case FrameCodec.LZ4:
+                    codecs.add(FrameCodecs.create(id, 0));
+                    codecs.add(FrameCodecs.create(id, 3));
+                    codecs.add(FrameCodecs.create(id, 9));
+                    break;
+                case FrameCodec.ZSTD:
+                    codecs.add(FrameCodecs.create(id, -1));
+                    codecs.add(FrameCodecs.create(id, 1));
+                    codecs.add(FrameCodecs.create(id, 3));
+                    codecs.add(FrameCodecs.create(id, 9));
+                    break;
+                default:
+                    codecs.add(FrameCodecs.create(id, 0));
+                    break;
+            }
+        }
+        return codecs;
+    }
+
+    // Compresses and decompresses every payload repeatedly and prints the ratio and throughput
+    private static void report(FrameCodec codec, String input, List<ByteBuffer> payloads) throws IOException {
+        if (payloads.isEmpty()) {
+            return;
+        }
+        int maxLength = 0;
+        for (ByteBuffer payload : payloads) {
+            maxLength = Math.max(maxLength, payload.remaining());
+        }
+        ByteBuffer compressed = ByteBuffer.allocateDirect(codec.maxCompressedLength(maxLength));
+        ByteBuffer restored = ByteBuffer.allocateDirect(maxLength);
+
+        long inputBytes = 0;
+        long compressedBytes = 0;
+        for (ByteBuffer payload : payloads) {
+            inputBytes += payload.remaining();
+            compressedBytes += codec.compress(payload, compressed);
+        }
+
+        long compressNanos = 0;
+        long decompressNanos = 0;
+        long processedBytes = 0;
+        do {
+            for (ByteBuffer payload : payloads) {
+                long start = System.nanoTime();
+                codec.compress(payload, compressed);
+                long compressedAt = System.nanoTime();
+                if (codec.decompress(compressed, restored) != payload.remaining()) {
+                    throw new IOException(FrameCodecs.describe(codec) + " did not round-trip");
+                }
+                long end = System.nanoTime();
+                compressNanos += compressedAt - start;
+                decompressNanos += end - compressedAt;
+                processedBytes += payload.remaining();
+            }
+        } while (compressNanos + decompressNanos < MIN_MEASURE_NANOS);
+
+        System.out.println(String.format("%-10s %-6s %9.2f %14.1f %14.1f", FrameCodecs.describe(codec), input,
+                (double) inputBytes / compressedBytes,
+                processedBytes / 1e6 / (compressNanos / 1e9),
+                processedBytes / 1e6 / (decompressNanos / 1e9)));
+    }
+
+    private static List<BufferedImage> loadFrames(String[] args) throws IOException, AWTException, InterruptedException {
+        List<BufferedImage> frames = new ArrayList<>();
+        if (args.length > 0) {
+            for (String path : args) {
+                BufferedImage image = ImageIO.read(new File(path));
+                if (image == null) {
+                    throw new IOException("Not an image: " + path);
+                }
+                frames.add(image);
+            }
+        } else if (!GraphicsEnvironment.isHeadless()) {
+            Robot robot = new Robot();
+            Rectangle screenRect = new Rectangle(Toolkit.getDefaultToolkit().getScreenSize());
+            for (int i = 0; i < FRAME_COUNT; i++) {
+                frames.add(robot.createScreenCapture(screenRect));
+                Thread.sleep(CAPTURE_INTERVAL_MILLIS);
+            }
+        } else {
+            SyntheticDesktop desktop = new SyntheticDesktop(SYNTHETIC_WIDTH, SYNTHETIC_HEIGHT);
+            for (int i = 0; i < FRAME_COUNT; i++) {
+                frames.add(desktop.frame(i));
+            }
+        }
+        return frames;
+    }
+
+    private static byte[] toBgr(BufferedImage frame, int width, int height) {
+        BufferedImage bgr = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = bgr.createGraphics();
+        g.drawImage(frame, 0, 0, width, height, null);
+        g.dispose();
+        return ((DataBufferByte) bgr.getRaster().getDataBuffer()).getData();
+    }
+}
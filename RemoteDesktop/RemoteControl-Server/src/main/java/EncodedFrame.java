@@ -0,0 +1,151 @@
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * EncodedFrame is a pooled direct buffer holding one encoded (and possibly compressed) frame.
+ * A single frame is shared by every viewer it is published to, so it is reference counted and
+ * goes back to its pool once the encoder and all viewers have released it.
+ *
+ * Video frames start with a fixed header: int sequence number, long capture time
+ * (the server's System.nanoTime()) and int microseconds from capture to publish. The encoder
+ * writes the encoded update into {@link #body()} and then fills in the header with {@link #finish}.
+ *
+ * Control messages that must stay in order with the frames around them (stream
+ * reconfiguration) travel through the same viewer queues as unpooled control frames.
+ */
+public class EncodedFrame {
+    public static final int FRAME_HEADER_LENGTH = 4 + 8 + 4;
+
+    private final ByteBuffer payload;
+    private final ByteBuffer body;
+    private final Queue<EncodedFrame> pool;
+    private final byte channel;
+    private final AtomicInteger references = new AtomicInteger();
+    private boolean snapshot;
+    private boolean keyframe;
+    private int sequence;
+    private long captureNanos;
+    private long publishNanos;
+
+    public EncodedFrame(int capacity, Queue<EncodedFrame> pool) {
+        this.payload = ByteBuffer.allocateDirect(FRAME_HEADER_LENGTH + capacity);
+        this.payload.position(FRAME_HEADER_LENGTH);
+        this.body = payload.slice();
+        this.payload.clear();
+        this.pool = pool;
+        this.channel = MuxConnection.CHANNEL_VIDEO;
+    }
+
+    private EncodedFrame(ByteBuffer message) {
+        this.payload = message;
+        this.body = null;
+        this.pool = null;
+        this.channel = MuxConnection.CHANNEL_CONTROL;
+    }
+
+    /**
+     * Wraps a control message so it can be queued in order with video frames.
+     */
+    public static EncodedFrame control(ByteBuffer message) {
+        EncodedFrame frame = new EncodedFrame(message);
+        frame.acquire(false);
+        return frame;
+    }
+
+    /**
+     * The channel this frame is sent on: video for frames, control for queued control messages.
+     */
+    public byte getChannel() {
+        return channel;
+    }
+
+    /**
+     * The whole message (frame header and body) from position to limit. Readers on other
+     * threads must work on {@link #view()} so they do not disturb each other.
+     */
+    public ByteBuffer payload() {
+        return payload;
+    }
+
+    /**
+     * The encoder's view of the space after the frame header. The encoder leaves the encoded
+     * update between its position 0 and its limit.
+     */
+    public ByteBuffer body() {
+        return body;
+    }
+
+    /**
+     * Writes the frame header in front of the encoded body and sets the payload to cover both.
+     *
+     * @param keyframe true when the body holds the whole picture rather than changes to the previous frame
+     */
+    void finish(int sequence, long captureNanos, long publishNanos, boolean keyframe) {
+        this.keyframe = keyframe;
+        this.sequence = sequence;
+        this.captureNanos = captureNanos;
+        this.publishNanos = publishNanos;
+        payload.clear();
+        payload.putInt(0, sequence);
+        payload.putLong(4, captureNanos);
+        payload.putInt(12, (int) ((publishNanos - captureNanos) / 1000));
+        payload.limit(FRAME_HEADER_LENGTH + body.limit());
+    }
+
+    /**
+     * An independent position/limit view of the payload for one reader.
+     */
+    public ByteBuffer view() {
+        return payload.duplicate();
+    }
+
+    /**
+     * True for a full-frame snapshot sent to a single viewer to resynchronize its delta stream.
+     */
+    public boolean isSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * True when the frame can be decoded on its own: a full frame, the first update after a
+     * reconfiguration, or a snapshot.
+     */
+    public boolean isKeyframe() {
+        return keyframe;
+    }
+
+    public int getSequence() {
+        return sequence;
+    }
+
+    /**
+     * System.nanoTime() when the screen this frame shows was captured.
+     */
+    public long getCaptureNanos() {
+        return captureNanos;
+    }
+
+    /**
+     * System.nanoTime() when the encoder published the frame.
+     */
+    public long getPublishNanos() {
+        return publishNanos;
+    }
+
+    // Called by the encoder when it takes the frame from the pool; the encoder holds one reference.
+    void acquire(boolean snapshot) {
+        this.snapshot = snapshot;
+        references.set(1);
+    }
+
+    public void retain() {
+        references.incrementAndGet();
+    }
+
+    public void release() {
+        if (references.decrementAndGet() == 0 && pool != null) {
+            pool.offer(this);
+        }
+    }
+}
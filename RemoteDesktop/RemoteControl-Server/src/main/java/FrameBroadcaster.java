@@ -0,0 +1,186 @@
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.IntConsumer;
+
+/**
+ * FrameBroadcaster fans every encoded frame out to all connected viewers, so one capture and
+ * encode pass serves any number of them. It also collects snapshot requests from viewers that
+ * need to resynchronize; the encoder serves them between frames. A {@link SessionRecorder}, when
+ * one is set, receives the same frames as the viewers.
+ */
+public class FrameBroadcaster {
+    private final boolean isDeltaStream;
+    private final List<Viewer> viewers = new CopyOnWriteArrayList<>();
+    private final Queue<Viewer> pendingViewers = new ConcurrentLinkedQueue<>();
+    private final Queue<Viewer> snapshotRequests = new ConcurrentLinkedQueue<>();
+    private final IntConsumer viewerCountListener;
+    // Set by startRecording and picked up by the encoder
+    private final AtomicReference<SessionRecorder> pendingRecorder = new AtomicReference<>();
+    // The active recorder, or null; only touched by the encoder thread
+    private SessionRecorder recorder;
+
+    /**
+     * @param isDeltaStream       true when frames are delta tile updates
+     * @param viewerCountListener told the new viewer count whenever a viewer joins or leaves
+     */
+    public FrameBroadcaster(boolean isDeltaStream, IntConsumer viewerCountListener) {
+        this.isDeltaStream = isDeltaStream;
+        this.viewerCountListener = viewerCountListener;
+    }
+
+    /**
+     * True when frames depend on the ones before them (delta tiles).
+     */
+    public boolean isDeltaStream() {
+        return isDeltaStream;
+    }
+
+    /**
+     * Adds a viewer. It starts receiving frames once the encoder has admitted it, so that it
+     * gets the current configuration and a consistent starting picture.
+     */
+    public void addViewer(Viewer viewer) {
+        pendingViewers.add(viewer);
+        viewerCountListener.accept(getViewerCount());
+    }
+
+    public void removeViewer(Viewer viewer) {
+        if (viewers.remove(viewer) || pendingViewers.remove(viewer)) {
+            viewerCountListener.accept(getViewerCount());
+        }
+    }
+
+    public boolean hasViewers() {
+        return !viewers.isEmpty() || !pendingViewers.isEmpty();
+    }
+
+    /**
+     * True when at least one viewer can take another frame without exceeding its window of
+     * unacknowledged frames. Viewers waiting to be admitted always count as ready.
+     */
+    public boolean hasReadyViewer() {
+        if (!pendingViewers.isEmpty()) {
+            return true;
+        }
+        for (Viewer viewer : viewers) {
+            if (viewer.isReady()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int getViewerCount() {
+        return viewers.size() + pendingViewers.size();
+    }
+
+    /**
+     * Starts the stream for viewers that joined since the last call. Called on the encoder thread only.
+     */
+    void admitPendingViewers(EncodedFrame config) {
+        Viewer viewer;
+        while ((viewer = pendingViewers.poll()) != null) {
+            viewers.add(viewer);
+            viewer.start(config);
+        }
+    }
+
+    /**
+     * Hands the stream to a recorder, replacing any recorder set before. It starts receiving
+     * frames once the encoder has picked it up.
+     */
+    public void startRecording(SessionRecorder newRecorder) {
+        SessionRecorder replaced = pendingRecorder.getAndSet(newRecorder);
+        if (replaced != null) {
+            replaced.stop();
+        }
+    }
+
+    /**
+     * Starts a newly set recorder at the current configuration and lets go of a stopped one.
+     * Called on the encoder thread only.
+     */
+    void updateRecorder(EncodedFrame config) {
+        SessionRecorder next = pendingRecorder.getAndSet(null);
+        if (next != null) {
+            if (recorder != null) {
+                recorder.stop();
+            }
+            recorder = next;
+            recorder.start(config);
+        }
+        if (recorder != null && recorder.isStopping()) {
+            recorder = null;
+        }
+    }
+
+    /**
+     * The active recorder, or null. Called on the encoder thread only.
+     */
+    SessionRecorder getRecorder() {
+        return recorder;
+    }
+
+    /**
+     * Sends a new configuration to every viewer and the recorder, in order with the frames.
+     * Called on the encoder thread only.
+     */
+    void reconfigure(EncodedFrame config) {
+        for (Viewer viewer : viewers) {
+            viewer.reconfigure(config);
+        }
+        if (recorder != null) {
+            recorder.reconfigure(config);
+        }
+    }
+
+    public List<Viewer> getViewers() {
+        return viewers;
+    }
+
+    /**
+     * Offers a frame to every viewer and the recorder. Called on the encoder thread only.
+     */
+    public void publish(EncodedFrame frame) {
+        for (Viewer viewer : viewers) {
+            viewer.offer(frame);
+        }
+        if (recorder != null) {
+            recorder.offer(frame);
+        }
+    }
+
+    void requestSnapshot(Viewer viewer) {
+        snapshotRequests.add(viewer);
+    }
+
+    /**
+     * Returns the next viewer waiting for a snapshot, or null. Called on the encoder thread only.
+     */
+    Viewer pollSnapshotRequest() {
+        return snapshotRequests.poll();
+    }
+
+    /**
+     * Closes every viewer connection and stops the recorder.
+     */
+    public void closeAll() {
+        SessionRecorder pending = pendingRecorder.getAndSet(null);
+        if (pending != null) {
+            pending.stop();
+        }
+        SessionRecorder active = recorder;
+        if (active != null) {
+            active.stop();
+        }
+        for (Viewer viewer : pendingViewers) {
+            viewer.close();
+        }
+        for (Viewer viewer : viewers) {
+            viewer.close();
+        }
+    }
+}
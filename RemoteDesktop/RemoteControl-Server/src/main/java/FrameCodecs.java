@@ -0,0 +1,302 @@
+import com.github.luben.zstd.Zstd;
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+import org.xerial.snappy.Snappy;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * FrameCodecs creates the available {@link FrameCodec} implementations by id and level.
+ * Keep this class identical on the client and the server.
+ *
+ * Raw is always available. Snappy, LZ4 and Zstd use native libraries, so each is only offered
+ * if it loads on this machine; the client lists what it can decode in its hello message and the
+ * server refuses clients that cannot decode the stream's codec.
+ */
+public final class FrameCodecs {
+    private FrameCodecs() {
+    }
+
+    /**
+     * Creates a codec. The level is ignored by raw and Snappy; LZ4 uses the fast compressor at
+     * level 0 and the high compression one at levels 1 to 17; Zstd takes its own levels.
+     *
+     * @throws IllegalArgumentException if the id is unknown
+     */
+    public static FrameCodec create(byte id, int level) {
+        switch (id) {
+            case FrameCodec.RAW:
+                return new RawCodec();
+            case FrameCodec.SNAPPY:
+                return new SnappyCodec();
+            case FrameCodec.LZ4:
+                return new Lz4Codec(level);
+            case FrameCodec.ZSTD:
+                return new ZstdCodec(level);
+            default:
+                throw new IllegalArgumentException("Unknown codec id: " + id);
+        }
+    }
+
+    /**
+     * Creates a codec from a name with an optional level, as in "raw", "snappy", "lz4", "lz4-9"
+     * or "zstd-3". Zstd defaults to level 3; a negative level is written "zstd--1".
+     *
+     * @throws IllegalArgumentException if the name is unknown
+     */
+    public static FrameCodec parse(String spec) {
+        int separator = spec.indexOf('-');
+        String name = separator < 0 ? spec : spec.substring(0, separator);
+        int level = separator < 0 ? 0 : Integer.parseInt(spec.substring(separator + 1));
+        switch (name.toLowerCase()) {
+            case "raw":
+                return create(FrameCodec.RAW, 0);
+            case "snappy":
+                return create(FrameCodec.SNAPPY, 0);
+            case "lz4":
+                return create(FrameCodec.LZ4, level);
+            case "zstd":
+                return create(FrameCodec.ZSTD, separator < 0 ? 3 : level);
+            default:
+                throw new IllegalArgumentException("Unknown codec: " + spec);
+        }
+    }
+
+    /**
+     * Ids of the codecs whose native libraries load on this machine, raw first.
+     */
+    public static byte[] availableIds() {
+        List<Byte> ids = new ArrayList<>();
+        for (byte id = FrameCodec.RAW; id <= FrameCodec.ZSTD; id++) {
+            if (isAvailable(id)) {
+                ids.add(id);
+            }
+        }
+        byte[] result = new byte[ids.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = ids.get(i);
+        }
+        return result;
+    }
+
+    // Round-trips a few bytes to check that the codec's native library loads
+    private static boolean isAvailable(byte id) {
+        try {
+            FrameCodec codec = create(id, 1);
+            ByteBuffer source = ByteBuffer.allocateDirect(16);
+            source.put(new byte[16]);
+            source.flip();
+            ByteBuffer compressed = ByteBuffer.allocateDirect(codec.maxCompressedLength(16));
+            ByteBuffer decompressed = ByteBuffer.allocateDirect(16);
+            codec.compress(source, compressed);
+            return codec.decompress(compressed, decompressed) == 16;
+        } catch (Exception | LinkageError ex) {
+            Log.warn("Codec %s is not available: %s", name(id), ex);
+            return false;
+        }
+    }
+
+    public static String name(byte id) {
+        switch (id) {
+            case FrameCodec.RAW:
+                return "Raw";
+            case FrameCodec.SNAPPY:
+                return "Snappy";
+            case FrameCodec.LZ4:
+                return "LZ4";
+            case FrameCodec.ZSTD:
+                return "Zstd";
+            default:
+                return "Codec " + id;
+        }
+    }
+
+    /**
+     * Name and level for display, e.g. "Zstd 3" or "LZ4 HC 9".
+     */
+    public static String describe(FrameCodec codec) {
+        switch (codec.getId()) {
+            case FrameCodec.LZ4:
+                return codec.getLevel() > 0 ? "LZ4 HC " + codec.getLevel() : "LZ4";
+            case FrameCodec.ZSTD:
+                return "Zstd " + codec.getLevel();
+            default:
+                return name(codec.getId());
+        }
+    }
+
+    private static void checkTarget(ByteBuffer target, int needed) throws IOException {
+        if (target.capacity() < needed) {
+            throw new IOException("Target of " + target.capacity() + " bytes is smaller than " + needed);
+        }
+    }
+
+    /**
+     * Stores the data as is.
+     */
+    static final class RawCodec implements FrameCodec {
+        @Override
+        public byte getId() {
+            return RAW;
+        }
+
+        @Override
+        public int getLevel() {
+            return 0;
+        }
+
+        @Override
+        public int maxCompressedLength(int length) {
+            return length;
+        }
+
+        @Override
+        public int compress(ByteBuffer source, ByteBuffer target) throws IOException {
+            return copy(source, target);
+        }
+
+        @Override
+        public int decompress(ByteBuffer source, ByteBuffer target) throws IOException {
+            return copy(source, target);
+        }
+
+        private int copy(ByteBuffer source, ByteBuffer target) throws IOException {
+            int length = source.remaining();
+            checkTarget(target, length);
+            target.clear();
+            target.put(source.duplicate());
+            target.flip();
+            return length;
+        }
+    }
+
+    static final class SnappyCodec implements FrameCodec {
+        @Override
+        public byte getId() {
+            return SNAPPY;
+        }
+
+        @Override
+        public int getLevel() {
+            return 0;
+        }
+
+        @Override
+        public int maxCompressedLength(int length) {
+            return Snappy.maxCompressedLength(length);
+        }
+
+        @Override
+        public int compress(ByteBuffer source, ByteBuffer target) throws IOException {
+            target.clear();
+            return Snappy.compress(source, target);
+        }
+
+        @Override
+        public int decompress(ByteBuffer source, ByteBuffer target) throws IOException {
+            target.clear();
+            return Snappy.uncompress(source, target);
+        }
+    }
+
+    static final class Lz4Codec implements FrameCodec {
+        private static final int MAX_LEVEL = 17;
+        private final int level;
+        private final LZ4Compressor compressor;
+        private final LZ4SafeDecompressor decompressor;
+
+        Lz4Codec(int level) {
+            this.level = Math.max(0, Math.min(MAX_LEVEL, level));
+            LZ4Factory factory = LZ4Factory.fastestInstance();
+            compressor = this.level == 0 ? factory.fastCompressor() : factory.highCompressor(this.level);
+            decompressor = factory.safeDecompressor();
+        }
+
+        @Override
+        public byte getId() {
+            return LZ4;
+        }
+
+        @Override
+        public int getLevel() {
+            return level;
+        }
+
+        @Override
+        public int maxCompressedLength(int length) {
+            return compressor.maxCompressedLength(length);
+        }
+
+        @Override
+        public int compress(ByteBuffer source, ByteBuffer target) throws IOException {
+            int length = compressor.compress(source, source.position(), source.remaining(),
+                    target, 0, target.capacity());
+            target.clear();
+            target.limit(length);
+            return length;
+        }
+
+        @Override
+        public int decompress(ByteBuffer source, ByteBuffer target) throws IOException {
+            try {
+                int length = decompressor.decompress(source, source.position(), source.remaining(),
+                        target, 0, target.capacity());
+                target.clear();
+                target.limit(length);
+                return length;
+            } catch (RuntimeException ex) {
+                throw new IOException("Corrupt LZ4 data", ex);
+            }
+        }
+    }
+
+    static final class ZstdCodec implements FrameCodec {
+        private final int level;
+
+        ZstdCodec(int level) {
+            this.level = level;
+        }
+
+        @Override
+        public byte getId() {
+            return ZSTD;
+        }
+
+        @Override
+        public int getLevel() {
+            return level;
+        }
+
+        @Override
+        public int maxCompressedLength(int length) {
+            return (int) Zstd.compressBound(length);
+        }
+
+        @Override
+        public int compress(ByteBuffer source, ByteBuffer target) throws IOException {
+            long length = Zstd.compressDirectByteBuffer(target, 0, target.capacity(),
+                    source, source.position(), source.remaining(), level);
+            return finish(length, target);
+        }
+
+        @Override
+        public int decompress(ByteBuffer source, ByteBuffer target) throws IOException {
+            long length = Zstd.decompressDirectByteBuffer(target, 0, target.capacity(),
+                    source, source.position(), source.remaining());
+            return finish(length, target);
+        }
+
+        private int finish(long length, ByteBuffer target) throws IOException {
+            if (Zstd.isError(length)) {
+                throw new IOException("Zstd failed: " + Zstd.getErrorName(length));
+            }
+            target.clear();
+            target.limit((int) length);
+            return (int) length;
+        }
+    }
+}
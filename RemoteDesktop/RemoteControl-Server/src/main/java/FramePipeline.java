@@ -0,0 +1,532 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+
+/**
+ * FramePipeline runs capture and scale+compress as two stages on separate threads, connected
+ * by a bounded queue of preallocated capture slots, and publishes every encoded frame to a
+ * {@link FrameBroadcaster}. Sending is the third stage: each {@link Viewer} has its own
+ * bounded queue and send thread, so one capture and encode pass serves every viewer.
+ *
+ * When the encoder falls behind, the capture queue fills up and the capture stage recycles the
+ * oldest queued capture. Frames are therefore dropped from the front and latency stays bounded
+ * by the queue sizes. Slow viewers are handled by their own drop policy.
+ *
+ * The encode stage splits each frame into bands that a {@link BandEncoder} diffs and compresses
+ * on all cores. Encoded frames live in pooled direct ByteBuffers and the viewers hand them to
+ * their {@link MuxConnection} video channel. Every frame carries a sequence number and its
+ * capture time, which clients echo back in their acks.
+ *
+ * With an {@link AdaptiveController} the frame interval, scaled size and compression are
+ * retuned once per second from the slowest viewer's measurements. Size and compression changes
+ * reach the viewers in order with the frames, and the first frame after one is a full frame.
+ *
+ * The region of the desktop being streamed can be changed while running, to another screen or
+ * just a window, with {@link #requestCaptureRegion}. Sources that can capture a region capture
+ * only that; from the others the capture stage crops it. The region is streamed at its own size,
+ * shrunk to fit the initial stream size, so the pooled buffers never need to grow, and to fit the
+ * view it is shown in, if given: a region smaller than the view streams at native resolution, a
+ * larger one at the view's size.
+ */
+public class FramePipeline {
+    private static final int CAPTURE_QUEUE_SIZE = 2;
+    private static final long POLL_TIMEOUT_MILLIS = 100;
+    private static final long CONTROLLER_PERIOD_NANOS = TimeUnit.SECONDS.toNanos(1);
+    // Smallest width and height of a capture region
+    public static final int MIN_REGION_SIZE = 16;
+    // Enough for the encoder, a full queue plus one in flight for two viewers, a snapshot and a
+    // full recorder queue
+    private static final int MAX_ENCODED_FRAMES = 10 + SessionRecorder.QUEUE_SIZE;
+    // Per-frame debug messages are logged at most once a second
+    private static final Log.Sampler PUBLISH_LOG = new Log.Sampler(1, TimeUnit.SECONDS);
+
+    private static final Metrics.Histogram CAPTURE_TIME = Metrics.histogram("server_capture_micros",
+            "Time to grab a frame from the source");
+    private static final Metrics.Histogram SCALE_TIME = Metrics.histogram("server_scale_micros",
+            "Time to scale a capture to the stream size");
+    private static final Metrics.Histogram ENCODE_TIME = Metrics.histogram("server_encode_micros",
+            "Wall time to diff and compress a frame on all cores");
+    private static final Metrics.Counter FRAMES_ENCODED = Metrics.counter("server_frames_encoded",
+            "Frames published to the viewers");
+    private static final Metrics.Counter CAPTURES_DROPPED = Metrics.counter("server_captures_dropped",
+            "Captures replaced by a newer one before the encoder got to them");
+
+    private final FrameSource source;
+    private final AdaptiveController controller;
+    private final FrameBroadcaster broadcaster;
+    private final BooleanSupplier keepRunning;
+
+    // Written by the encode stage only; the capture stage reads them for the next capture
+    private volatile StreamConfig config;
+    private volatile long frameIntervalMillis;
+    // The region of the desktop the stream shows; replaced, never modified
+    private volatile Rectangle captureRegion;
+    // A region asked for and not applied yet, or null
+    private final AtomicReference<RegionRequest> requestedRegion = new AtomicReference<>();
+    // The initial stream size, which bounds the size of any region's stream
+    private final int maxWidth;
+    private final int maxHeight;
+    private TileEncoder tileEncoder;
+    private EncodedFrame configMessage;
+    private int nextSequence = 1;
+    // Capture time of the encoder's reference frame, which is what a snapshot shows
+    private long referenceCaptureNanos;
+
+    // Capture stage -> encode stage
+    private final BlockingQueue<CaptureSlot> freeCaptures = new ArrayBlockingQueue<>(CAPTURE_QUEUE_SIZE + 1);
+    private final BlockingQueue<CaptureSlot> capturedFrames = new ArrayBlockingQueue<>(CAPTURE_QUEUE_SIZE + 1);
+    // Encoded frames come back here once every viewer has released them
+    private final BlockingQueue<EncodedFrame> freeEncoded = new LinkedBlockingQueue<>();
+    private final int encodedFrameCapacity;
+    private int encodedFrameCount = 0;
+
+    // Encodes and compresses the bands of a frame in parallel
+    private final BandEncoder bandEncoder;
+    // Encoder-owned list of viewers served by the current snapshot
+    private final List<Viewer> snapshotViewers = new ArrayList<>();
+
+    // Encoder timing for the adaptive controller
+    private long sampleEncodeNanos = 0;
+    private long sampleEncodedFrames = 0;
+    private long nextControllerNanos = System.nanoTime() + CONTROLLER_PERIOD_NANOS;
+
+    private final AtomicLong droppedFrames = new AtomicLong();
+    private volatile boolean running = true;
+
+    /**
+     * @param source     the screen or another source of frames; only the capture stage uses it,
+     *                   and closes it when it ends
+     * @param config     the initial configuration; its size is the largest the stream will use
+     * @param controller retunes the stream from viewer feedback, or null for fixed settings
+     */
+    public FramePipeline(FrameSource source, StreamConfig config, long frameIntervalMillis,
+                         AdaptiveController controller, FrameBroadcaster broadcaster, BooleanSupplier keepRunning) {
+        this.source = source;
+        this.frameIntervalMillis = frameIntervalMillis;
+        this.controller = controller;
+        this.broadcaster = broadcaster;
+        this.keepRunning = keepRunning;
+        this.captureRegion = source.getCaptureRegion();
+        this.maxWidth = config.getWidth();
+        this.maxHeight = config.getHeight();
+        applyConfig(config);
+
+        for (int i = 0; i < CAPTURE_QUEUE_SIZE + 1; i++) {
+            freeCaptures.add(new CaptureSlot(config.getWidth(), config.getHeight()));
+        }
+        bandEncoder = new BandEncoder(config.getWidth(), config.getHeight(), config.getTileSize(),
+                config.getCodec(), Runtime.getRuntime().availableProcessors());
+        // The controller only ever scales down and may toggle compression, so size for the worst case
+        encodedFrameCapacity = bandEncoder.maxBodyLength(config.getWidth(), config.getHeight());
+    }
+
+    /**
+     * Number of captured frames discarded because the encoder was too slow.
+     */
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    /**
+     * Starts the capture stage on the executor and runs the encode stage on the calling thread
+     * until the server is stopped or a stage fails.
+     */
+    public void run(ExecutorService executor) throws IOException, InterruptedException {
+        Future<?> capture = executor.submit(this::captureLoop);
+        try {
+            encodeLoop();
+        } finally {
+            running = false;
+            capture.cancel(true);
+            bandEncoder.close();
+        }
+    }
+
+    /**
+     * Streams another region of the source's desktop from the next frame on. The region is
+     * clipped to the desktop.
+     *
+     * @return false if too little of the region is on the desktop
+     */
+    public boolean requestCaptureRegion(Rectangle region) {
+        return requestCaptureRegion(region, 0, 0);
+    }
+
+    /**
+     * Streams another region of the source's desktop from the next frame on, for a view of the
+     * given size: the stream is no larger than the view.
+     *
+     * @param viewWidth  width of the view, or 0 for no limit
+     * @param viewHeight height of the view, or 0 for no limit
+     * @return false if too little of the region is on the desktop
+     */
+    public boolean requestCaptureRegion(Rectangle region, int viewWidth, int viewHeight) {
+        Rectangle clipped = region.intersection(source.getDesktopBounds());
+        if (clipped.width < MIN_REGION_SIZE || clipped.height < MIN_REGION_SIZE) {
+            return false;
+        }
+        requestedRegion.set(new RegionRequest(clipped, viewWidth, viewHeight));
+        return true;
+    }
+
+    /**
+     * The region of the desktop the stream shows, in desktop coordinates. Must not be modified.
+     */
+    public Rectangle getCaptureRegion() {
+        return captureRegion;
+    }
+
+    private boolean isActive() {
+        return running && keepRunning.getAsBoolean() && !Thread.currentThread().isInterrupted();
+    }
+
+    // Switches to a new configuration with a fresh tile encoder, so the next frame is a full one
+    private void applyConfig(StreamConfig newConfig) {
+        config = newConfig;
+        tileEncoder = newConfig.isDelta()
+                ? new TileEncoder(newConfig.getWidth(), newConfig.getHeight(), newConfig.getTileSize(),
+                        newConfig.isYuv420(), true)
+                : null;
+        if (configMessage != null) {
+            configMessage.release();
+        }
+        configMessage = EncodedFrame.control(newConfig.toMessage());
+    }
+
+    /**
+     * Capture stage: grabs a frame from the source at the target interval and scales it into a free slot.
+     * If no slot is free the oldest queued capture is recycled.
+     */
+    private void captureLoop() {
+        // The region the source was last set to capture, and where to crop it from the capture
+        // when the source cannot capture a region itself
+        Rectangle sourceRegion = source.getCaptureRegion();
+        Rectangle crop = null;
+        try {
+            while (isActive()) {
+                long start = System.currentTimeMillis();
+                if (!broadcaster.hasViewers()) {
+                    // Nobody is watching; don't spend CPU on capturing
+                    Thread.sleep(frameIntervalMillis);
+                    continue;
+                }
+                if (!broadcaster.hasReadyViewer()) {
+                    // Every viewer still has a full window of unacknowledged frames; a capture now
+                    // would only be dropped, so wait a little for acks instead
+                    Thread.sleep(Math.max(1, frameIntervalMillis / 4));
+                    continue;
+                }
+                CaptureSlot slot = freeCaptures.poll();
+                if (slot == null) {
+                    slot = capturedFrames.poll();
+                    if (slot != null) {
+                        droppedFrames.incrementAndGet();
+                        CAPTURES_DROPPED.increment();
+                    } else {
+                        slot = freeCaptures.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                        if (slot == null) {
+                            continue;
+                        }
+                    }
+                }
+                StreamConfig current = config;
+                Rectangle region = captureRegion;
+                if (!region.equals(sourceRegion)) {
+                    sourceRegion = region;
+                    Rectangle desktop = source.getDesktopBounds();
+                    crop = source.setCaptureRegion(region) ? null
+                            : new Rectangle(region.x - desktop.x, region.y - desktop.y, region.width, region.height);
+                }
+                slot.resize(current.getWidth(), current.getHeight());
+                slot.region = region;
+                slot.captureNanos = System.nanoTime();
+                BufferedImage capture = source.capture();
+                long captured = System.nanoTime();
+                slot.scale(capture, crop);
+                CAPTURE_TIME.recordNanos(captured - slot.captureNanos);
+                SCALE_TIME.recordNanos(System.nanoTime() - captured);
+                capturedFrames.put(slot);
+
+                long remaining = frameIntervalMillis - (System.currentTimeMillis() - start);
+                if (remaining > 0) {
+                    Thread.sleep(remaining);
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | RuntimeException ex) {
+            Log.error("Capture failed", ex);
+            running = false;
+        } finally {
+            for (CaptureSlot slot : freeCaptures) {
+                slot.graphics.dispose();
+            }
+            for (CaptureSlot slot : capturedFrames) {
+                slot.graphics.dispose();
+            }
+            source.close();
+        }
+    }
+
+    /**
+     * Encode stage: delta-encodes and compresses captures into pooled frames and publishes them
+     * to the viewers. Between frames it admits new viewers, serves snapshot requests from viewers
+     * that need to resynchronize and runs the adaptive controller.
+     */
+    private void encodeLoop() throws IOException, InterruptedException {
+        while (isActive()) {
+            broadcaster.admitPendingViewers(configMessage);
+            broadcaster.updateRecorder(configMessage);
+            serveSnapshotRequests();
+            runController();
+            applyRequestedRegion();
+            CaptureSlot slot = capturedFrames.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            if (slot == null) {
+                continue;
+            }
+            StreamConfig current = config;
+            if (slot.width != current.getWidth() || slot.height != current.getHeight()
+                    || slot.region != captureRegion) {
+                // Captured at the size or of the region before a reconfiguration
+                freeCaptures.put(slot);
+                continue;
+            }
+            EncodedFrame frame = obtainFrame();
+            if (frame == null) {
+                freeCaptures.put(slot);
+                break;
+            }
+            frame.acquire(false);
+            long start = System.nanoTime();
+            boolean keyframe = tileEncoder == null || !tileEncoder.hasPrevious();
+
+            int bodyLength = bandEncoder.encode(slot.pixels, tileEncoder, current, frame.body());
+            long captureNanos = slot.captureNanos;
+            freeCaptures.put(slot);
+            if (bodyLength > 0) {
+                long encodeNanos = System.nanoTime() - start;
+                sampleEncodeNanos += encodeNanos;
+                sampleEncodedFrames++;
+                ENCODE_TIME.recordNanos(encodeNanos);
+                FRAMES_ENCODED.increment();
+                referenceCaptureNanos = captureNanos;
+                frame.finish(nextSequence++, captureNanos, System.nanoTime(), keyframe);
+                if (Log.isDebugEnabled() && PUBLISH_LOG.sample()) {
+                    Log.debug("Publishing frame %d with byte length %d (%d frames since last logged)",
+                            frame.getSequence(), frame.payload().remaining(), PUBLISH_LOG.takeSkipped());
+                }
+                broadcaster.publish(frame);
+            }
+            // Nothing changed on screen when the length is 0; the frame just goes back to the pool
+            frame.release();
+        }
+        configMessage.release();
+    }
+
+    /**
+     * Once per period, feeds the slowest viewer's measurements to the controller and applies its
+     * decision. The encoder is shared, so the stream is tuned for the worst viewer.
+     */
+    private void runController() {
+        long now = System.nanoTime();
+        if (controller == null || now < nextControllerNanos) {
+            return;
+        }
+        nextControllerNanos = now + CONTROLLER_PERIOD_NANOS;
+        double encodeMillis = sampleEncodedFrames == 0 ? 0 : sampleEncodeNanos / 1e6 / sampleEncodedFrames;
+        sampleEncodeNanos = 0;
+        sampleEncodedFrames = 0;
+
+        AdaptiveController.Sample worst = null;
+        long dropped = 0;
+        for (Viewer viewer : broadcaster.getViewers()) {
+            AdaptiveController.Sample sample = viewer.takeSample(encodeMillis);
+            dropped += sample.droppedFrames;
+            if (worst == null || sample.latencyMillis + sample.decodeMillis
+                    > worst.latencyMillis + worst.decodeMillis) {
+                worst = sample;
+            }
+        }
+        if (worst == null || (worst.bytesPerFrame == 0 && dropped == 0)) {
+            // Nothing was sent this period, so there is nothing to judge
+            return;
+        }
+        AdaptiveController.Sample sample = new AdaptiveController.Sample(worst.latencyMillis, worst.decodeMillis,
+                encodeMillis, worst.throughputBytesPerSecond, worst.bytesPerFrame, dropped);
+        boolean reconfigure = controller.update(sample);
+        if (controller.getIntervalMillis() != frameIntervalMillis) {
+            Log.info("Adaptive: frame interval %d -> %d ms (%s)", frameIntervalMillis,
+                    controller.getIntervalMillis(), sample);
+            frameIntervalMillis = controller.getIntervalMillis();
+        }
+        if (reconfigure) {
+            applyConfig(config.withSize(controller.getWidth(), controller.getHeight())
+                    .withCompress(controller.isCompress()));
+            Log.info("Adaptive: stream reconfigured to %s (%s)", config, sample);
+            broadcaster.reconfigure(configMessage);
+        }
+    }
+
+    /**
+     * Switches the stream to the region last asked for, if any. Its stream size is the region's
+     * size shrunk to fit the initial stream size and the view, at the adaptive controller's
+     * current scale.
+     */
+    private void applyRequestedRegion() {
+        RegionRequest request = requestedRegion.getAndSet(null);
+        if (request == null) {
+            return;
+        }
+        Rectangle region = request.region;
+        int fitWidth = request.viewWidth > 0 ? Math.min(maxWidth, request.viewWidth) : maxWidth;
+        int fitHeight = request.viewHeight > 0 ? Math.min(maxHeight, request.viewHeight) : maxHeight;
+        double scale = Math.min(1.0, Math.min((double) fitWidth / region.width, (double) fitHeight / region.height));
+        int width = Math.max(2, (int) (region.width * scale) & ~1);
+        int height = Math.max(2, (int) (region.height * scale) & ~1);
+        if (region.equals(captureRegion)
+                && (controller == null ? width == config.getWidth() && height == config.getHeight()
+                : width == controller.getMaxWidth() && height == controller.getMaxHeight())) {
+            return;
+        }
+        if (controller != null) {
+            controller.setMaxSize(width, height);
+            width = controller.getWidth();
+            height = controller.getHeight();
+        }
+        applyConfig(config.withScreenSize(region.width, region.height, width, height));
+        captureRegion = region;
+        Log.info("Capturing %dx%d at %d,%d; stream reconfigured to %s", region.width, region.height,
+                region.x, region.y, config);
+        broadcaster.reconfigure(configMessage);
+    }
+
+    /**
+     * Encodes one snapshot of the encoder's reference frame and delivers it to every viewer
+     * currently waiting for one, so several lagging viewers cost a single encode. The recorder
+     * gets the same snapshot as a keyframe when it needs one.
+     */
+    private void serveSnapshotRequests() throws IOException, InterruptedException {
+        Viewer viewer;
+        while ((viewer = broadcaster.pollSnapshotRequest()) != null) {
+            snapshotViewers.add(viewer);
+        }
+        SessionRecorder recorder = broadcaster.getRecorder();
+        boolean recorderWaiting = recorder != null && recorder.needsKeyframe();
+        if (snapshotViewers.isEmpty() && !recorderWaiting) {
+            return;
+        }
+        try {
+            if (tileEncoder == null || !tileEncoder.hasPrevious()) {
+                // The next frame carries the whole picture anyway
+                for (Viewer waiting : snapshotViewers) {
+                    waiting.resumeWithoutSnapshot();
+                }
+                return;
+            }
+            EncodedFrame snapshot = obtainFrame();
+            if (snapshot == null) {
+                return;
+            }
+            snapshot.acquire(true);
+            bandEncoder.encodeSnapshot(tileEncoder, config, snapshot.body());
+            snapshot.finish(nextSequence++, referenceCaptureNanos, System.nanoTime(), true);
+            for (Viewer waiting : snapshotViewers) {
+                waiting.deliverSnapshot(snapshot);
+            }
+            if (recorderWaiting) {
+                recorder.offer(snapshot);
+            }
+            snapshot.release();
+        } finally {
+            snapshotViewers.clear();
+        }
+    }
+
+    /**
+     * Takes a free frame from the pool, growing the pool up to its limit, or waits for a viewer
+     * to release one. Returns null if the pipeline stopped while waiting.
+     */
+    private EncodedFrame obtainFrame() throws InterruptedException {
+        EncodedFrame frame = freeEncoded.poll();
+        if (frame == null && encodedFrameCount < MAX_ENCODED_FRAMES) {
+            encodedFrameCount++;
+            return new EncodedFrame(encodedFrameCapacity, freeEncoded);
+        }
+        while (frame == null && isActive()) {
+            frame = freeEncoded.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        return frame;
+    }
+
+    private static final class RegionRequest {
+        final Rectangle region;
+        final int viewWidth;
+        final int viewHeight;
+
+        RegionRequest(Rectangle region, int viewWidth, int viewHeight) {
+            this.region = region;
+            this.viewWidth = viewWidth;
+            this.viewHeight = viewHeight;
+        }
+    }
+
+    /**
+     * A preallocated scaled image together with its reusable Graphics2D. It is only
+     * reallocated when the stream is reconfigured to a different size.
+     */
+    static class CaptureSlot {
+        int width;
+        int height;
+        BufferedImage image;
+        Graphics2D graphics;
+        byte[] pixels;
+        long captureNanos;
+        // The capture region the pixels show
+        Rectangle region;
+
+        CaptureSlot(int width, int height) {
+            allocate(width, height);
+        }
+
+        void resize(int newWidth, int newHeight) {
+            if (newWidth != width || newHeight != height) {
+                graphics.dispose();
+                allocate(newWidth, newHeight);
+            }
+        }
+
+        /**
+         * Scales a capture, or the crop rectangle of it if not null, into this slot's BGR pixels.
+         */
+        void scale(BufferedImage capture, Rectangle crop) {
+            if (crop == null) {
+                graphics.drawImage(capture, 0, 0, width, height, null);
+            } else {
+                graphics.drawImage(capture, 0, 0, width, height,
+                        crop.x, crop.y, crop.x + crop.width, crop.y + crop.height, null);
+            }
+        }
+
+        private void allocate(int newWidth, int newHeight) {
+            width = newWidth;
+            height = newHeight;
+            image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+            graphics = image.createGraphics();
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                    RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            pixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * FrameSource supplies the images the {@link FramePipeline} scales and encodes: the screen
+ * ({@link RobotFrameSource}), generated content ({@link SyntheticFrameSource}) or recorded frames
+ * ({@link ReplayFrameSource}). Only the capture stage calls it, so implementations need not be
+ * thread-safe; {@link #getScreens} is the exception.
+ *
+ * A source shows a desktop made of one or more screens. It captures all of it unless it can
+ * capture a region by itself, in which case the pipeline asks it for just the region being
+ * streamed; otherwise the pipeline crops the region from the whole desktop.
+ */
+public interface FrameSource extends Closeable {
+    int getWidth();
+
+    int getHeight();
+
+    /**
+     * Returns the next frame, getWidth() x getHeight() pixels. The image may be reused by the
+     * next call, so it must be consumed before capturing again.
+     */
+    BufferedImage capture() throws IOException;
+
+    /**
+     * The bounds of the screens, in desktop coordinates. May be called from any thread.
+     */
+    default Rectangle[] getScreens() {
+        return new Rectangle[]{new Rectangle(0, 0, getWidth(), getHeight())};
+    }
+
+    /**
+     * The bounds of the whole desktop: all screens.
+     */
+    default Rectangle getDesktopBounds() {
+        Rectangle bounds = null;
+        for (Rectangle screen : getScreens()) {
+            bounds = bounds == null ? new Rectangle(screen) : bounds.union(screen);
+        }
+        return bounds;
+    }
+
+    /**
+     * The region of the desktop the next capture shows.
+     */
+    default Rectangle getCaptureRegion() {
+        return new Rectangle(0, 0, getWidth(), getHeight());
+    }
+
+    /**
+     * Captures only a region of the desktop from the next capture on, if the source can.
+     *
+     * @return true if the captures now show just the region, false if they still show the whole
+     * desktop and the caller crops the region
+     */
+    default boolean setCaptureRegion(Rectangle region) {
+        return false;
+    }
+
+    @Override
+    default void close() {
+    }
+}
@@ -0,0 +1,152 @@
+import java.awt.*;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HeadlessServer runs the server from the command line, without a window, so it can be load- and
+ * soak-tested on machines without a display. The frames come from a synthetic pattern or a replay
+ * of recorded captures; with the screen as the source it behaves like the windowed server. Input
+ * from viewers is only replayed when streaming the screen.
+ *
+ * Usage: java HeadlessServer [options]
+ *   --source static|scrolling|video|replay:DIR|screen   frames to stream (default scrolling)
+ *   --source-size WxH      size of synthetic frames (default 1920x1080)
+ *   --size WxH             stream size (default: the source size)
+ *   --codec NAME           raw, snappy, lz4, lz4-9, zstd-3, ... (default snappy)
+ *   --no-compress          send frames uncompressed
+ *   --no-delta             send full frames instead of changed tiles
+ *   --yuv420               send pixels as YUV 4:2:0, half the bytes with colour at half resolution
+ *   --no-adaptive          keep the settings fixed instead of adapting to the slowest viewer
+ *   --policy NAME          what to do with a slow viewer: DROP or DOWNGRADE
+ *   --port N               port to listen on (default 9090)
+ *   --record FILE          record the stream to a session file
+ *   --duration SECONDS     stop after this long, for soak tests (default: run until killed)
+ *   --metrics-port N       serve metrics at http://localhost:N/metrics
+ *   --metrics-dump SECONDS log the metrics this often
+ */
+public class HeadlessServer {
+    public static void main(String[] args) throws Exception {
+        String sourceName = "scrolling";
+        Dimension sourceSize = new Dimension(1920, 1080);
+        Dimension streamSize = null;
+        String codecName = "snappy";
+        boolean isCompress = true;
+        boolean isDelta = true;
+        boolean isYuv420 = false;
+        boolean isAdaptive = true;
+        Viewer.SlowViewerPolicy policy = Viewer.SlowViewerPolicy.DROP;
+        int port = ScreenServer.DEFAULT_PORT;
+        long durationSeconds = 0;
+        File recordFile = null;
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--source":
+                    sourceName = args[++i];
+                    break;
+                case "--source-size":
+                    sourceSize = parseSize(args[++i]);
+                    break;
+                case "--size":
+                    streamSize = parseSize(args[++i]);
+                    break;
+                case "--codec":
+                    codecName = args[++i];
+                    break;
+                case "--no-compress":
+                    isCompress = false;
+                    break;
+                case "--no-delta":
+                    isDelta = false;
+                    break;
+                case "--yuv420":
+                    isYuv420 = true;
+                    break;
+                case "--no-adaptive":
+                    isAdaptive = false;
+                    break;
+                case "--policy":
+                    policy = Viewer.SlowViewerPolicy.valueOf(args[++i].toUpperCase());
+                    break;
+                case "--port":
+                    port = Integer.parseInt(args[++i]);
+                    break;
+                case "--duration":
+                    durationSeconds = Long.parseLong(args[++i]);
+                    break;
+                case "--record":
+                    recordFile = new File(args[++i]);
+                    break;
+                case "--metrics-port":
+                    Metrics.startHttp(Integer.parseInt(args[++i]));
+                    break;
+                case "--metrics-dump":
+                    Metrics.startDump(Long.parseLong(args[++i]));
+                    break;
+                default:
+                    System.out.println("Unknown option: " + args[i]);
+                    System.exit(2);
+            }
+        }
+
+        Robot inputRobot = null;
+        FrameSource source;
+        if (sourceName.equals("screen")) {
+            inputRobot = new Robot();
+            source = new RobotFrameSource(new Robot(), new Rectangle(Toolkit.getDefaultToolkit().getScreenSize()));
+        } else {
+            source = createSource(sourceName, sourceSize);
+        }
+        if (streamSize == null) {
+            streamSize = new Dimension(source.getWidth(), source.getHeight());
+        }
+        StreamConfig config = new StreamConfig(source.getWidth(), source.getHeight(),
+                streamSize.width, streamSize.height, isCompress, isDelta, TileEncoder.DEFAULT_TILE_SIZE,
+                FrameCodecs.parse(codecName), isYuv420);
+
+        Metrics.startFromSystemProperties();
+        ExecutorService executorService = Executors.newCachedThreadPool();
+        ScreenServer server = new ScreenServer(port, source, inputRobot, config, isAdaptive, policy,
+                ScreenServer.FRAME_INTERVAL_MILLIS, executorService,
+                count -> Log.info("Viewers connected: %d", count));
+        Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+        Log.info("Streaming %s on port %d", sourceName, port);
+
+        executorService.submit(server);
+        if (recordFile != null) {
+            server.startRecording(recordFile);
+        }
+        if (durationSeconds > 0) {
+            TimeUnit.SECONDS.sleep(durationSeconds);
+            server.stop();
+            executorService.shutdownNow();
+            executorService.awaitTermination(5, TimeUnit.SECONDS);
+            System.exit(0);
+        }
+    }
+
+    private static FrameSource createSource(String name, Dimension size) throws IOException {
+        if (name.startsWith("replay:")) {
+            return new ReplayFrameSource(new File(name.substring("replay:".length())));
+        }
+        switch (name) {
+            case "static":
+                return new SyntheticFrameSource(size.width, size.height, SyntheticFrameSource.Pattern.STATIC);
+            case "scrolling":
+                return new SyntheticFrameSource(size.width, size.height, SyntheticFrameSource.Pattern.SCROLLING_TEXT);
+            case "video":
+                return new SyntheticFrameSource(size.width, size.height, SyntheticFrameSource.Pattern.VIDEO);
+            default:
+                throw new IllegalArgumentException("Unknown source: " + name);
+        }
+    }
+
+    private static Dimension parseSize(String size) {
+        int separator = size.indexOf('x');
+        return new Dimension(Integer.parseInt(size.substring(0, separator)),
+                Integer.parseInt(size.substring(separator + 1)));
+    }
+}
@@ -0,0 +1,209 @@
+import java.awt.Robot;
+import java.awt.event.MouseEvent;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * InputDispatcher injects the viewers' mouse and keyboard input on a single thread of its own.
+ * The connection threads only decode messages and queue the events, so a Robot call that blocks
+ * never stalls a socket read, and all events are injected in the order they arrived, mouse and
+ * keyboard alike.
+ *
+ * The queue is lock free and bounded: when it holds {@link #QUEUE_CAPACITY} events, further moves
+ * are dropped (the next move supersedes them anyway), while presses, releases and wheel turns are
+ * always queued so no button or key is left held down. Queue depth and the time from queueing to
+ * injection are logged every few seconds while there is input.
+ */
+public class InputDispatcher implements Runnable {
+    public static final int QUEUE_CAPACITY = 1024;
+    private static final long STATS_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+
+    // Lines a wheel notch scrolls
+    private static final int WHEEL_SCROLL_AMOUNT = 3;
+
+    private static final Metrics.Histogram INJECT_LATENCY = Metrics.histogram("server_input_latency_micros",
+            "Time from decoding an input event to injecting it");
+    private static final Metrics.Counter EVENTS_INJECTED = Metrics.counter("server_input_events",
+            "Input events injected");
+    private static final Metrics.Counter MOVES_DROPPED = Metrics.counter("server_input_moves_dropped",
+            "Mouse moves dropped because the input queue was full");
+
+    private static final int MOUSE_MOVE = 1;
+    private static final int MOUSE_PRESS = 2;
+    private static final int MOUSE_RELEASE = 3;
+    private static final int MOUSE_WHEEL = 4;
+    private static final int KEY_PRESS = 5;
+    private static final int KEY_RELEASE = 6;
+
+    private final Robot robot;
+    private final Queue<Event> queue = new ConcurrentLinkedQueue<>();
+    // Events queued and not injected yet; may briefly lag the queue itself
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private volatile Thread thread;
+    private volatile boolean running = true;
+
+    // Statistics: updated by the producers (drops, depth) and the dispatch thread (the rest)
+    private final AtomicLong droppedMoves = new AtomicLong();
+    private final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private long statsEvents = 0;
+    private long statsLatencyNanos = 0;
+    private long statsMaxLatencyNanos = 0;
+    private long nextStatsNanos = System.nanoTime() + STATS_INTERVAL_NANOS;
+
+    /**
+     * @param robot injects the events; it should not be the Robot that captures the screen, whose
+     *              calls would otherwise wait for each other
+     */
+    public InputDispatcher(Robot robot) {
+        this.robot = robot;
+        Metrics.gauge("server_input_queue_depth", "Input events waiting to be injected", queueDepth::get);
+    }
+
+    public void mouseMove(int x, int y) {
+        if (queueDepth.get() >= QUEUE_CAPACITY) {
+            droppedMoves.incrementAndGet();
+            MOVES_DROPPED.increment();
+            return;
+        }
+        enqueue(MOUSE_MOVE, x, y);
+    }
+
+    public void mousePress(int button) {
+        enqueue(MOUSE_PRESS, button, 0);
+    }
+
+    public void mouseRelease(int button) {
+        enqueue(MOUSE_RELEASE, button, 0);
+    }
+
+    public void mouseWheel(int notches) {
+        enqueue(MOUSE_WHEEL, notches, 0);
+    }
+
+    public void keyPress(int keyCode) {
+        enqueue(KEY_PRESS, keyCode, 0);
+    }
+
+    public void keyRelease(int keyCode) {
+        enqueue(KEY_RELEASE, keyCode, 0);
+    }
+
+    private void enqueue(int type, int a, int b) {
+        queue.add(new Event(type, a, b, System.nanoTime()));
+        int depth = queueDepth.incrementAndGet();
+        if (depth > maxQueueDepth.get()) {
+            maxQueueDepth.accumulateAndGet(depth, Math::max);
+        }
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * Stops the dispatch thread; events still queued are dropped.
+     */
+    public void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        while (running && !thread.isInterrupted()) {
+            Event event = queue.poll();
+            if (event == null) {
+                LockSupport.parkNanos(this, STATS_INTERVAL_NANOS);
+            } else {
+                queueDepth.decrementAndGet();
+                inject(event);
+                long latencyNanos = System.nanoTime() - event.queuedNanos;
+                INJECT_LATENCY.recordNanos(latencyNanos);
+                EVENTS_INJECTED.increment();
+                statsEvents++;
+                statsLatencyNanos += latencyNanos;
+                statsMaxLatencyNanos = Math.max(statsMaxLatencyNanos, latencyNanos);
+            }
+            long now = System.nanoTime();
+            if (now >= nextStatsNanos) {
+                printStats();
+                nextStatsNanos = now + STATS_INTERVAL_NANOS;
+            }
+        }
+    }
+
+    private void inject(Event event) {
+        try {
+            switch (event.type) {
+                case MOUSE_MOVE:
+                    robot.mouseMove(event.a, event.b);
+                    break;
+                case MOUSE_PRESS:
+                    robot.mousePress(getButtonMask(event.a));
+                    break;
+                case MOUSE_RELEASE:
+                    robot.mouseRelease(getButtonMask(event.a));
+                    break;
+                case MOUSE_WHEEL:
+                    robot.mouseWheel(event.a * WHEEL_SCROLL_AMOUNT);
+                    break;
+                case KEY_PRESS:
+                    robot.keyPress(event.a);
+                    break;
+                case KEY_RELEASE:
+                    robot.keyRelease(event.a);
+                    break;
+                default:
+                    break;
+            }
+        } catch (IllegalArgumentException ex) {
+            // An invalid key code or button from the client
+            Log.warn("Cannot inject input: %s", ex.getMessage());
+        }
+    }
+
+    // Prints and resets the statistics when there was input since the last report
+    private void printStats() {
+        long dropped = droppedMoves.getAndSet(0);
+        int maxDepth = maxQueueDepth.getAndSet(queueDepth.get());
+        if (statsEvents == 0 && dropped == 0) {
+            return;
+        }
+        Log.info("Input: %d events injected, latency avg %.2f ms, max %.2f ms, queue max %d, %d moves dropped",
+                statsEvents, statsEvents == 0 ? 0 : statsLatencyNanos / 1e6 / statsEvents,
+                statsMaxLatencyNanos / 1e6, maxDepth, dropped);
+        statsEvents = 0;
+        statsLatencyNanos = 0;
+        statsMaxLatencyNanos = 0;
+    }
+
+    // Converts a mouse button number to the appropriate mask for Robot.
+    private static int getButtonMask(int button) {
+        switch (button) {
+            case 1:
+                return MouseEvent.BUTTON1_DOWN_MASK;
+            case 2:
+                return MouseEvent.BUTTON2_DOWN_MASK;
+            case 3:
+                return MouseEvent.BUTTON3_DOWN_MASK;
+            default:
+                return 0;
+        }
+    }
+
+    private static final class Event {
+        final int type;
+        final int a;
+        final int b;
+        final long queuedNanos;
+
+        Event(int type, int a, int b, long queuedNanos) {
+            this.type = type;
+            this.a = a;
+            this.b = b;
+            this.queuedNanos = queuedNanos;
+        }
+    }
+}
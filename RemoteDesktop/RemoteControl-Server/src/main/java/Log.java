@@ -0,0 +1,224 @@
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.IllegalFormatException;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Log is a small leveled, asynchronous logger. Keep this class identical on the client and the
+ * server.
+ *
+ * A log call only captures the time, the thread name and the arguments and queues them; a
+ * single writer thread formats the message and prints it, so no caller formats strings or waits
+ * for the stdout lock. When the queue is full, messages are dropped and counted instead of
+ * blocking the caller. Messages are formatted later, so arguments should not change after the
+ * call.
+ *
+ * The level is read once from the {@code remotecontrol.log} system property (ERROR, WARN, INFO
+ * or DEBUG, default INFO). It is a constant, so a hot-path statement guarded by
+ * {@code if (Log.isDebugEnabled())} costs nothing when debug logging is off. Per-frame messages
+ * should also go through a {@link Sampler}, so debug logging does not flood the output either.
+ */
+public final class Log {
+    public enum Level { ERROR, WARN, INFO, DEBUG }
+
+    public static final Level LEVEL = parseLevel(System.getProperty("remotecontrol.log"));
+
+    private static final int QUEUE_CAPACITY = 4096;
+    private static final int MAX_BATCH = 256;
+
+    private static final BlockingQueue<Entry> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final Object drainLock = new Object();
+
+    static {
+        Thread writer = new Thread(Log::writeLoop, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        // Print what is still queued when the program exits
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+    }
+
+    private Log() {
+    }
+
+    public static boolean isEnabled(Level level) {
+        return level.compareTo(LEVEL) <= 0;
+    }
+
+    public static boolean isDebugEnabled() {
+        return Level.DEBUG.compareTo(LEVEL) <= 0;
+    }
+
+    public static void error(String message, Throwable thrown) {
+        log(Level.ERROR, message, null, thrown);
+    }
+
+    public static void error(String format, Object... args) {
+        log(Level.ERROR, format, args, null);
+    }
+
+    public static void warn(String format, Object... args) {
+        log(Level.WARN, format, args, null);
+    }
+
+    public static void info(String format, Object... args) {
+        log(Level.INFO, format, args, null);
+    }
+
+    public static void debug(String format, Object... args) {
+        log(Level.DEBUG, format, args, null);
+    }
+
+    /**
+     * Queues a message; {@code format} is printed as is when {@code args} is null or empty.
+     */
+    public static void log(Level level, String format, Object[] args, Throwable thrown) {
+        if (!isEnabled(level)) {
+            return;
+        }
+        Entry entry = new Entry(level, System.currentTimeMillis(), Thread.currentThread().getName(),
+                format, args, thrown);
+        if (!queue.offer(entry)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * Prints everything queued so far before returning.
+     */
+    public static void flush() {
+        List<Entry> batch = new ArrayList<>(MAX_BATCH);
+        synchronized (drainLock) {
+            while (queue.drainTo(batch, MAX_BATCH) > 0) {
+                write(batch);
+            }
+        }
+    }
+
+    private static void writeLoop() {
+        List<Entry> batch = new ArrayList<>(MAX_BATCH);
+        while (true) {
+            try {
+                Entry first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                synchronized (drainLock) {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    write(batch);
+                }
+            } catch (InterruptedException ex) {
+                return;
+            } catch (RuntimeException ex) {
+                // A failing toString() of an argument must not stop the logger
+                batch.clear();
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    // Called with drainLock held; prints and clears the batch
+    private static void write(List<Entry> batch) {
+        long lost = dropped.getAndSet(0);
+        if (lost > 0) {
+            System.out.println(lost + " log messages dropped");
+        }
+        for (Entry entry : batch) {
+            PrintStream out = entry.level == Level.ERROR ? System.err : System.out;
+            out.println(entry.format());
+            if (entry.thrown != null) {
+                entry.thrown.printStackTrace(out);
+            }
+        }
+        System.out.flush();
+        batch.clear();
+    }
+
+    private static Level parseLevel(String name) {
+        if (name != null) {
+            try {
+                return Level.valueOf(name.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException ex) {
+                System.err.println("Unknown log level " + name + ", using INFO");
+            }
+        }
+        return Level.INFO;
+    }
+
+    /**
+     * Lets through at most one message per interval, for statements on a per-frame or per-event
+     * path. Thread safe; {@link #sample} is a clock read and, once per interval, a CAS.
+     */
+    public static final class Sampler {
+        private final long intervalNanos;
+        private final AtomicLong nextNanos;
+        private final AtomicLong skipped = new AtomicLong();
+
+        public Sampler(long interval, TimeUnit unit) {
+            this.intervalNanos = unit.toNanos(interval);
+            this.nextNanos = new AtomicLong(System.nanoTime());
+        }
+
+        /**
+         * Returns true if this call should log; false calls are counted as skipped.
+         */
+        public boolean sample() {
+            long now = System.nanoTime();
+            long next = nextNanos.get();
+            if (now - next >= 0 && nextNanos.compareAndSet(next, now + intervalNanos)) {
+                return true;
+            }
+            skipped.incrementAndGet();
+            return false;
+        }
+
+        /**
+         * Returns and resets the number of calls skipped since the last sampled one.
+         */
+        public long takeSkipped() {
+            return skipped.getAndSet(0);
+        }
+    }
+
+    private static final class Entry {
+        private static final ThreadLocal<SimpleDateFormat> TIME_FORMAT =
+                ThreadLocal.withInitial(() -> new SimpleDateFormat("HH:mm:ss.SSS"));
+
+        final Level level;
+        final long timeMillis;
+        final String thread;
+        final String message;
+        final Object[] args;
+        final Throwable thrown;
+
+        Entry(Level level, long timeMillis, String thread, String message, Object[] args, Throwable thrown) {
+            this.level = level;
+            this.timeMillis = timeMillis;
+            this.thread = thread;
+            this.message = message;
+            this.args = args;
+            this.thrown = thrown;
+        }
+
+        String format() {
+            String text = message;
+            if (args != null && args.length > 0) {
+                try {
+                    text = String.format(message, args);
+                } catch (IllegalFormatException ex) {
+                    text = message + " " + Arrays.toString(args);
+                }
+            }
+            return TIME_FORMAT.get().format(new Date(timeMillis)) + " " + level + " [" + thread + "] " + text;
+        }
+    }
+}
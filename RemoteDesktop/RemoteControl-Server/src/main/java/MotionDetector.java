@@ -0,0 +1,308 @@
+import java.nio.ByteBuffer;
+
+/**
+ * MotionDetector finds the tiles of a frame that show pixels of the previous frame moved to
+ * another place, as when a document scrolls or a window is dragged, so they can be sent as
+ * copies of pixels the client already has instead of as new pixels.
+ *
+ * Only tiles that changed are looked at. Each is first compared against the offsets of the
+ * moves found lately, which catches the rest of a scrolled or dragged area once its first tile
+ * is found. A few tiles per frame are also searched: up and down their column at any distance,
+ * for scrolling, and within {@link #SEARCH_RADIUS} in every direction, for drags. A search
+ * matches one row of the tile that has detail in it and then compares the whole tile, so every
+ * move is exact and the client ends up with the same pixels as if the tile had been sent.
+ *
+ * Moves layout:
+ *   int moveCount
+ *   moveCount x { int srcX, int srcY, int x, int y, int w, int h }
+ *
+ * Every source is read from the previous frame, before any move is applied, so moves may
+ * overlap each other's sources. Side by side tiles of a row that moved together are sent as
+ * one move.
+ */
+public class MotionDetector {
+    private static final int BYTES_PER_PIXEL = 3;
+    private static final int MOVE_LENGTH = 6 * 4;
+    // Offsets of recent moves compared against every changed tile, newest first
+    private static final int MAX_OFFSETS = 8;
+    // Tiles searched per frame, which bounds the time spent on frames where nothing moved
+    private static final int MAX_SEARCHES = 8;
+    private static final int SEARCH_RADIUS = 48;
+    // Row matches of one search compared against the whole tile before giving up
+    private static final int MAX_TILE_COMPARES = 8;
+
+    private static final Metrics.Histogram DETECT_TIME = Metrics.histogram("server_motion_micros",
+            "Time spent looking for moved tiles in a frame");
+    private static final Metrics.Counter MOVED_PIXELS = Metrics.counter("server_moved_pixels",
+            "Pixels sent as moves of pixels the viewers already have");
+
+    private final int width;
+    private final int height;
+    private final int tileSize;
+    private final int tilesX;
+
+    // Tiles that changed and did not move, in rows of tilesX, so they need not be compared again
+    private final boolean[] changedTiles;
+    // Each move as srcX, srcY, x, y, w, h
+    private final int[] moves;
+    private int moveCount = 0;
+    // Recent offsets from destination to source, kept from frame to frame
+    private final int[] offsetX = new int[MAX_OFFSETS];
+    private final int[] offsetY = new int[MAX_OFFSETS];
+    private int offsetCount = 0;
+    // The moved pixels between reading the sources and writing the destinations
+    private byte[] scratch = new byte[0];
+
+    public MotionDetector(int width, int height, int tileSize) {
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        this.tilesX = (width + tileSize - 1) / tileSize;
+        int tiles = tilesX * ((height + tileSize - 1) / tileSize);
+        changedTiles = new boolean[tiles];
+        moves = new int[tiles * 6];
+    }
+
+    /**
+     * Returns the longest moves list for the given geometry: one move per tile.
+     */
+    public static int maxEncodedLength(int width, int height, int tileSize) {
+        int tiles = ((width + tileSize - 1) / tileSize) * ((height + tileSize - 1) / tileSize);
+        return 4 + tiles * MOVE_LENGTH;
+    }
+
+    /**
+     * Finds the changed tiles of {@code frame} that are moved pixels of {@code previous}, and
+     * applies the moves to {@code previous} so those tiles compare unchanged afterwards. The
+     * other tiles that changed are then known from {@link #isTileChanged}.
+     *
+     * @return the number of moves, which {@link #write} writes out
+     */
+    public int detect(byte[] frame, byte[] previous) {
+        long start = System.nanoTime();
+        moveCount = 0;
+        int searches = 0;
+        int tile = 0;
+        for (int ty = 0; ty < height; ty += tileSize) {
+            int th = Math.min(tileSize, height - ty);
+            for (int tx = 0; tx < width; tx += tileSize, tile++) {
+                int tw = Math.min(tileSize, width - tx);
+                changedTiles[tile] = !isTileEqual(frame, tx, ty, previous, tx, ty, tw, th)
+                        && !findRecentOffset(frame, previous, tx, ty, tw, th)
+                        && (searches++ >= MAX_SEARCHES || !search(frame, previous, tx, ty, tw, th));
+            }
+        }
+        if (moveCount > 0) {
+            apply(previous);
+        }
+        DETECT_TIME.recordNanos(System.nanoTime() - start);
+        return moveCount;
+    }
+
+    /**
+     * True if the tile at the given tile origin changed in the frame of the last {@link #detect}
+     * and is not covered by a move.
+     */
+    public boolean isTileChanged(int tx, int ty) {
+        return changedTiles[ty / tileSize * tilesX + tx / tileSize];
+    }
+
+    /**
+     * Writes the moves found by the last {@link #detect} from position 0 of {@code output} and
+     * flips it.
+     */
+    public void write(ByteBuffer output) {
+        output.clear();
+        output.putInt(moveCount);
+        for (int i = 0; i < moveCount * 6; i++) {
+            output.putInt(moves[i]);
+        }
+        output.flip();
+    }
+
+    // Tries the offsets of recent moves, newest first
+    private boolean findRecentOffset(byte[] frame, byte[] previous, int tx, int ty, int tw, int th) {
+        for (int i = 0; i < offsetCount; i++) {
+            int sx = tx + offsetX[i];
+            int sy = ty + offsetY[i];
+            if (isInside(sx, sy, tw, th) && isTileEqual(frame, tx, ty, previous, sx, sy, tw, th)) {
+                addMove(sx, sy, tx, ty, tw, th);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Looks for the tile in its column at any distance and then around it, matching one row with
+    // detail in it before comparing the whole tile; true if it was found
+    private boolean search(byte[] frame, byte[] previous, int tx, int ty, int tw, int th) {
+        int row = detailRow(frame, tx, ty, tw, th);
+        if (row < 0) {
+            // A flat tile matches everywhere and compresses to almost nothing anyway
+            return false;
+        }
+        int rowY = ty + row;
+        int anchor = anchorPixel(frame, tx, rowY, tw);
+        int compares = 0;
+        for (int distance = 1; distance < height && compares < MAX_TILE_COMPARES; distance++) {
+            for (int sign = -1; sign <= 1; sign += 2) {
+                int sy = ty + sign * distance;
+                if (sy >= 0 && sy + th <= height
+                        && isRowEqual(frame, tx, rowY, previous, tx, sy + row, tw, anchor)) {
+                    compares++;
+                    if (isTileEqual(frame, tx, ty, previous, tx, sy, tw, th)) {
+                        addMove(tx, sy, tx, ty, tw, th);
+                        return true;
+                    }
+                }
+            }
+        }
+        int minY = Math.max(0, ty - SEARCH_RADIUS);
+        int maxY = Math.min(height - th, ty + SEARCH_RADIUS);
+        int minX = Math.max(0, tx - SEARCH_RADIUS);
+        int maxX = Math.min(width - tw, tx + SEARCH_RADIUS);
+        compares = 0;
+        for (int sy = minY; sy <= maxY; sy++) {
+            for (int sx = minX; sx <= maxX; sx++) {
+                if (sx != tx && isRowEqual(frame, tx, rowY, previous, sx, sy + row, tw, anchor)) {
+                    if (isTileEqual(frame, tx, ty, previous, sx, sy, tw, th)) {
+                        addMove(sx, sy, tx, ty, tw, th);
+                        return true;
+                    }
+                    if (++compares == MAX_TILE_COMPARES) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    // Records a move and makes its offset the first one tried; joins it to the move of the tile
+    // to its left when that moved by the same offset
+    private void addMove(int sx, int sy, int tx, int ty, int tw, int th) {
+        MOVED_PIXELS.add((long) tw * th);
+        int dx = sx - tx;
+        int dy = sy - ty;
+        int last = (moveCount - 1) * 6;
+        if (moveCount > 0 && moves[last + 3] == ty && moves[last + 5] == th
+                && moves[last + 2] + moves[last + 4] == tx
+                && moves[last] - moves[last + 2] == dx && moves[last + 1] - moves[last + 3] == dy) {
+            moves[last + 4] += tw;
+        } else {
+            int i = moveCount * 6;
+            moves[i] = sx;
+            moves[i + 1] = sy;
+            moves[i + 2] = tx;
+            moves[i + 3] = ty;
+            moves[i + 4] = tw;
+            moves[i + 5] = th;
+            moveCount++;
+        }
+
+        int found = 0;
+        while (found < offsetCount && (offsetX[found] != dx || offsetY[found] != dy)) {
+            found++;
+        }
+        if (found == offsetCount) {
+            offsetCount = Math.min(offsetCount + 1, MAX_OFFSETS);
+            found = offsetCount - 1;
+        }
+        System.arraycopy(offsetX, 0, offsetX, 1, found);
+        System.arraycopy(offsetY, 0, offsetY, 1, found);
+        offsetX[0] = dx;
+        offsetY[0] = dy;
+    }
+
+    // Reads every source before writing any destination, as the client does
+    private void apply(byte[] previous) {
+        int total = 0;
+        for (int i = 0; i < moveCount; i++) {
+            total += moves[i * 6 + 4] * moves[i * 6 + 5] * BYTES_PER_PIXEL;
+        }
+        if (scratch.length < total) {
+            scratch = new byte[total];
+        }
+        int offset = 0;
+        for (int i = 0; i < moveCount * 6; i += 6) {
+            int rowBytes = moves[i + 4] * BYTES_PER_PIXEL;
+            for (int row = 0; row < moves[i + 5]; row++) {
+                System.arraycopy(previous, ((moves[i + 1] + row) * width + moves[i]) * BYTES_PER_PIXEL,
+                        scratch, offset, rowBytes);
+                offset += rowBytes;
+            }
+        }
+        offset = 0;
+        for (int i = 0; i < moveCount * 6; i += 6) {
+            int rowBytes = moves[i + 4] * BYTES_PER_PIXEL;
+            for (int row = 0; row < moves[i + 5]; row++) {
+                System.arraycopy(scratch, offset, previous,
+                        ((moves[i + 3] + row) * width + moves[i + 2]) * BYTES_PER_PIXEL, rowBytes);
+                offset += rowBytes;
+            }
+        }
+    }
+
+    private boolean isInside(int x, int y, int w, int h) {
+        return x >= 0 && y >= 0 && x + w <= width && y + h <= height;
+    }
+
+    // The first row of the tile, from the middle down and then up, whose pixels are not all the
+    // same, or -1 for a flat tile
+    private int detailRow(byte[] frame, int tx, int ty, int tw, int th) {
+        for (int i = 0; i < th; i++) {
+            int row = (th / 2 + i) % th;
+            if (anchorPixel(frame, tx, ty + row, tw) > 0) {
+                return row;
+            }
+        }
+        return -1;
+    }
+
+    // The first pixel of the row that differs from the one before it, or 0 if there is none
+    private int anchorPixel(byte[] frame, int x, int y, int w) {
+        int offset = (y * width + x) * BYTES_PER_PIXEL;
+        for (int i = 1; i < w; i++) {
+            int pixel = offset + i * BYTES_PER_PIXEL;
+            if (frame[pixel] != frame[pixel - 3] || frame[pixel + 1] != frame[pixel - 2]
+                    || frame[pixel + 2] != frame[pixel - 1]) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+    // Compares a row of w pixels, starting at the anchor pixel and the one before it, which
+    // rejects most positions after a few bytes
+    private boolean isRowEqual(byte[] frame, int x, int y, byte[] previous, int sx, int sy, int w, int anchor) {
+        int offset = (y * width + x) * BYTES_PER_PIXEL;
+        int sourceOffset = (sy * width + sx) * BYTES_PER_PIXEL;
+        int a = (anchor - 1) * BYTES_PER_PIXEL;
+        for (int i = a + 2 * BYTES_PER_PIXEL - 1; i >= a; i--) {
+            if (frame[offset + i] != previous[sourceOffset + i]) {
+                return false;
+            }
+        }
+        int rowBytes = w * BYTES_PER_PIXEL;
+        for (int i = 0; i < rowBytes; i++) {
+            if (frame[offset + i] != previous[sourceOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isTileEqual(byte[] frame, int x, int y, byte[] previous, int sx, int sy, int w, int h) {
+        int rowBytes = w * BYTES_PER_PIXEL;
+        for (int row = 0; row < h; row++) {
+            int offset = ((y + row) * width + x) * BYTES_PER_PIXEL;
+            int sourceOffset = ((sy + row) * width + sx) * BYTES_PER_PIXEL;
+            for (int i = 0; i < rowBytes; i++) {
+                if (frame[offset + i] != previous[sourceOffset + i]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,212 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * MuxConnection carries every channel (control, video, mouse, keyboard, feedback, ack) over one TCP
+ * connection as typed messages. Keep this class identical on the client and the server.
+ *
+ * Message layout: byte channel, byte flags, int length, byte[length] payload.
+ * Large payloads are split into chunks of at most {@link #MAX_CHUNK_LENGTH} bytes; the last
+ * chunk carries {@link #FLAG_END}. Small messages sent with {@link #send} are queued and
+ * written between chunks, so input is never stuck behind a multi-megabyte video frame.
+ */
+public class MuxConnection implements Closeable {
+    public static final byte CHANNEL_CONTROL = 0;
+    public static final byte CHANNEL_VIDEO = 1;
+    public static final byte CHANNEL_MOUSE = 2;
+    public static final byte CHANNEL_KEYBOARD = 3;
+    // Client -> server measurements for the server's adaptive controller
+    public static final byte CHANNEL_FEEDBACK = 4;
+    // Client -> server acknowledgement of a painted frame
+    public static final byte CHANNEL_ACK = 5;
+
+    // First byte of every control message
+    public static final byte CONTROL_INIT = 1;
+    // Client -> server: the codec ids the client can decode, sent right after connecting
+    public static final byte CONTROL_HELLO = 2;
+    // Client -> server: send a snapshot as the next frame, for clients that save the stream
+    public static final byte CONTROL_KEYFRAME_REQUEST = 3;
+    // Client -> server: stream another region: int screen, then x, y, width and height within it;
+    // a width or height of 0 takes the whole screen
+    public static final byte CONTROL_CAPTURE_REGION = 4;
+    // Server -> client: int count, then x, y, width and height of each of the server's screens
+    public static final byte CONTROL_SCREENS = 5;
+    // Client -> server: show part of the selected screen or region in a view of a given size: int view
+    // width and height, then x, y, width and height of the part in units of VIEWPORT_UNIT
+    public static final byte CONTROL_VIEWPORT = 6;
+    // The whole width or height of the selected screen or region in a viewport message
+    public static final int VIEWPORT_UNIT = 1 << 16;
+
+    // Screen numbers of a capture region request besides the indexes of the screens
+    public static final int REGION_CURRENT = -1;
+    public static final int REGION_ALL_SCREENS = -2;
+    public static final int MAX_SCREENS = 16;
+
+    public static final byte FLAG_END = 1;
+    public static final int HEADER_LENGTH = 6;
+    public static final int MAX_CHUNK_LENGTH = 64 * 1024;
+
+    private final SocketChannel channel;
+
+    // Writer side: every channel write happens while holding writeLock
+    private final ReentrantLock writeLock = new ReentrantLock();
+    private final Queue<ByteBuffer[]> pendingMessages = new ConcurrentLinkedQueue<>();
+    private final ByteBuffer writeHeader = ByteBuffer.allocateDirect(HEADER_LENGTH);
+    private final ByteBuffer[] chunkBuffers = new ByteBuffer[]{writeHeader, null};
+
+    // Reader side: only used by the single reading thread
+    private final ByteBuffer readHeader = ByteBuffer.allocateDirect(HEADER_LENGTH);
+    private byte lastChannel;
+    private byte lastFlags;
+    private int lastLength;
+
+    public MuxConnection(SocketChannel channel) throws IOException {
+        this.channel = channel;
+        channel.configureBlocking(true);
+        channel.socket().setTcpNoDelay(true);
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Sends a small, high-priority message. If another thread is in the middle of a chunked
+     * write the message is written right after that thread's current chunk.
+     *
+     * @param channelId the channel the message belongs to
+     * @param payload   the message body, from its position to its limit
+     */
+    public void send(byte channelId, ByteBuffer payload) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.put(channelId).put(FLAG_END).putInt(payload.remaining());
+        header.flip();
+        pendingMessages.add(new ByteBuffer[]{header, payload});
+        drainPendingMessages();
+    }
+
+    /**
+     * Sends a large payload as a sequence of chunks, giving queued {@link #send} messages a
+     * chance to go out between chunks. Blocks until the whole payload is written.
+     */
+    public void sendChunked(byte channelId, ByteBuffer payload) throws IOException {
+        writeLock.lock();
+        try {
+            int end = payload.limit();
+            do {
+                writePendingMessages();
+                int chunkLength = Math.min(end - payload.position(), MAX_CHUNK_LENGTH);
+                payload.limit(payload.position() + chunkLength);
+                writeHeader.clear();
+                writeHeader.put(channelId)
+                        .put(payload.limit() == end ? FLAG_END : 0)
+                        .putInt(chunkLength);
+                writeHeader.flip();
+                chunkBuffers[1] = payload;
+                writeFully(chunkBuffers);
+                payload.limit(end);
+            } while (payload.hasRemaining());
+        } finally {
+            chunkBuffers[1] = null;
+            writeLock.unlock();
+        }
+        drainPendingMessages();
+    }
+
+    // Writes queued messages if no other thread holds the write lock; the holder drains them otherwise.
+    private void drainPendingMessages() throws IOException {
+        while (!pendingMessages.isEmpty() && writeLock.tryLock()) {
+            try {
+                writePendingMessages();
+            } finally {
+                writeLock.unlock();
+            }
+        }
+    }
+
+    private void writePendingMessages() throws IOException {
+        ByteBuffer[] message;
+        while ((message = pendingMessages.poll()) != null) {
+            writeFully(message);
+        }
+    }
+
+    private void writeFully(ByteBuffer[] buffers) throws IOException {
+        ByteBuffer last = buffers[buffers.length - 1];
+        while (last.hasRemaining() || buffers[0].hasRemaining()) {
+            channel.write(buffers);
+        }
+    }
+
+    /**
+     * Blocks until the next message header arrives and returns its channel. The payload
+     * must then be consumed with {@link #readPayload} or {@link #skipPayload}.
+     */
+    public byte readHeader() throws IOException {
+        readHeader.clear();
+        readFully(readHeader);
+        readHeader.flip();
+        lastChannel = readHeader.get();
+        lastFlags = readHeader.get();
+        lastLength = readHeader.getInt();
+        if (lastLength < 0) {
+            throw new IOException("Invalid message length: " + lastLength);
+        }
+        return lastChannel;
+    }
+
+    public int getLastLength() {
+        return lastLength;
+    }
+
+    public boolean isLastChunk() {
+        return (lastFlags & FLAG_END) != 0;
+    }
+
+    /**
+     * Reads the current message payload into {@code target} starting at its position.
+     */
+    public void readPayload(ByteBuffer target) throws IOException {
+        if (target.remaining() < lastLength) {
+            throw new IOException("Message of " + lastLength + " bytes does not fit in "
+                    + target.remaining() + " bytes on channel " + lastChannel);
+        }
+        int limit = target.limit();
+        target.limit(target.position() + lastLength);
+        readFully(target);
+        target.limit(limit);
+    }
+
+    /**
+     * Discards the current message payload.
+     */
+    public void skipPayload() throws IOException {
+        ByteBuffer scratch = ByteBuffer.allocate(Math.min(lastLength, MAX_CHUNK_LENGTH));
+        int remaining = lastLength;
+        while (remaining > 0) {
+            scratch.clear();
+            scratch.limit(Math.min(remaining, scratch.capacity()));
+            readFully(scratch);
+            remaining -= scratch.limit();
+        }
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Connection closed by peer");
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -1,39 +1,29 @@
 import com.sun.jna.Library;
 import com.sun.jna.Native;
-import org.xerial.snappy.Snappy;
 
 import javax.imageio.ImageIO;
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
-import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferByte;
 import java.io.*;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
 import java.util.concurrent.*;
 
 public class NetworkScreenServer extends JFrame {
-    // Ports for the three channels (ensure these match the client)
-    private static final int SERVER_PORT = 9090;
-    private static final int SERVER_CURSOR_PORT = SERVER_PORT - 1;   // 8079
-    private static final int SERVER_KEYBOARD_PORT = SERVER_PORT - 2; // 8078
-
-    // Constants for mouse and keyboard events
-    private static final int MOUSE_MOVE = 1;
-    private static final int MOUSE_PRESSED = 2;
-    private static final int MOUSE_RELEASED = 3;
-    private static final int MOUSE_DOWN_WHEEL = 4;
-    private static final int MOUSE_UP_WHEEL = 5;
-    private static final int KEY_PRESSED = 6;
-    private static final int KEY_RELEASED = 7;
-    private static final int KEY_CHANGE_LANGUAGE = 8; // (optional)
-
     // UI Components (Control Panel)
     private JTextField widthTextField;
     private JTextField heightTextField;
     private JRadioButton compressTrueRBtn;
     private JRadioButton compressFalseRBtn;
+    private JCheckBox deltaCheckBox;
+    private JCheckBox yuvCheckBox;
+    private JComboBox<Viewer.SlowViewerPolicy> slowViewerComboBox;
+    private JCheckBox adaptiveCheckBox;
+    private JComboBox<String> codecComboBox;
+    private JCheckBox recordCheckBox;
     private JButton startBtn;
     private JButton stopBtn;
     private JLabel statusLabel;
@@ -42,24 +32,29 @@ public class NetworkScreenServer extends JFrame {
     private int newWidth = 1920;
     private int newHeight = 1080;
     private boolean isCompress = true;
+    private boolean isDelta = true;
+    private boolean isYuv420 = false;
+    private boolean isAdaptive = true;
+    private Viewer.SlowViewerPolicy slowViewerPolicy = Viewer.SlowViewerPolicy.DROP;
+    private FrameCodec codec;
+
+    // Recorded sessions are written here
+    private static final File RECORDINGS_DIRECTORY = new File("recordings");
+
+    // Codec choices offered in the UI, limited to the codecs that load on this machine
+    private final List<FrameCodec> codecPresets = createCodecPresets();
 
     // Executor for running background tasks
     private final ExecutorService executorService = Executors.newCachedThreadPool();
 
-    // Robot for capturing screen and simulating events
+    // Robots for capturing the screen and for simulating the viewers' input, kept apart so
+    // neither waits for the other
     private Robot robot;
+    private Robot inputRobot;
     private Rectangle screenRect;
 
-    // Server sockets and client sockets
-    private ServerSocket imageServerSocket;
-    private ServerSocket cursorServerSocket;
-    private ServerSocket keyboardServerSocket;
-    private Socket imageSocket;
-    private Socket cursorSocket;
-    private Socket keyboardSocket;
-
-    // Running flag for tasks
-    private volatile boolean isRunning = false;
+    // The running server, or null when stopped
+    private ScreenServer server;
 
     // Main control panel
     private final ControlPanel controlPanel = new ControlPanel();
@@ -67,7 +62,7 @@ public class NetworkScreenServer extends JFrame {
     public NetworkScreenServer() {
         super("Network Screen Server");
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-        setSize(500, 180);
+        setSize(500, 230);
         setResizable(false);
         setLocationRelativeTo(null);
         setContentPane(controlPanel);
@@ -75,10 +70,11 @@ public class NetworkScreenServer extends JFrame {
         // Initialize the Robot and the screen capture rectangle
         try {
             robot = new Robot();
+            inputRobot = new Robot();
             Dimension screenSize = Toolkit.getDefaultToolkit().getScreenSize();
             screenRect = new Rectangle(screenSize);
         } catch (AWTException e) {
-            e.printStackTrace();
+            Log.error("Unable to initialize screen capture", e);
             JOptionPane.showMessageDialog(this, "Unable to initialize screen capture.", "Error", JOptionPane.ERROR_MESSAGE);
             System.exit(1);
         }
@@ -101,6 +97,20 @@ public class NetworkScreenServer extends JFrame {
             ButtonGroup compressGroup = new ButtonGroup();
             compressGroup.add(compressTrueRBtn);
             compressGroup.add(compressFalseRBtn);
+            deltaCheckBox = new JCheckBox("Delta", true);
+            yuvCheckBox = new JCheckBox("YUV", false);
+            yuvCheckBox.setToolTipText("Send YUV 4:2:0: half the bytes, with colour at half resolution");
+            slowViewerComboBox = new JComboBox<>(Viewer.SlowViewerPolicy.values());
+            slowViewerComboBox.setToolTipText("What to do when a viewer cannot keep up");
+            adaptiveCheckBox = new JCheckBox("Adaptive", true);
+            adaptiveCheckBox.setToolTipText("Adjust frame rate, size and compression to the slowest viewer");
+            codecComboBox = new JComboBox<>();
+            for (FrameCodec preset : codecPresets) {
+                codecComboBox.addItem(FrameCodecs.describe(preset));
+            }
+            codecComboBox.setToolTipText("Codec used when compressing");
+            recordCheckBox = new JCheckBox("Record", false);
+            recordCheckBox.setToolTipText("Record the session to the " + RECORDINGS_DIRECTORY + " folder");
 
             // Set bounds for components
             startBtn.setBounds(20, 20, 120, 40);
@@ -113,8 +123,16 @@ public class NetworkScreenServer extends JFrame {
             heightTextField.setBounds(200, 80, 70, 30);
             compressTrueRBtn.setBounds(280, 20, 120, 40);
             compressFalseRBtn.setBounds(280, 70, 120, 40);
+            deltaCheckBox.setBounds(400, 20, 90, 40);
+            yuvCheckBox.setBounds(400, 115, 90, 30);
+            slowViewerComboBox.setBounds(400, 75, 90, 30);
             statusLabel = new JLabel("Status: Idle");
-            statusLabel.setBounds(20, 120, 300, 30);
+            statusLabel.setBounds(20, 120, 250, 30);
+            adaptiveCheckBox.setBounds(280, 115, 110, 30);
+            JLabel codecLabel = new JLabel("Codec:");
+            codecLabel.setBounds(20, 155, 50, 30);
+            codecComboBox.setBounds(70, 155, 200, 30);
+            recordCheckBox.setBounds(280, 155, 110, 30);
 
             add(startBtn);
             add(stopBtn);
@@ -124,18 +142,46 @@ public class NetworkScreenServer extends JFrame {
             add(heightTextField);
             add(compressTrueRBtn);
             add(compressFalseRBtn);
+            add(deltaCheckBox);
+            add(yuvCheckBox);
+            add(slowViewerComboBox);
+            add(adaptiveCheckBox);
+            add(codecLabel);
+            add(codecComboBox);
+            add(recordCheckBox);
             add(statusLabel);
 
             startBtn.addActionListener(e -> startServer());
             stopBtn.addActionListener(e -> stopServer());
+            recordCheckBox.addActionListener(e -> updateRecording());
         }
     }
 
+    // Snappy first as the default, then faster and stronger alternatives
+    private static List<FrameCodec> createCodecPresets() {
+        List<FrameCodec> presets = new ArrayList<>();
+        byte[] available = FrameCodecs.availableIds();
+        byte[][] choices = {
+                {FrameCodec.SNAPPY, 0}, {FrameCodec.LZ4, 0}, {FrameCodec.LZ4, 9},
+                {FrameCodec.ZSTD, 1}, {FrameCodec.ZSTD, 3}, {FrameCodec.ZSTD, 9}};
+        for (byte[] choice : choices) {
+            for (byte id : available) {
+                if (id == choice[0]) {
+                    presets.add(FrameCodecs.create(choice[0], choice[1]));
+                }
+            }
+        }
+        if (presets.isEmpty()) {
+            presets.add(FrameCodecs.create(FrameCodec.RAW, 0));
+        }
+        return presets;
+    }
+
     /**
      * Starts the server tasks and waits for client connections.
      */
     private void startServer() {
-        if (isRunning) return;
+        if (server != null) return;
         try {
             newWidth = Integer.parseInt(widthTextField.getText().trim());
             newHeight = Integer.parseInt(heightTextField.getText().trim());
@@ -144,252 +190,85 @@ public class NetworkScreenServer extends JFrame {
             return;
         }
         isCompress = compressTrueRBtn.isSelected();
+        isDelta = deltaCheckBox.isSelected();
+        isYuv420 = yuvCheckBox.isSelected();
+        slowViewerPolicy = (Viewer.SlowViewerPolicy) slowViewerComboBox.getSelectedItem();
+        isAdaptive = adaptiveCheckBox.isSelected();
+        codec = codecPresets.get(codecComboBox.getSelectedIndex());
 
         // Disable controls while running
         widthTextField.setEditable(false);
         heightTextField.setEditable(false);
         compressTrueRBtn.setEnabled(false);
         compressFalseRBtn.setEnabled(false);
+        deltaCheckBox.setEnabled(false);
+        yuvCheckBox.setEnabled(false);
+        slowViewerComboBox.setEnabled(false);
+        adaptiveCheckBox.setEnabled(false);
+        codecComboBox.setEnabled(false);
         startBtn.setEnabled(false);
         stopBtn.setEnabled(true);
         statusLabel.setText("Status: Waiting for client connection...");
-        isRunning = true;
 
-        // Submit tasks for each channel
-        executorService.submit(new ImageTask());
-        executorService.submit(new CursorTask());
-        executorService.submit(new KeyboardTask());
+        // The server starts the frame pipeline and serves every viewer that connects
+        StreamConfig config = new StreamConfig(screenRect.width, screenRect.height, newWidth, newHeight,
+                isCompress, isDelta, TileEncoder.DEFAULT_TILE_SIZE, codec, isYuv420);
+        server = new ScreenServer(ScreenServer.DEFAULT_PORT, new RobotFrameSource(robot, screenRect), inputRobot,
+                config, isAdaptive, slowViewerPolicy, ScreenServer.FRAME_INTERVAL_MILLIS, executorService,
+                count -> SwingUtilities.invokeLater(() -> statusLabel.setText(count == 0
+                        ? "Status: Waiting for viewers..."
+                        : "Status: " + count + " viewer(s) connected")));
+        executorService.submit(server);
+        updateRecording();
     }
 
     /**
-     * Stops the server tasks and closes sockets.
+     * Starts or stops recording the running server to match the Record check box.
      */
-    private void stopServer() {
-        if (!isRunning) return;
-        isRunning = false;
+    private void updateRecording() {
+        if (server == null) {
+            return;
+        }
+        if (!recordCheckBox.isSelected()) {
+            server.stopRecording();
+            return;
+        }
+        if (server.isRecording()) {
+            return;
+        }
+        File file = new File(RECORDINGS_DIRECTORY,
+                "session-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".rcs");
         try {
-            if (imageServerSocket != null && !imageServerSocket.isClosed()) {
-                imageServerSocket.close();
-            }
-            if (cursorServerSocket != null && !cursorServerSocket.isClosed()) {
-                cursorServerSocket.close();
-            }
-            if (keyboardServerSocket != null && !keyboardServerSocket.isClosed()) {
-                keyboardServerSocket.close();
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
+            RECORDINGS_DIRECTORY.mkdirs();
+            server.startRecording(file);
+        } catch (IOException ex) {
+            Log.error("Unable to record to " + file, ex);
+            recordCheckBox.setSelected(false);
+            JOptionPane.showMessageDialog(this, "Unable to record to " + file, "Error", JOptionPane.ERROR_MESSAGE);
         }
+    }
+
+    /**
+     * Stops the server tasks and closes sockets.
+     */
+    private void stopServer() {
+        if (server == null) return;
+        server.stop();
+        server = null;
         startBtn.setEnabled(true);
         stopBtn.setEnabled(false);
         widthTextField.setEditable(true);
         heightTextField.setEditable(true);
         compressTrueRBtn.setEnabled(true);
         compressFalseRBtn.setEnabled(true);
+        deltaCheckBox.setEnabled(true);
+        yuvCheckBox.setEnabled(true);
+        slowViewerComboBox.setEnabled(true);
+        adaptiveCheckBox.setEnabled(true);
+        codecComboBox.setEnabled(true);
         statusLabel.setText("Status: Stopped");
     }
 
-    /**
-     * ImageTask accepts the image client connection, sends initialization parameters,
-     * and continuously captures, scales, compresses (if enabled), and sends screen images.
-     */
-    private class ImageTask implements Runnable {
-        @Override
-        public void run() {
-            try {
-                imageServerSocket = new ServerSocket(SERVER_PORT);
-                SwingUtilities.invokeLater(() ->
-                        statusLabel.setText("Status: Waiting for image client..."));
-                imageSocket = imageServerSocket.accept();
-                SwingUtilities.invokeLater(() ->
-                        statusLabel.setText("Status: Image client connected"));
-
-                DataOutputStream dataOutputStream = new DataOutputStream(imageSocket.getOutputStream());
-                // Send initialization parameters to the client
-                Dimension screenSize = Toolkit.getDefaultToolkit().getScreenSize();
-                int screenWidth = screenSize.width;
-                int screenHeight = screenSize.height;
-                dataOutputStream.writeInt(screenWidth);
-                dataOutputStream.writeInt(screenHeight);
-                dataOutputStream.writeInt(newWidth);
-                dataOutputStream.writeInt(newHeight);
-                dataOutputStream.writeBoolean(isCompress);
-                dataOutputStream.flush();
-                System.out.println("Sent init params: " + screenWidth + "x" + screenHeight +
-                        ", scaled to: " + newWidth + "x" + newHeight +
-                        ", compress=" + isCompress);
-
-                // Continuously capture and send screen images
-                while (isRunning && !Thread.currentThread().isInterrupted()) {
-                    BufferedImage capture = robot.createScreenCapture(screenRect);
-                    BufferedImage scaled = getScaledImage(capture, newWidth, newHeight, BufferedImage.TYPE_3BYTE_BGR);
-                    byte[] imageBytes = ((DataBufferByte) scaled.getRaster().getDataBuffer()).getData();
-                    byte[] outputBytes = isCompress ? Snappy.compress(imageBytes) : imageBytes;
-                    System.out.println("Sending frame with byte length: " + outputBytes.length);
-                    dataOutputStream.writeInt(outputBytes.length);
-                    dataOutputStream.write(outputBytes);
-                    dataOutputStream.flush();
-                    Thread.sleep(30); // Adjust sleep to control frame rate
-                }
-            } catch (IOException | InterruptedException ex) {
-                if (isRunning) {
-                    ex.printStackTrace();
-                }
-            } finally {
-                try {
-                    if (imageSocket != null && !imageSocket.isClosed()) {
-                        imageSocket.close();
-                    }
-                } catch (IOException ex) {
-                    ex.printStackTrace();
-                }
-            }
-        }
-    }
-
-    /**
-     * CursorTask accepts the cursor client connection, listens for incoming mouse events,
-     * and uses Robot to simulate those events on the server.
-     */
-    private class CursorTask implements Runnable {
-        @Override
-        public void run() {
-            try {
-                cursorServerSocket = new ServerSocket(SERVER_CURSOR_PORT);
-                SwingUtilities.invokeLater(() ->
-                        statusLabel.setText("Status: Waiting for cursor client..."));
-                cursorSocket = cursorServerSocket.accept();
-                SwingUtilities.invokeLater(() ->
-                        statusLabel.setText("Status: Cursor client connected"));
-
-                DataInputStream dis = new DataInputStream(cursorSocket.getInputStream());
-                while (isRunning && !Thread.currentThread().isInterrupted()) {
-                    int mouseEvent = dis.readInt();
-                    switch (mouseEvent) {
-                        case MOUSE_MOVE:
-                            int mouseX = dis.readInt();
-                            int mouseY = dis.readInt();
-                            System.out.println("Cursor move to: " + mouseX + ", " + mouseY);
-                            robot.mouseMove(mouseX, mouseY);
-                            break;
-                        case MOUSE_PRESSED:
-                            int button = dis.readInt();
-                            System.out.println("Cursor pressed button: " + button);
-                            robot.mousePress(getButtonMask(button));
-                            break;
-                        case MOUSE_RELEASED:
-                            button = dis.readInt();
-                            System.out.println("Cursor released button: " + button);
-                            robot.mouseRelease(getButtonMask(button));
-                            break;
-                        case MOUSE_DOWN_WHEEL:
-                            robot.mouseWheel(-3);
-                            break;
-                        case MOUSE_UP_WHEEL:
-                            robot.mouseWheel(3);
-                            break;
-                        default:
-                            System.out.println("Unknown mouse event: " + mouseEvent);
-                            break;
-                    }
-                }
-            } catch (IOException ex) {
-                if (isRunning) {
-                    ex.printStackTrace();
-                }
-            } finally {
-                try {
-                    if (cursorSocket != null && !cursorSocket.isClosed()) {
-                        cursorSocket.close();
-                    }
-                } catch (IOException ex) {
-                    ex.printStackTrace();
-                }
-            }
-        }
-
-        // Converts a mouse button number to the appropriate mask for Robot.
-        private int getButtonMask(int button) {
-            switch (button) {
-                case 1:
-                    return MouseEvent.BUTTON1_DOWN_MASK;
-                case 2:
-                    return MouseEvent.BUTTON2_DOWN_MASK;
-                case 3:
-                    return MouseEvent.BUTTON3_DOWN_MASK;
-                default:
-                    return 0;
-            }
-        }
-    }
-
-    /**
-     * KeyboardTask accepts the keyboard client connection, listens for incoming keyboard events,
-     * and simulates key presses/releases using Robot.
-     */
-    private class KeyboardTask implements Runnable {
-        @Override
-        public void run() {
-            try {
-                keyboardServerSocket = new ServerSocket(SERVER_KEYBOARD_PORT);
-                SwingUtilities.invokeLater(() ->
-                        statusLabel.setText("Status: Waiting for keyboard client..."));
-                keyboardSocket = keyboardServerSocket.accept();
-                SwingUtilities.invokeLater(() ->
-                        statusLabel.setText("Status: Keyboard client connected"));
-
-                DataInputStream dis = new DataInputStream(keyboardSocket.getInputStream());
-                while (isRunning && !Thread.currentThread().isInterrupted()) {
-                    int keyEvent = dis.readInt();
-                    int keyCode = dis.readInt();
-                    System.out.println("Keyboard event: " + keyEvent + ", keyCode: " + keyCode);
-                    switch (keyEvent) {
-                        case KEY_PRESSED:
-                            robot.keyPress(keyCode);
-                            break;
-                        case KEY_RELEASED:
-                            robot.keyRelease(keyCode);
-                            break;
-                        default:
-                            System.out.println("Unknown keyboard event: " + keyEvent);
-                            break;
-                    }
-                }
-            } catch (IOException ex) {
-                if (isRunning) {
-                    ex.printStackTrace();
-                }
-            } finally {
-                try {
-                    if (keyboardSocket != null && !keyboardSocket.isClosed()) {
-                        keyboardSocket.close();
-                    }
-                } catch (IOException ex) {
-                    ex.printStackTrace();
-                }
-            }
-        }
-    }
-
-    /**
-     * Utility method for scaling a BufferedImage.
-     *
-     * @param src       the source image
-     * @param width     target width
-     * @param height    target height
-     * @param imageType the image type (e.g. BufferedImage.TYPE_3BYTE_BGR)
-     * @return the scaled image
-     */
-    private BufferedImage getScaledImage(BufferedImage src, int width, int height, int imageType) {
-        BufferedImage scaled = new BufferedImage(width, height, imageType);
-        Graphics2D g2d = scaled.createGraphics();
-        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION,
-                RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-        g2d.drawImage(src, 0, 0, width, height, null);
-        g2d.dispose();
-        return scaled;
-    }
-
     /**
      * Optional: A JNA interface for simulating keyboard events on Windows.
      * Currently, the Robot is used for simulating key events. Uncomment and modify if needed.
@@ -400,6 +279,7 @@ public class NetworkScreenServer extends JFrame {
     }
 
     public static void main(String[] args) {
+        Metrics.startFromSystemProperties();
         SwingUtilities.invokeLater(NetworkScreenServer::new);
     }
 }
@@ -0,0 +1,66 @@
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Replays recorded captures in a loop: the PNG, JPEG or BMP files of a directory in name order,
+ * such as those written by the benchmark module's RecordCorpus. The frames are decoded up front
+ * so that replaying is as cheap as a screen capture; a minute of 1080p at 10 fps takes about 5 GB,
+ * so keep recordings short or small.
+ */
+public class ReplayFrameSource implements FrameSource {
+    private final List<BufferedImage> frames = new ArrayList<>();
+    private int next = 0;
+
+    public ReplayFrameSource(File directory) throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.matches("(?i).*\\.(png|jpe?g|bmp)"));
+        if (files == null || files.length == 0) {
+            throw new IOException("No recorded frames in " + directory);
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            BufferedImage image = ImageIO.read(file);
+            if (image == null) {
+                throw new IOException("Not an image: " + file);
+            }
+            if (!frames.isEmpty() && (image.getWidth() != getWidth() || image.getHeight() != getHeight())) {
+                throw new IOException("Recorded frames must all have the same size: " + file);
+            }
+            frames.add(toIntRgb(image));
+        }
+    }
+
+    @Override
+    public int getWidth() {
+        return frames.get(0).getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return frames.get(0).getHeight();
+    }
+
+    @Override
+    public BufferedImage capture() {
+        BufferedImage frame = frames.get(next);
+        next = (next + 1) % frames.size();
+        return frame;
+    }
+
+    // Robot captures are TYPE_INT_RGB; replaying the same type keeps the scaling cost comparable
+    private static BufferedImage toIntRgb(BufferedImage image) {
+        if (image.getType() == BufferedImage.TYPE_INT_RGB) {
+            return image;
+        }
+        BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = converted.createGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return converted;
+    }
+}
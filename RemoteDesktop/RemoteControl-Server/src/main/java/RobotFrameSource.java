@@ -0,0 +1,56 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+
+/**
+ * Captures a rectangle of the desktop with Robot. The rectangle can be moved to another screen,
+ * all screens or a single window while streaming; only that rectangle is captured.
+ */
+public class RobotFrameSource implements FrameSource {
+    private final Robot robot;
+    private Rectangle captureRect;
+
+    public RobotFrameSource(Robot robot, Rectangle captureRect) {
+        this.robot = robot;
+        this.captureRect = new Rectangle(captureRect);
+    }
+
+    @Override
+    public int getWidth() {
+        return captureRect.width;
+    }
+
+    @Override
+    public int getHeight() {
+        return captureRect.height;
+    }
+
+    @Override
+    public BufferedImage capture() {
+        return robot.createScreenCapture(captureRect);
+    }
+
+    /**
+     * The screens of the local graphics environment, read on every call so screens plugged in
+     * while streaming show up.
+     */
+    @Override
+    public Rectangle[] getScreens() {
+        GraphicsDevice[] devices = GraphicsEnvironment.getLocalGraphicsEnvironment().getScreenDevices();
+        Rectangle[] screens = new Rectangle[devices.length];
+        for (int i = 0; i < devices.length; i++) {
+            screens[i] = devices[i].getDefaultConfiguration().getBounds();
+        }
+        return screens;
+    }
+
+    @Override
+    public Rectangle getCaptureRegion() {
+        return new Rectangle(captureRect);
+    }
+
+    @Override
+    public boolean setCaptureRegion(Rectangle region) {
+        captureRect = new Rectangle(region);
+        return true;
+    }
+}
@@ -0,0 +1,507 @@
+import java.awt.*;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.IntConsumer;
+
+/**
+ * ScreenServer runs one shared {@link FramePipeline} that captures, scales, compresses (if
+ * enabled) and publishes the frames of a {@link FrameSource}, and accepts any number of viewers
+ * on a single port. Each connection gets an {@link InputTask}, which checks the client's hello
+ * and then starts a {@link Viewer} send loop that begins with the stream configuration on the
+ * control channel. In delta mode only the tiles that changed since the previous frame are sent.
+ * In adaptive mode an {@link AdaptiveController} tunes the stream to the slowest viewer.
+ * The stream can be recorded to a file with {@link #startRecording}.
+ *
+ * Viewers are told the source's screens when they join, and any viewer can switch the shared
+ * stream to another screen, all screens or part of the picture; see
+ * {@link #selectCaptureRegion}. Within that selection a viewer can zoom and pan with
+ * {@link #setViewport}, and the stream then shows just the visible part at the viewer's size.
+ * Their input lands in the region they see.
+ *
+ * It has no user interface of its own: {@link NetworkScreenServer} drives it from its control
+ * panel and {@link HeadlessServer} from the command line.
+ */
+public class ScreenServer implements Runnable {
+    // Port for the multiplexed connection (ensure this matches the client)
+    public static final int DEFAULT_PORT = 9090;
+
+    // Target interval between screen captures (~33 fps)
+    public static final long FRAME_INTERVAL_MILLIS = 30;
+
+    // Constants for keyboard events; mouse events are batched as described in InputEvents
+    private static final int KEY_PRESSED = 6;
+    private static final int KEY_RELEASED = 7;
+    private static final int KEY_CHANGE_LANGUAGE = 8; // (optional)
+
+    // Largest mouse or keyboard message: a batch of mouse events
+    private static final int MAX_INPUT_MESSAGE_LENGTH = Math.max(2 * 4, InputEvents.MAX_BATCH_LENGTH);
+
+    // Feedback message: frames decoded and their average decode time in microseconds
+    private static final int FEEDBACK_MESSAGE_LENGTH = 2 * 4;
+
+    // Ack message: sequence, capture time, then client receive, decode and paint times in microseconds
+    private static final int ACK_MESSAGE_LENGTH = 4 + 8 + 3 * 4;
+
+    // Capture region request: type, screen, then x, y, width and height
+    private static final int REGION_MESSAGE_LENGTH = 1 + 5 * 4;
+
+    // Viewport message: type, view width and height, then x, y, width and height of the visible part
+    private static final int VIEWPORT_MESSAGE_LENGTH = 1 + 6 * 4;
+    // Largest view a viewer may report
+    private static final int MAX_VIEW_SIZE = 16384;
+
+    // Hello message: type, codec count and at most this many codec ids
+    private static final int MAX_HELLO_CODECS = 16;
+
+    // How long stopping a recording waits for the writer to finish the file
+    private static final long RECORDING_FINISH_TIMEOUT_MILLIS = 5000;
+
+    private final int port;
+    private final FrameSource source;
+    // Injects the viewers' input on its own thread, or null to ignore input
+    private final InputDispatcher inputDispatcher;
+    private final StreamConfig config;
+    private final boolean isAdaptive;
+    private final Viewer.SlowViewerPolicy slowViewerPolicy;
+    private final long frameIntervalMillis;
+    private final ExecutorService executorService;
+    private final IntConsumer viewerCountListener;
+
+    // Server socket and the viewers watching the shared frame stream
+    private volatile ServerSocketChannel serverChannel;
+    private final FrameBroadcaster broadcaster;
+    // Set once the server is listening
+    private volatile FramePipeline pipeline;
+    // The screen or region last selected, which viewports are parts of; null until one is selected
+    // and the initial capture region is meant. Guarded by this
+    private Rectangle selectedRegion;
+    // The recording in progress, or null
+    private SessionRecorder recorder;
+
+    // Running flag for tasks
+    private volatile boolean isRunning = true;
+
+    /**
+     * @param source              the frames to stream; closed when the server stops
+     * @param robot               replays the viewers' mouse and keyboard input, or null to ignore it;
+     *                            best not the Robot the frame source captures with
+     * @param config              the stream configuration; its screen size is the source size
+     * @param executorService     runs the pipeline stages, the viewers and their input tasks
+     * @param viewerCountListener told the number of viewers once listening and whenever it changes
+     */
+    public ScreenServer(int port, FrameSource source, Robot robot, StreamConfig config, boolean isAdaptive,
+                        Viewer.SlowViewerPolicy slowViewerPolicy, long frameIntervalMillis,
+                        ExecutorService executorService, IntConsumer viewerCountListener) {
+        this.port = port;
+        this.source = source;
+        this.inputDispatcher = robot != null ? new InputDispatcher(robot) : null;
+        this.config = config;
+        this.isAdaptive = isAdaptive;
+        this.slowViewerPolicy = slowViewerPolicy;
+        this.frameIntervalMillis = frameIntervalMillis;
+        this.executorService = executorService;
+        this.viewerCountListener = viewerCountListener;
+        this.broadcaster = new FrameBroadcaster(config.isDelta(), viewerCountListener);
+        Metrics.gauge("server_viewers", "Viewers connected", broadcaster::getViewerCount);
+    }
+
+    public boolean isRunning() {
+        return isRunning;
+    }
+
+    /**
+     * Listens for viewers until {@link #stop()} is called.
+     */
+    @Override
+    public void run() {
+        Future<?> pipelineTask = null;
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.bind(new InetSocketAddress(port));
+            viewerCountListener.accept(0);
+
+            Log.info("Stream config: %s", config);
+            AdaptiveController controller = isAdaptive
+                    ? new AdaptiveController(frameIntervalMillis, config.getWidth(), config.getHeight(),
+                    config.isCompress())
+                    : null;
+
+            // Capture and encode run as pipeline stages shared by all viewers
+            FramePipeline pipeline = new FramePipeline(source, config, frameIntervalMillis,
+                    controller, broadcaster, () -> isRunning);
+            this.pipeline = pipeline;
+            if (inputDispatcher != null) {
+                executorService.submit(inputDispatcher);
+            }
+            pipelineTask = executorService.submit(() -> {
+                try {
+                    pipeline.run(executorService);
+                } catch (IOException | InterruptedException ex) {
+                    if (isRunning) {
+                        Log.error("Frame pipeline stopped", ex);
+                    }
+                }
+            });
+
+            while (isRunning) {
+                MuxConnection connection = new MuxConnection(serverChannel.accept());
+                executorService.submit(new InputTask(connection, config.getCodec()));
+            }
+        } catch (IOException ex) {
+            if (isRunning) {
+                Log.error("Server socket failed", ex);
+            }
+        } finally {
+            isRunning = false;
+            if (pipelineTask != null) {
+                // The pipeline's capture stage closes the source when it ends
+                pipelineTask.cancel(true);
+            } else {
+                source.close();
+            }
+            broadcaster.closeAll();
+            stopRecording();
+            if (inputDispatcher != null) {
+                inputDispatcher.stop();
+            }
+        }
+    }
+
+    /**
+     * Starts recording the stream to a {@link SessionFile}, replacing the recording in progress.
+     * Frames are recorded from the next keyframe on, while viewers are connected.
+     */
+    public synchronized void startRecording(File file) throws IOException {
+        stopRecording();
+        recorder = new SessionRecorder(file, config.isDelta(), SessionRecorder.DEFAULT_KEYFRAME_INTERVAL_MILLIS);
+        executorService.submit(recorder);
+        broadcaster.startRecording(recorder);
+    }
+
+    /**
+     * Stops the recording in progress, if any, and waits briefly for its file to be complete.
+     */
+    public synchronized void stopRecording() {
+        if (recorder == null) {
+            return;
+        }
+        recorder.stop();
+        try {
+            if (!recorder.awaitFinished(RECORDING_FINISH_TIMEOUT_MILLIS)) {
+                Log.warn("Recording to %s did not finish in time", recorder.getFile());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        recorder = null;
+    }
+
+    public synchronized boolean isRecording() {
+        return recorder != null;
+    }
+
+    /**
+     * Streams another region of the desktop to every viewer from the next frame on.
+     *
+     * @param screen the index of a screen in the source's {@link FrameSource#getScreens},
+     *               {@link MuxConnection#REGION_ALL_SCREENS} for the whole desktop or
+     *               {@link MuxConnection#REGION_CURRENT} for the region streamed now
+     * @param part   the part of that to stream, relative to its top left corner, or null for all of it
+     * @return false if the screen does not exist, the server is not running or the region is too small
+     */
+    public synchronized boolean selectCaptureRegion(int screen, Rectangle part) {
+        FramePipeline current = pipeline;
+        if (current == null) {
+            return false;
+        }
+        Rectangle base;
+        if (screen == MuxConnection.REGION_CURRENT) {
+            base = current.getCaptureRegion();
+        } else if (screen == MuxConnection.REGION_ALL_SCREENS) {
+            base = source.getDesktopBounds();
+        } else {
+            Rectangle[] screens = source.getScreens();
+            if (screen < 0 || screen >= screens.length) {
+                return false;
+            }
+            base = screens[screen];
+        }
+        Rectangle region = part == null ? new Rectangle(base)
+                : new Rectangle(base.x + part.x, base.y + part.y, part.width, part.height).intersection(base);
+        if (!current.requestCaptureRegion(region)) {
+            return false;
+        }
+        selectedRegion = region;
+        return true;
+    }
+
+    /**
+     * Streams the part of the selected screen or region a viewer shows, at no more than the size
+     * it is shown at: zoomed in, the part streams at native resolution; zoomed out, at the view's
+     * size instead of the full stream size. The part is given in units of
+     * {@link MuxConnection#VIEWPORT_UNIT}, the whole selection's width and height.
+     *
+     * @return false if the server is not running or the viewport is empty or too small
+     */
+    public synchronized boolean setViewport(int viewWidth, int viewHeight, int x, int y, int width, int height) {
+        FramePipeline current = pipeline;
+        if (current == null || viewWidth <= 0 || viewHeight <= 0 || viewWidth > MAX_VIEW_SIZE
+                || viewHeight > MAX_VIEW_SIZE || width <= 0 || height <= 0) {
+            return false;
+        }
+        Rectangle base = selectedRegion != null ? selectedRegion : current.getCaptureRegion();
+        if (selectedRegion == null) {
+            selectedRegion = base;
+        }
+        long unit = MuxConnection.VIEWPORT_UNIT;
+        int left = (int) ((long) x * base.width / unit);
+        int top = (int) ((long) y * base.height / unit);
+        int right = (int) (((long) x + width) * base.width / unit);
+        int bottom = (int) (((long) y + height) * base.height / unit);
+        Rectangle region = new Rectangle(base.x + left, base.y + top, right - left, bottom - top).intersection(base);
+        return current.requestCaptureRegion(region, viewWidth, viewHeight);
+    }
+
+    /**
+     * Builds the message listing the source's screens, at most {@link MuxConnection#MAX_SCREENS}.
+     */
+    private ByteBuffer screensMessage() {
+        Rectangle[] screens = source.getScreens();
+        int count = Math.min(screens.length, MuxConnection.MAX_SCREENS);
+        ByteBuffer message = ByteBuffer.allocate(1 + 4 + count * 4 * 4);
+        message.put(MuxConnection.CONTROL_SCREENS);
+        message.putInt(count);
+        for (int i = 0; i < count; i++) {
+            message.putInt(screens[i].x).putInt(screens[i].y).putInt(screens[i].width).putInt(screens[i].height);
+        }
+        message.flip();
+        return message;
+    }
+
+    /**
+     * Stops accepting viewers, closes their connections, finishes the recording and stops the pipeline.
+     */
+    public void stop() {
+        isRunning = false;
+        stopRecording();
+        try {
+            if (serverChannel != null && serverChannel.isOpen()) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            Log.error("Unable to close the server socket", e);
+        }
+    }
+
+    /**
+     * InputTask first reads the client's hello and admits the client as a viewer only if it can
+     * decode the stream's codec. It then reads the mouse and keyboard channels of the client
+     * connection and queues those events on the input dispatcher, which simulates them on the
+     * server, or drops them when there is no Robot. Pointer positions are relative to the capture
+     * region and moved onto the desktop here. Feedback messages and frame
+     * acks are handed to the viewer for latency tracking and the adaptive controller, and so are
+     * keyframe requests on the control channel. Capture region and viewport requests switch the
+     * shared stream.
+     */
+    private class InputTask implements Runnable, InputEvents.Handler {
+        private final MuxConnection connection;
+        private final FrameCodec streamCodec;
+        private Viewer viewer;
+
+        InputTask(MuxConnection connection, FrameCodec streamCodec) {
+            this.connection = connection;
+            this.streamCodec = streamCodec;
+        }
+
+        @Override
+        public void run() {
+            ByteBuffer payload = ByteBuffer.allocate(Math.max(MAX_INPUT_MESSAGE_LENGTH, ACK_MESSAGE_LENGTH));
+            try {
+                if (!readHello()) {
+                    return;
+                }
+                connection.send(MuxConnection.CHANNEL_CONTROL, screensMessage());
+                viewer = new Viewer(connection, broadcaster, slowViewerPolicy, frameIntervalMillis);
+                broadcaster.addViewer(viewer);
+                executorService.submit(viewer);
+                Log.info("Viewer connected: %s", viewer);
+
+                while (isRunning && !Thread.currentThread().isInterrupted()) {
+                    byte channel = connection.readHeader();
+                    if ((channel != MuxConnection.CHANNEL_MOUSE && channel != MuxConnection.CHANNEL_KEYBOARD
+                            && channel != MuxConnection.CHANNEL_FEEDBACK && channel != MuxConnection.CHANNEL_ACK
+                            && channel != MuxConnection.CHANNEL_CONTROL)
+                            || connection.getLastLength() > payload.capacity()) {
+                        Log.warn("Skipping message on channel %d", channel);
+                        connection.skipPayload();
+                        continue;
+                    }
+                    payload.clear();
+                    connection.readPayload(payload);
+                    payload.flip();
+                    if (channel == MuxConnection.CHANNEL_MOUSE) {
+                        handleMouseEvent(payload);
+                    } else if (channel == MuxConnection.CHANNEL_FEEDBACK) {
+                        handleFeedback(payload);
+                    } else if (channel == MuxConnection.CHANNEL_ACK) {
+                        handleAck(payload);
+                    } else if (channel == MuxConnection.CHANNEL_CONTROL) {
+                        handleControl(payload);
+                    } else {
+                        handleKeyboardEvent(payload);
+                    }
+                }
+            } catch (EOFException ex) {
+                Log.info("Viewer %s closed the connection", viewer != null ? viewer : connection.getChannel());
+            } catch (IOException ex) {
+                if (isRunning) {
+                    Log.error("Reading viewer input failed", ex);
+                }
+            } finally {
+                // Closing the connection also ends the viewer's send loop
+                try {
+                    connection.close();
+                } catch (IOException ex) {
+                    Log.error("Unable to close the connection", ex);
+                }
+            }
+        }
+
+        // The adaptive controller may turn compression off, so raw must be decodable too
+        private boolean readHello() throws IOException {
+            byte channel = connection.readHeader();
+            ByteBuffer hello = ByteBuffer.allocate(2 + MAX_HELLO_CODECS);
+            if (channel != MuxConnection.CHANNEL_CONTROL || connection.getLastLength() > hello.capacity()) {
+                Log.warn("Expected a hello message, got channel %d", channel);
+                return false;
+            }
+            connection.readPayload(hello);
+            hello.flip();
+            if (hello.remaining() < 2 || hello.get() != MuxConnection.CONTROL_HELLO) {
+                Log.warn("Malformed hello message");
+                return false;
+            }
+            int count = Math.min(hello.get(), hello.remaining());
+            boolean hasStreamCodec = false;
+            boolean hasRaw = false;
+            for (int i = 0; i < count; i++) {
+                byte id = hello.get();
+                hasStreamCodec |= id == streamCodec.getId();
+                hasRaw |= id == FrameCodec.RAW;
+            }
+            if (!hasStreamCodec || !hasRaw) {
+                Log.warn("Rejecting client that cannot decode %s", FrameCodecs.describe(streamCodec));
+                return false;
+            }
+            return true;
+        }
+
+        // A mouse message is a batch of coalesced events; see InputEvents
+        private void handleMouseEvent(ByteBuffer in) {
+            if (inputDispatcher == null) {
+                return;
+            }
+            try {
+                InputEvents.read(in, this);
+            } catch (IllegalArgumentException ex) {
+                Log.warn(ex.getMessage());
+            }
+        }
+
+        @Override
+        public void mouseMove(int x, int y) {
+            Rectangle region = pipeline.getCaptureRegion();
+            inputDispatcher.mouseMove(region.x + x, region.y + y);
+        }
+
+        @Override
+        public void mousePress(int button) {
+            Log.debug("Cursor pressed button: %d", button);
+            inputDispatcher.mousePress(button);
+        }
+
+        @Override
+        public void mouseRelease(int button) {
+            Log.debug("Cursor released button: %d", button);
+            inputDispatcher.mouseRelease(button);
+        }
+
+        @Override
+        public void mouseWheel(int notches) {
+            inputDispatcher.mouseWheel(notches);
+        }
+
+        private void handleFeedback(ByteBuffer in) {
+            if (in.remaining() < FEEDBACK_MESSAGE_LENGTH) {
+                return;
+            }
+            int frames = in.getInt();
+            int decodeMicros = in.getInt();
+            if (frames > 0) {
+                viewer.recordFeedback(decodeMicros);
+            }
+        }
+
+        private void handleAck(ByteBuffer in) {
+            if (in.remaining() < ACK_MESSAGE_LENGTH) {
+                return;
+            }
+            viewer.recordAck(in.getInt(), in.getLong(), in.getInt(), in.getInt(), in.getInt());
+        }
+
+        private void handleControl(ByteBuffer in) {
+            if (in.remaining() < 1) {
+                return;
+            }
+            byte type = in.get();
+            if (type == MuxConnection.CONTROL_KEYFRAME_REQUEST) {
+                viewer.requestKeyframe();
+            } else if (type == MuxConnection.CONTROL_CAPTURE_REGION && in.remaining() >= REGION_MESSAGE_LENGTH - 1) {
+                int screen = in.getInt();
+                Rectangle part = new Rectangle(in.getInt(), in.getInt(), in.getInt(), in.getInt());
+                if (selectCaptureRegion(screen, part.width > 0 && part.height > 0 ? part : null)) {
+                    Log.info("Viewer %s selected screen %d, %s", viewer, screen, part);
+                } else {
+                    Log.warn("Viewer %s asked for an invalid capture region: screen %d, %s", viewer, screen, part);
+                }
+            } else if (type == MuxConnection.CONTROL_VIEWPORT && in.remaining() >= VIEWPORT_MESSAGE_LENGTH - 1) {
+                int viewWidth = in.getInt();
+                int viewHeight = in.getInt();
+                int x = in.getInt();
+                int y = in.getInt();
+                int width = in.getInt();
+                int height = in.getInt();
+                if (!setViewport(viewWidth, viewHeight, x, y, width, height)) {
+                    Log.warn("Viewer %s asked for an invalid viewport: %dx%d view, %d,%d %dx%d", viewer,
+                            viewWidth, viewHeight, x, y, width, height);
+                }
+            }
+        }
+
+        private void handleKeyboardEvent(ByteBuffer in) {
+            if (inputDispatcher == null || in.remaining() < 2 * 4) {
+                return;
+            }
+            int keyEvent = in.getInt();
+            int keyCode = in.getInt();
+            Log.debug("Keyboard event: %d, keyCode: %d", keyEvent, keyCode);
+            switch (keyEvent) {
+                case KEY_PRESSED:
+                    inputDispatcher.keyPress(keyCode);
+                    break;
+                case KEY_RELEASED:
+                    inputDispatcher.keyRelease(keyCode);
+                    break;
+                default:
+                    Log.warn("Unknown keyboard event: %d", keyEvent);
+                    break;
+            }
+        }
+    }
+}
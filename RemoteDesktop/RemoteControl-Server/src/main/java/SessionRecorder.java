@@ -0,0 +1,255 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SessionRecorder tees the encoded frame stream to a {@link SessionFile}, for auditing support
+ * sessions. It records the frames exactly as they are sent, compressed and delta-encoded, so a
+ * recording costs about as much disk as one viewer costs network.
+ *
+ * Like a {@link Viewer} it takes references to the published frames through a bounded queue and
+ * writes them on its own thread, so a slow disk never holds up the encoder. When the queue
+ * overflows the recorder drops frames, skips deltas until the next keyframe and asks the encoder
+ * for a snapshot. It also asks for a snapshot every keyframe interval, so a seek never has to
+ * decode more than one interval of deltas.
+ *
+ * The recording only advances while the pipeline runs, i.e. while viewers are connected.
+ */
+public class SessionRecorder implements Runnable {
+    // Frames the recorder may hold; the encoder's frame pool is sized to include them
+    public static final int QUEUE_SIZE = 8;
+    public static final long DEFAULT_KEYFRAME_INTERVAL_MILLIS = 5000;
+
+    private static final long POLL_TIMEOUT_MILLIS = 100;
+
+    private static final Metrics.Counter FRAMES_DROPPED = Metrics.counter("server_recorder_frames_dropped",
+            "Frames the recording skipped because the disk fell behind");
+
+    private final File file;
+    private final SessionFile.Writer writer;
+    private final boolean isDeltaStream;
+    private final long keyframeIntervalNanos;
+    private final long startNanos = System.nanoTime();
+    private final BlockingQueue<EncodedFrame> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final AtomicLong droppedFrames = new AtomicLong();
+    private final CountDownLatch finished = new CountDownLatch(1);
+
+    // Stream state, only touched by the encoder thread
+    private EncodedFrame config;
+    private boolean configQueued = false;
+    private boolean awaitingKeyframe = true;
+    private boolean keyframeDue = false;
+    private long lastKeyframeNanos;
+
+    private volatile boolean stopping = false;
+    private volatile boolean closed = false;
+
+    /**
+     * Creates the file and writes its header. Recording starts once the recorder's
+     * {@link #run()} loop is running and it has been handed to a {@link FrameBroadcaster}.
+     *
+     * @param isDeltaStream          true when frames are delta tile updates
+     * @param keyframeIntervalMillis the longest time between two keyframes
+     */
+    public SessionRecorder(File file, boolean isDeltaStream, long keyframeIntervalMillis) throws IOException {
+        this.file = file;
+        this.isDeltaStream = isDeltaStream;
+        this.keyframeIntervalNanos = TimeUnit.MILLISECONDS.toNanos(keyframeIntervalMillis);
+        this.writer = new SessionFile.Writer(file);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Number of frames left out because the writer fell behind.
+     */
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    /**
+     * Starts recording at the stream's current configuration. Called on the encoder thread only.
+     */
+    void start(EncodedFrame config) {
+        setConfig(config);
+    }
+
+    /**
+     * Switches to a new configuration; the next published frame is a keyframe.
+     * Called on the encoder thread only.
+     */
+    void reconfigure(EncodedFrame config) {
+        setConfig(config);
+    }
+
+    private void setConfig(EncodedFrame newConfig) {
+        newConfig.retain();
+        if (config != null) {
+            config.release();
+        }
+        config = newConfig;
+        configQueued = false;
+        awaitingKeyframe = true;
+    }
+
+    /**
+     * True when the recorder waits for a snapshot: it is resynchronizing or its keyframe
+     * interval is up. Called on the encoder thread only.
+     */
+    boolean needsKeyframe() {
+        return !stopping && config != null && (awaitingKeyframe || keyframeDue);
+    }
+
+    /**
+     * Offers a published frame or a snapshot to the recorder. Called on the encoder thread only.
+     */
+    void offer(EncodedFrame frame) {
+        if (stopping || config == null) {
+            return;
+        }
+        if (!frame.isKeyframe()) {
+            if (awaitingKeyframe) {
+                return;
+            }
+            if (frame.getCaptureNanos() - lastKeyframeNanos >= keyframeIntervalNanos) {
+                keyframeDue = true;
+            }
+        }
+        if (!configQueued) {
+            // Only a keyframe gets here: a new configuration always waits for one
+            if (!enqueue(config)) {
+                drop();
+                return;
+            }
+            configQueued = true;
+        }
+        if (!enqueue(frame)) {
+            drop();
+            return;
+        }
+        if (frame.isKeyframe()) {
+            awaitingKeyframe = false;
+            keyframeDue = false;
+            lastKeyframeNanos = frame.getCaptureNanos();
+        }
+    }
+
+    private boolean enqueue(EncodedFrame frame) {
+        frame.retain();
+        if (!queue.offer(frame)) {
+            frame.release();
+            return false;
+        }
+        releaseIfClosed();
+        return true;
+    }
+
+    private void drop() {
+        droppedFrames.incrementAndGet();
+        FRAMES_DROPPED.increment();
+        if (isDeltaStream) {
+            // The deltas after the dropped frame would not apply without it
+            awaitingKeyframe = true;
+        }
+    }
+
+    /**
+     * Writer loop: appends queued frames to the file until the recorder is stopped, then
+     * writes the time index and closes the file.
+     */
+    @Override
+    public void run() {
+        Log.info("Recording session to %s", file);
+        boolean interrupted = false;
+        boolean failed = false;
+        try {
+            try {
+                while (!stopping || !queue.isEmpty()) {
+                    EncodedFrame frame = queue.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                    if (frame == null) {
+                        continue;
+                    }
+                    try {
+                        write(frame);
+                    } finally {
+                        frame.release();
+                    }
+                }
+            } catch (InterruptedException ex) {
+                // Finish the file with what was written; the channel would refuse to write while interrupted
+                interrupted = true;
+            }
+        } catch (IOException ex) {
+            Log.error("Recording to " + file + " failed", ex);
+            failed = true;
+        } finally {
+            stopping = true;
+            closed = true;
+            releaseQueued();
+            try {
+                if (failed) {
+                    writer.abandon();
+                } else {
+                    writer.close();
+                    Log.info("Recorded %d frames (%d keyframes, %d dropped), %.1f MB to %s",
+                            writer.getFrameCount(), writer.getKeyframeCount(), droppedFrames.get(),
+                            writer.getLength() / 1e6, file);
+                }
+            } catch (IOException ex) {
+                Log.error("Unable to finish the recording " + file, ex);
+            }
+            finished.countDown();
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void write(EncodedFrame frame) throws IOException {
+        if (frame.getChannel() == MuxConnection.CHANNEL_CONTROL) {
+            writer.writeConfig(frame.view());
+        } else {
+            writer.writeFrame((frame.getCaptureNanos() - startNanos) / 1000, frame.isKeyframe(), frame.view());
+        }
+    }
+
+    /**
+     * Stops recording. The writer finishes the queued frames and the index on its own thread.
+     */
+    public void stop() {
+        stopping = true;
+    }
+
+    public boolean isStopping() {
+        return stopping;
+    }
+
+    /**
+     * Waits until the file is complete and closed.
+     *
+     * @return false if it was not complete within the timeout
+     */
+    public boolean awaitFinished(long timeoutMillis) throws InterruptedException {
+        return finished.await(timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    // The encoder may have queued a frame while the writer was finishing; make sure it is returned.
+    private void releaseIfClosed() {
+        if (closed) {
+            releaseQueued();
+        }
+    }
+
+    private void releaseQueued() {
+        EncodedFrame frame;
+        while ((frame = queue.poll()) != null) {
+            frame.release();
+        }
+    }
+}
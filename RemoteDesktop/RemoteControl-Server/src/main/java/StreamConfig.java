@@ -0,0 +1,134 @@
+import java.nio.ByteBuffer;
+
+/**
+ * StreamConfig is the immutable set of stream parameters a viewer needs to decode frames.
+ * It is sent as a {@link MuxConnection#CONTROL_INIT} message when a viewer joins and again
+ * whenever the stream is reconfigured.
+ *
+ * The codec is the one used while compression is on; with compression off the bands are sent raw.
+ * On a YUV 4:2:0 stream the pixels of tiles and bands are sent in the {@link Yuv420} format
+ * instead of as BGR.
+ */
+public class StreamConfig {
+    // Message type, four ints, two booleans, the tile size, the codec id, its level and the YUV flag
+    public static final int MESSAGE_LENGTH = 1 + 4 * 4 + 2 + 4 + 2 + 1;
+    private static final FrameCodec RAW_CODEC = FrameCodecs.create(FrameCodec.RAW, 0);
+
+    private final int screenWidth;
+    private final int screenHeight;
+    private final int width;
+    private final int height;
+    private final boolean isCompress;
+    private final boolean isDelta;
+    private final int tileSize;
+    private final FrameCodec codec;
+    private final boolean isYuv420;
+
+    public StreamConfig(int screenWidth, int screenHeight, int width, int height,
+                        boolean isCompress, boolean isDelta, int tileSize, FrameCodec codec, boolean isYuv420) {
+        this.screenWidth = screenWidth;
+        this.screenHeight = screenHeight;
+        this.width = width;
+        this.height = height;
+        this.isCompress = isCompress;
+        this.isDelta = isDelta;
+        this.tileSize = tileSize;
+        this.codec = codec;
+        this.isYuv420 = isYuv420;
+    }
+
+    public int getScreenWidth() {
+        return screenWidth;
+    }
+
+    public int getScreenHeight() {
+        return screenHeight;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public boolean isCompress() {
+        return isCompress;
+    }
+
+    public boolean isDelta() {
+        return isDelta;
+    }
+
+    /**
+     * True when pixels are sent as YUV 4:2:0 rather than BGR.
+     */
+    public boolean isYuv420() {
+        return isYuv420;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * The codec used while compression is on.
+     */
+    public FrameCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * The codec the bands are encoded with: the configured one, or raw when compression is off.
+     */
+    public FrameCodec getActiveCodec() {
+        return isCompress ? codec : RAW_CODEC;
+    }
+
+    public StreamConfig withSize(int newWidth, int newHeight) {
+        return new StreamConfig(screenWidth, screenHeight, newWidth, newHeight, isCompress, isDelta, tileSize, codec,
+                isYuv420);
+    }
+
+    /**
+     * A configuration for another region of the screen: screenWidth x screenHeight source pixels
+     * streamed at newWidth x newHeight.
+     */
+    public StreamConfig withScreenSize(int newScreenWidth, int newScreenHeight, int newWidth, int newHeight) {
+        return new StreamConfig(newScreenWidth, newScreenHeight, newWidth, newHeight, isCompress, isDelta, tileSize,
+                codec, isYuv420);
+    }
+
+    public StreamConfig withCompress(boolean compress) {
+        return new StreamConfig(screenWidth, screenHeight, width, height, compress, isDelta, tileSize, codec,
+                isYuv420);
+    }
+
+    /**
+     * Builds the control message announcing this configuration.
+     */
+    public ByteBuffer toMessage() {
+        ByteBuffer message = ByteBuffer.allocate(MESSAGE_LENGTH);
+        message.put(MuxConnection.CONTROL_INIT);
+        message.putInt(screenWidth);
+        message.putInt(screenHeight);
+        message.putInt(width);
+        message.putInt(height);
+        message.put((byte) (isCompress ? 1 : 0));
+        message.put((byte) (isDelta ? 1 : 0));
+        message.putInt(tileSize);
+        message.put(codec.getId());
+        message.put((byte) codec.getLevel());
+        message.put((byte) (isYuv420 ? 1 : 0));
+        message.flip();
+        return message;
+    }
+
+    @Override
+    public String toString() {
+        return screenWidth + "x" + screenHeight + ", scaled to: " + width + "x" + height +
+                ", compress=" + isCompress + " (" + FrameCodecs.describe(codec) + "), delta=" + isDelta
+                + (isYuv420 ? ", YUV 4:2:0" : "");
+    }
+}
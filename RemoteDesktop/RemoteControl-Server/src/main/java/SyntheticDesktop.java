@@ -0,0 +1,75 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+
+/**
+ * SyntheticDesktop draws frames that look like a desktop in use, for measuring the encoder where
+ * there is no screen to capture: a gradient wallpaper, a window that is being typed into, a window
+ * whose log scrolls by one line per frame, and a moving cursor. Consecutive frames differ the way
+ * real ones do, in a few small regions plus one scrolling area.
+ */
+public class SyntheticDesktop {
+    private static final int LINE_HEIGHT = 16;
+
+    private final int width;
+    private final int height;
+
+    public SyntheticDesktop(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Draws frame number {@code index} as a TYPE_INT_RGB image, like a Robot screen capture.
+     */
+    public BufferedImage frame(int index) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        draw(g, index);
+        g.dispose();
+        return image;
+    }
+
+    /**
+     * Draws frame number {@code index} onto {@code g}, covering width x height.
+     */
+    public void draw(Graphics2D g, int index) {
+        g.setPaint(new GradientPaint(0, 0, new Color(30, 60, 110), 0, height, new Color(10, 20, 40)));
+        g.fillRect(0, 0, width, height);
+        g.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 14));
+
+        int windowWidth = width * 3 / 8;
+        int windowHeight = height * 5 / 9;
+        int visibleLines = (windowHeight - 40) / LINE_HEIGHT;
+        // The editor gains a line every frame until it is full, then starts over
+        drawWindow(g, width / 20, height / 12, windowWidth, windowHeight, 0,
+                index % visibleLines + 1, visibleLines);
+        // The log always shows the newest lines, so its text moves up one line per frame
+        drawWindow(g, width / 2, height / 3, windowWidth, windowHeight, index, visibleLines, visibleLines);
+
+        int cursorX = (width / 3 + index * 12) % width;
+        int cursorY = height / 2;
+        g.setColor(Color.WHITE);
+        g.fillPolygon(new int[]{cursorX, cursorX, cursorX + 12}, new int[]{cursorY, cursorY + 18, cursorY + 12}, 3);
+    }
+
+    private void drawWindow(Graphics2D g, int x, int y, int w, int h, int firstLine, int lines, int visibleLines) {
+        g.setColor(new Color(240, 240, 240));
+        g.fillRect(x, y, w, h);
+        g.setColor(new Color(60, 90, 160));
+        g.fillRect(x, y, w, 28);
+        g.setColor(Color.BLACK);
+        for (int line = 0; line < Math.min(lines, visibleLines); line++) {
+            int number = firstLine + line;
+            g.drawString("line " + number + ": the quick brown fox jumps over the lazy dog " + number * 31,
+                    x + 8, y + 48 + line * LINE_HEIGHT);
+        }
+    }
+}
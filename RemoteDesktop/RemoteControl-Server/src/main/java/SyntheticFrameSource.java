@@ -0,0 +1,88 @@
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+
+/**
+ * Generates frames without a display, for load tests on headless machines. Each pattern stresses
+ * the encoder differently:
+ * <ul>
+ *   <li>STATIC: the same desktop every frame, so a delta stream sends nothing after the first frame</li>
+ *   <li>SCROLLING_TEXT: a {@link SyntheticDesktop} being typed into, with a scrolling log and a moving cursor</li>
+ *   <li>VIDEO: every pixel changes every frame, like full-screen video, so nothing can be skipped
+ *       and little compresses</li>
+ * </ul>
+ */
+public class SyntheticFrameSource implements FrameSource {
+    public enum Pattern {
+        STATIC, SCROLLING_TEXT, VIDEO
+    }
+
+    private final Pattern pattern;
+    private final SyntheticDesktop desktop;
+    private final BufferedImage image;
+    private final Graphics2D graphics;
+    private final int[] pixels;
+    private int frameIndex = 0;
+    private int noise = 0x2545F491;
+
+    public SyntheticFrameSource(int width, int height, Pattern pattern) {
+        this.pattern = pattern;
+        desktop = new SyntheticDesktop(width, height);
+        image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        graphics = image.createGraphics();
+        pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        if (pattern == Pattern.STATIC) {
+            desktop.draw(graphics, 0);
+        }
+    }
+
+    @Override
+    public int getWidth() {
+        return image.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return image.getHeight();
+    }
+
+    @Override
+    public BufferedImage capture() {
+        switch (pattern) {
+            case SCROLLING_TEXT:
+                desktop.draw(graphics, frameIndex);
+                break;
+            case VIDEO:
+                drawVideo(frameIndex);
+                break;
+            default:
+                break;
+        }
+        frameIndex++;
+        return image;
+    }
+
+    // Moving colour ramps with a little noise on top, different in every pixel of every frame
+    private void drawVideo(int t) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            int green = (y + t * 2) & 0xFF;
+            for (int x = 0; x < width; x++) {
+                // xorshift, cheap enough to run per pixel
+                noise ^= noise << 13;
+                noise ^= noise >>> 17;
+                noise ^= noise << 5;
+                int red = (x + t * 3 + (noise & 0x0F)) & 0xFF;
+                int blue = ((x ^ y) + t * 5 + ((noise >>> 4) & 0x0F)) & 0xFF;
+                pixels[row + x] = red << 16 | green << 8 | blue;
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        graphics.dispose();
+    }
+}
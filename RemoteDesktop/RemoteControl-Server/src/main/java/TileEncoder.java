@@ -0,0 +1,227 @@
+import java.nio.ByteBuffer;
+
+/**
+ * TileEncoder splits each scaled BGR frame into fixed-size tiles, compares them against
+ * the previously encoded frame and emits only the tiles that changed.
+ *
+ * Update layout (before optional compression):
+ *   int tileCount
+ *   tileCount x { int x, int y, int w, int h, byte encoding, pixels }
+ *
+ * The pixels of a RAW tile are byte[w * h * 3] BGR, or the {@link Yuv420} format for a YUV 4:2:0
+ * stream. The reference frame stays BGR, so a tile is only sent again when the screen changes.
+ * An encoder with palettes sends a tile with few colours as a {@link PaletteTile} instead,
+ * whenever that is smaller.
+ *
+ * A frame can also be encoded as several independent updates, one per horizontal band of
+ * tile rows, with {@link #encodeRows}. Bands touch disjoint rows, so they may be encoded on
+ * different threads at the same time; {@link #commit()} then makes the frame the reference.
+ *
+ * Before its bands, a frame can be searched for tiles that moved with {@link #encodeMoves}. The
+ * moves are applied to the reference frame, so the bands leave those tiles out and the client
+ * copies them from its own frame instead.
+ */
+public class TileEncoder {
+    public static final int DEFAULT_TILE_SIZE = 64;
+    private static final int BYTES_PER_PIXEL = 3;
+
+    private final int width;
+    private final int height;
+    private final int tileSize;
+
+    // Copy of the last frame the client has seen
+    private final byte[] previous;
+    private boolean hasPrevious = false;
+    private final MotionDetector motionDetector;
+    // True between encodeMoves and commit, while the detector knows which tiles changed
+    private boolean movesDetected = false;
+    private final boolean isYuv420;
+    private final boolean isPalette;
+
+    public TileEncoder(int width, int height, int tileSize) {
+        this(width, height, tileSize, false, true);
+    }
+
+    public TileEncoder(int width, int height, int tileSize, boolean isYuv420, boolean isPalette) {
+        this.width = width;
+        this.isYuv420 = isYuv420;
+        this.isPalette = isPalette;
+        this.height = height;
+        this.tileSize = tileSize;
+        this.previous = new byte[width * height * BYTES_PER_PIXEL];
+        this.motionDetector = new MotionDetector(width, height, tileSize);
+    }
+
+    /**
+     * Returns the largest update this encoder can produce for the given geometry.
+     */
+    public static int maxEncodedLength(int width, int height, int tileSize) {
+        int tilesX = (width + tileSize - 1) / tileSize;
+        int tilesY = (height + tileSize - 1) / tileSize;
+        return 4 + tilesX * tilesY * 17 + width * height * BYTES_PER_PIXEL;
+    }
+
+    /**
+     * True once a frame has been encoded, i.e. there is a reference frame to diff against.
+     */
+    public boolean hasPrevious() {
+        return hasPrevious;
+    }
+
+    /**
+     * Forces the next call to {@link #encode(byte[], ByteBuffer)} to send every tile.
+     */
+    public void reset() {
+        hasPrevious = false;
+        movesDetected = false;
+    }
+
+    /**
+     * Encodes the tiles of {@code frame} that differ from the previous frame.
+     *
+     * @param frame  BGR pixel data of size width * height * 3
+     * @param output buffer of at least {@link #maxEncodedLength} bytes; the update is written
+     *               from position 0 and the buffer is flipped ready for reading
+     * @return the length of the update, or 0 when nothing changed
+     */
+    public int encode(byte[] frame, ByteBuffer output) {
+        int length = encodeRows(frame, output, 0, height);
+        commit();
+        return length;
+    }
+
+    /**
+     * Encodes the changed tiles in rows {@code [yStart, yEnd)} as a self-contained update.
+     * Both bounds must be multiples of the tile size (or the frame height). Safe to call
+     * concurrently for disjoint row ranges; call {@link #commit()} once every band is done.
+     *
+     * @return the length of the update, or 0 when nothing changed in these rows
+     */
+    public int encodeRows(byte[] frame, ByteBuffer output, int yStart, int yEnd) {
+        int tileCount = 0;
+        output.clear();
+        output.position(4); // Leave room for the tile count
+
+        for (int ty = yStart; ty < yEnd; ty += tileSize) {
+            int th = Math.min(tileSize, height - ty);
+            for (int tx = 0; tx < width; tx += tileSize) {
+                int tw = Math.min(tileSize, width - tx);
+                if (hasPrevious && !(movesDetected
+                        ? motionDetector.isTileChanged(tx, ty) : isTileChanged(frame, tx, ty, tw, th))) {
+                    continue;
+                }
+                int rowBytes = tw * BYTES_PER_PIXEL;
+                for (int row = ty; row < ty + th; row++) {
+                    int offset = (row * width + tx) * BYTES_PER_PIXEL;
+                    System.arraycopy(frame, offset, previous, offset, rowBytes);
+                }
+                writeTile(frame, tx, ty, tw, th, output);
+                tileCount++;
+            }
+        }
+        output.putInt(0, tileCount);
+        output.flip();
+        return tileCount == 0 ? 0 : output.limit();
+    }
+
+    /**
+     * Finds the tiles of {@code frame} that show pixels of the reference frame moved elsewhere
+     * and writes them to {@code output} in the layout described by {@link MotionDetector}. The
+     * moves are applied to the reference frame, so encoding the rows of the frame afterwards
+     * leaves those tiles out. Call at most once per frame, before its rows are encoded.
+     *
+     * @param output buffer of at least {@link MotionDetector#maxEncodedLength} bytes, written from
+     *               position 0 and flipped ready for reading
+     * @return the number of moves, 0 when there is no reference frame yet
+     */
+    public int encodeMoves(byte[] frame, ByteBuffer output) {
+        movesDetected = hasPrevious;
+        int moveCount = hasPrevious ? motionDetector.detect(frame, previous) : 0;
+        if (moveCount == 0) {
+            output.clear();
+            output.putInt(0);
+            output.flip();
+            return 0;
+        }
+        motionDetector.write(output);
+        return moveCount;
+    }
+
+    /**
+     * Marks the frame just encoded band by band as the reference for the next one.
+     */
+    public void commit() {
+        hasPrevious = true;
+        movesDetected = false;
+    }
+
+    /**
+     * Encodes every tile of the reference frame, i.e. the picture a client has after applying
+     * all updates returned so far. Used to bring a newly joined or lagging viewer up to date
+     * without disturbing the delta stream of the others.
+     *
+     * @return the length of the update, or 0 when no frame has been encoded yet
+     */
+    public int encodeSnapshot(ByteBuffer output) {
+        return encodeSnapshotRows(output, 0, height);
+    }
+
+    /**
+     * Encodes every tile of the reference frame in rows {@code [yStart, yEnd)}; the band
+     * counterpart of {@link #encodeSnapshot}.
+     */
+    public int encodeSnapshotRows(ByteBuffer output, int yStart, int yEnd) {
+        output.clear();
+        if (!hasPrevious) {
+            output.flip();
+            return 0;
+        }
+        output.position(4);
+        int tileCount = 0;
+        for (int ty = yStart; ty < yEnd; ty += tileSize) {
+            int th = Math.min(tileSize, height - ty);
+            for (int tx = 0; tx < width; tx += tileSize) {
+                writeTile(previous, tx, ty, Math.min(tileSize, width - tx), th, output);
+                tileCount++;
+            }
+        }
+        output.putInt(0, tileCount);
+        output.flip();
+        return output.limit();
+    }
+
+    private void writeTile(byte[] frame, int tx, int ty, int tw, int th, ByteBuffer output) {
+        output.putInt(tx);
+        output.putInt(ty);
+        output.putInt(tw);
+        output.putInt(th);
+        int rawLength = isYuv420 ? Yuv420.encodedLength(tw, th) : tw * th * BYTES_PER_PIXEL;
+        if (isPalette && PaletteTile.encode(frame, width, tx, ty, tw, th, rawLength, output)) {
+            return;
+        }
+        output.put(PaletteTile.RAW);
+        if (isYuv420) {
+            Yuv420.encode(frame, width, tx, ty, tw, th, output);
+            return;
+        }
+        int rowBytes = tw * BYTES_PER_PIXEL;
+        for (int row = ty; row < ty + th; row++) {
+            output.put(frame, (row * width + tx) * BYTES_PER_PIXEL, rowBytes);
+        }
+    }
+
+    // Compares one tile row by row against the previous frame, stopping at the first difference.
+    private boolean isTileChanged(byte[] frame, int tx, int ty, int tw, int th) {
+        int rowBytes = tw * BYTES_PER_PIXEL;
+        for (int row = ty; row < ty + th; row++) {
+            int offset = (row * width + tx) * BYTES_PER_PIXEL;
+            int end = offset + rowBytes;
+            for (int i = offset; i < end; i++) {
+                if (frame[i] != previous[i]) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,497 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Viewer is one connected client watching the shared frame stream. It owns a bounded send queue
+ * that the encoder offers frames to, and runs its own send loop so a slow viewer never holds up
+ * the encoder or the other viewers.
+ *
+ * Delta frames only make sense on top of everything sent before them, so a viewer whose queue
+ * overflows cannot simply skip one. Depending on its {@link SlowViewerPolicy} it either drops its
+ * queue and resynchronizes from a private snapshot, or downgrades to snapshot-only updates
+ * (a lower frame rate that its link can carry) until it keeps up again. Only video frames are
+ * ever dropped: a queued configuration stays in place, since the frames after it need it.
+ *
+ * The client acknowledges every frame once it is on screen (acks are cumulative, so one ack
+ * covers any frames that were superseded before a repaint). The viewer keeps at most
+ * {@link #MAX_IN_FLIGHT_FRAMES} unacknowledged frames on the wire and measures end-to-end
+ * latency from the capture time echoed in each ack.
+ */
+public class Viewer implements Runnable {
+    public enum SlowViewerPolicy {
+        /** Drop the queued frames and resynchronize from one snapshot, then continue with deltas. */
+        DROP,
+        /** Switch to snapshot-only updates, each sent once the previous one is out. */
+        DOWNGRADE
+    }
+
+    private static final int QUEUE_SIZE = 3;
+    private static final long POLL_TIMEOUT_MILLIS = 100;
+    // Frames sent but not yet acknowledged before the send loop waits for an ack
+    private static final int MAX_IN_FLIGHT_FRAMES = 3;
+    // A client that has not acked for this long is assumed to have lost the frames in flight
+    private static final long ACK_TIMEOUT_MILLIS = 1000;
+    private static final long STATS_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    // Totals over all viewers
+    private static final Metrics.Histogram SEND_TIME = Metrics.histogram("server_send_micros",
+            "Time to write a frame to a viewer's connection");
+    private static final Metrics.Histogram FRAME_LATENCY = Metrics.histogram("server_frame_latency_micros",
+            "Capture to the viewer's ack of the painted frame");
+    private static final Metrics.Counter BYTES_SENT = Metrics.counter("server_bytes_sent",
+            "Frame bytes written to viewers");
+    private static final Metrics.Counter FRAMES_SENT = Metrics.counter("server_frames_sent",
+            "Frames written to viewers");
+    private static final Metrics.Counter FRAMES_DROPPED = Metrics.counter("server_frames_dropped",
+            "Frames dropped because a viewer's queue was full");
+
+    private final MuxConnection connection;
+    private final FrameBroadcaster broadcaster;
+    private final SlowViewerPolicy policy;
+    private final long frameIntervalMillis;
+    private final BlockingQueue<EncodedFrame> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    private final AtomicLong droppedFrames = new AtomicLong();
+
+    // Measurements for the adaptive controller, reset by takeSample()
+    private final AtomicLong sampleFrames = new AtomicLong();
+    private final AtomicLong sampleBytes = new AtomicLong();
+    private final AtomicLong sampleSendNanos = new AtomicLong();
+    private final AtomicLong sampleLatencyNanos = new AtomicLong();
+    private final AtomicLong sampleDropped = new AtomicLong();
+    private final AtomicLong sampleAcks = new AtomicLong();
+    private final AtomicLong sampleDeliveryNanos = new AtomicLong();
+    // Average decode time the client reported in its last feedback message
+    private volatile int decodeMicros = 0;
+
+    // Frames written to the client and not yet acknowledged, oldest first; also the ack monitor
+    private final ArrayDeque<SentFrame> inFlight = new ArrayDeque<>();
+
+    // Latency statistics printed once per interval, guarded by inFlight
+    private long statsFrames;
+    private long statsGlassNanos;
+    private long statsMaxGlassNanos;
+    private long statsServerNanos;
+    private long statsSendNanos;
+    private long statsReceiveMicros;
+    private long statsDecodeMicros;
+    private long statsPaintMicros;
+    private long nextStatsNanos = System.nanoTime() + STATS_INTERVAL_NANOS;
+
+    // Stream state, only touched by the encoder thread
+    private boolean awaitingSnapshot = false;
+    private boolean snapshotOnly = false;
+    private boolean snapshotRequested = false;
+
+    // Set when the client asks for a keyframe; the encoder thread turns it into a snapshot request
+    private volatile boolean keyframeRequested = false;
+
+    // Set by the send loop when a snapshot went out within one frame interval
+    private volatile boolean keepingUp = false;
+    private volatile boolean closed = false;
+
+    public Viewer(MuxConnection connection, FrameBroadcaster broadcaster,
+                  SlowViewerPolicy policy, long frameIntervalMillis) {
+        this.connection = connection;
+        this.broadcaster = broadcaster;
+        this.policy = policy;
+        this.frameIntervalMillis = frameIntervalMillis;
+    }
+
+    public MuxConnection getConnection() {
+        return connection;
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames.get();
+    }
+
+    /**
+     * Records a feedback message from the client.
+     *
+     * @param decodeMicros the client's average time to decode and apply one frame
+     */
+    public void recordFeedback(int decodeMicros) {
+        this.decodeMicros = decodeMicros;
+    }
+
+    /**
+     * Records the client's acknowledgement of a painted frame. It also acknowledges every
+     * earlier frame still in flight, which the client skipped or painted in the same repaint.
+     *
+     * @param sequence      the sequence number of the painted frame
+     * @param captureNanos  the capture time from the frame header, echoed by the client
+     * @param receiveMicros client time from the first to the last chunk of the frame
+     * @param decodeMicros  client time to decompress and apply the frame
+     * @param paintMicros   client time from the end of decoding until the frame was painted
+     */
+    public void recordAck(int sequence, long captureNanos, int receiveMicros, int decodeMicros, int paintMicros) {
+        long now = System.nanoTime();
+        synchronized (inFlight) {
+            SentFrame acked = null;
+            while (!inFlight.isEmpty() && inFlight.peekFirst().sequence - sequence <= 0) {
+                acked = inFlight.pollFirst();
+            }
+            inFlight.notifyAll();
+            if (acked == null || acked.sequence != sequence) {
+                return; // A stale or duplicate ack
+            }
+            // Publish to ack, less the client's own processing: the network and queueing delay
+            long clientNanos = (decodeMicros + (long) paintMicros) * 1000;
+            sampleDeliveryNanos.addAndGet(Math.max(0, now - acked.publishNanos - clientNanos));
+            sampleAcks.incrementAndGet();
+
+            long glassNanos = now - captureNanos;
+            FRAME_LATENCY.recordNanos(glassNanos);
+            statsFrames++;
+            statsGlassNanos += glassNanos;
+            statsMaxGlassNanos = Math.max(statsMaxGlassNanos, glassNanos);
+            statsServerNanos += acked.publishNanos - captureNanos;
+            statsSendNanos += acked.sendNanos;
+            statsReceiveMicros += receiveMicros;
+            statsDecodeMicros += decodeMicros;
+            statsPaintMicros += paintMicros;
+            if (now >= nextStatsNanos) {
+                printStats();
+                nextStatsNanos = now + STATS_INTERVAL_NANOS;
+            }
+        }
+    }
+
+    // Prints and resets the latency statistics; called with the inFlight monitor held
+    private void printStats() {
+        double frames = statsFrames * 1e6;
+        Log.info("Viewer %s latency: capture to ack avg %.1f ms, max %.1f ms"
+                        + " (server %.1f ms, send %.1f ms, client receive %.1f ms, decode %.1f ms, paint %.1f ms),"
+                        + " %d frames acked, %d in flight",
+                this, statsGlassNanos / frames, statsMaxGlassNanos / 1e6, statsServerNanos / frames,
+                statsSendNanos / frames, statsReceiveMicros * 1000 / frames, statsDecodeMicros * 1000 / frames,
+                statsPaintMicros * 1000 / frames, statsFrames, inFlight.size());
+        statsFrames = 0;
+        statsGlassNanos = 0;
+        statsMaxGlassNanos = 0;
+        statsServerNanos = 0;
+        statsSendNanos = 0;
+        statsReceiveMicros = 0;
+        statsDecodeMicros = 0;
+        statsPaintMicros = 0;
+    }
+
+    /**
+     * Records the client's request for a keyframe. A client that saves the stream asks for one
+     * now and then, so its file can be seeked without decoding from the start.
+     */
+    public void requestKeyframe() {
+        keyframeRequested = true;
+    }
+
+    /**
+     * Number of frames written to the client that it has not acknowledged yet.
+     */
+    public int getInFlightFrames() {
+        synchronized (inFlight) {
+            return inFlight.size();
+        }
+    }
+
+    /**
+     * True when the viewer could send another frame right away without waiting for an ack.
+     */
+    public boolean isReady() {
+        return !closed && getInFlightFrames() < MAX_IN_FLIGHT_FRAMES;
+    }
+
+    /**
+     * Returns the measurements since the previous call and starts a new sample period.
+     * The latency is taken from acks when the client sent any, and from the send time otherwise.
+     */
+    public AdaptiveController.Sample takeSample(double encodeMillis) {
+        long frames = sampleFrames.getAndSet(0);
+        long bytes = sampleBytes.getAndSet(0);
+        long sendNanos = sampleSendNanos.getAndSet(0);
+        long latencyNanos = sampleLatencyNanos.getAndSet(0);
+        long dropped = sampleDropped.getAndSet(0);
+        long acks = sampleAcks.getAndSet(0);
+        long deliveryNanos = sampleDeliveryNanos.getAndSet(0);
+        double latencyMillis = acks > 0 ? deliveryNanos / 1e6 / acks
+                : frames == 0 ? 0 : latencyNanos / 1e6 / frames;
+        return new AdaptiveController.Sample(
+                latencyMillis,
+                decodeMicros / 1000.0,
+                encodeMillis,
+                sendNanos == 0 ? Double.MAX_VALUE : bytes * 1e9 / sendNanos,
+                frames == 0 ? 0 : (double) bytes / frames,
+                dropped);
+    }
+
+    /**
+     * Starts the stream for a newly joined viewer: queues the current configuration and, on a
+     * delta stream, asks for a snapshot of the current picture. Called on the encoder thread only.
+     */
+    void start(EncodedFrame config) {
+        if (closed) {
+            broadcaster.removeViewer(this);
+            return;
+        }
+        config.retain();
+        queue.offer(config);
+        if (broadcaster.isDeltaStream()) {
+            awaitingSnapshot = true;
+            requestSnapshot();
+        }
+    }
+
+    /**
+     * Switches the viewer to a new configuration. Queued frames belong to the old one and are
+     * dropped, along with any older configuration not sent yet, which the new one supersedes;
+     * the next published frame is a full one, so no snapshot is needed.
+     * Called on the encoder thread only.
+     */
+    void reconfigure(EncodedFrame config) {
+        releaseQueued();
+        config.retain();
+        queue.offer(config);
+        awaitingSnapshot = false;
+        snapshotOnly = false;
+        releaseIfClosed();
+    }
+
+    /**
+     * Offers a published frame to this viewer. Called on the encoder thread only.
+     */
+    void offer(EncodedFrame frame) {
+        if (closed || awaitingSnapshot) {
+            return;
+        }
+        if (keyframeRequested) {
+            keyframeRequested = false;
+            // Full frames and snapshot-only updates are keyframes already
+            if (broadcaster.isDeltaStream() && !snapshotOnly) {
+                requestSnapshot();
+            }
+        }
+        if (snapshotOnly) {
+            // Downgraded: ask for the next snapshot once the previous one has been sent
+            if (queue.isEmpty()) {
+                requestSnapshot();
+            }
+            return;
+        }
+        frame.retain();
+        if (queue.offer(frame)) {
+            releaseIfClosed();
+            return;
+        }
+        frame.release();
+        droppedFrames.incrementAndGet();
+        sampleDropped.incrementAndGet();
+        FRAMES_DROPPED.increment();
+        if (!broadcaster.isDeltaStream()) {
+            // Full frames are independent: drop the oldest and keep the newest
+            releaseOldestVideo();
+            frame.retain();
+            if (!queue.offer(frame)) {
+                frame.release();
+            }
+            releaseIfClosed();
+            return;
+        }
+        releaseQueuedVideo();
+        if (policy == SlowViewerPolicy.DROP) {
+            awaitingSnapshot = true;
+        } else {
+            snapshotOnly = true;
+            keepingUp = false;
+            Log.info("Viewer %s downgraded to snapshot-only updates", this);
+        }
+        requestSnapshot();
+    }
+
+    /**
+     * Delivers a snapshot produced for this viewer. Called on the encoder thread only.
+     */
+    void deliverSnapshot(EncodedFrame snapshot) {
+        snapshotRequested = false;
+        if (closed) {
+            return;
+        }
+        // The snapshot supersedes any video still queued, but not the configuration it is encoded in
+        releaseQueuedVideo();
+        snapshot.retain();
+        queue.offer(snapshot);
+        awaitingSnapshot = false;
+        if (snapshotOnly && keepingUp) {
+            // Deltas published after this snapshot apply cleanly on top of it
+            snapshotOnly = false;
+            Log.info("Viewer %s back to live updates", this);
+        }
+        releaseIfClosed();
+    }
+
+    /**
+     * Resumes the delta stream without a snapshot, used when the next frame will be a full one anyway.
+     */
+    void resumeWithoutSnapshot() {
+        snapshotRequested = false;
+        awaitingSnapshot = false;
+    }
+
+    private void requestSnapshot() {
+        if (!snapshotRequested) {
+            snapshotRequested = true;
+            broadcaster.requestSnapshot(this);
+        }
+    }
+
+    /**
+     * Send loop: writes queued frames to the client until the connection fails or is closed.
+     */
+    @Override
+    public void run() {
+        try {
+            while (!closed && !Thread.currentThread().isInterrupted()) {
+                EncodedFrame frame = queue.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                if (frame == null) {
+                    continue;
+                }
+                try {
+                    if (frame.getChannel() == MuxConnection.CHANNEL_CONTROL) {
+                        connection.send(MuxConnection.CHANNEL_CONTROL, frame.view());
+                        continue;
+                    }
+                    if (!awaitWindow()) {
+                        break;
+                    }
+                    SentFrame sent = new SentFrame(frame.getSequence(), frame.getPublishNanos());
+                    synchronized (inFlight) {
+                        // Added before the write, so a fast ack cannot arrive ahead of it
+                        inFlight.addLast(sent);
+                    }
+                    long start = System.nanoTime();
+                    ByteBuffer view = frame.view();
+                    int length = view.remaining();
+                    connection.sendChunked(MuxConnection.CHANNEL_VIDEO, view);
+                    long end = System.nanoTime();
+                    synchronized (inFlight) {
+                        sent.sendNanos = end - start;
+                    }
+                    if (frame.isSnapshot()) {
+                        keepingUp = (end - start) / 1000000 <= frameIntervalMillis;
+                    }
+                    SEND_TIME.recordNanos(end - start);
+                    BYTES_SENT.add(length);
+                    FRAMES_SENT.increment();
+                    sampleFrames.incrementAndGet();
+                    sampleBytes.addAndGet(length);
+                    sampleSendNanos.addAndGet(end - start);
+                    sampleLatencyNanos.addAndGet(end - frame.getPublishNanos());
+                } finally {
+                    frame.release();
+                }
+            }
+        } catch (IOException ex) {
+            if (!closed) {
+                Log.info("Viewer %s disconnected: %s", this, ex.getMessage());
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Waits until fewer than {@link #MAX_IN_FLIGHT_FRAMES} frames are unacknowledged. If the
+     * client stays silent past the ack timeout, the frames in flight are written off.
+     *
+     * @return false if the viewer was closed while waiting
+     */
+    private boolean awaitWindow() throws InterruptedException {
+        synchronized (inFlight) {
+            long deadline = System.currentTimeMillis() + ACK_TIMEOUT_MILLIS;
+            while (!closed && inFlight.size() >= MAX_IN_FLIGHT_FRAMES) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    Log.warn("Viewer %s sent no ack for %d ms; dropping %d frames in flight", this,
+                            ACK_TIMEOUT_MILLIS, inFlight.size());
+                    inFlight.clear();
+                    break;
+                }
+                inFlight.wait(remaining);
+            }
+            return !closed;
+        }
+    }
+
+    /**
+     * Closes the connection, leaves the broadcast and returns queued frames to the pool.
+     */
+    public void close() {
+        closed = true;
+        synchronized (inFlight) {
+            inFlight.notifyAll();
+        }
+        broadcaster.removeViewer(this);
+        releaseQueued();
+        try {
+            connection.close();
+        } catch (IOException ex) {
+            Log.error("Unable to close viewer " + this, ex);
+        }
+    }
+
+    // The encoder may have queued a frame while the viewer was closing; make sure it is returned.
+    private void releaseIfClosed() {
+        if (closed) {
+            releaseQueued();
+        }
+    }
+
+    private void releaseQueued() {
+        EncodedFrame frame;
+        while ((frame = queue.poll()) != null) {
+            frame.release();
+        }
+    }
+
+    // Removes each frame before releasing it, so a frame the send loop took meanwhile is left alone
+    private void releaseQueuedVideo() {
+        for (EncodedFrame frame : queue.toArray(new EncodedFrame[0])) {
+            if (frame.getChannel() == MuxConnection.CHANNEL_VIDEO && queue.remove(frame)) {
+                frame.release();
+            }
+        }
+    }
+
+    private void releaseOldestVideo() {
+        for (EncodedFrame frame : queue.toArray(new EncodedFrame[0])) {
+            if (frame.getChannel() == MuxConnection.CHANNEL_VIDEO && queue.remove(frame)) {
+                frame.release();
+                return;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.valueOf(connection.getChannel().socket().getRemoteSocketAddress());
+    }
+
+    /**
+     * A frame written to the client and waiting for its ack.
+     */
+    private static class SentFrame {
+        final int sequence;
+        final long publishNanos;
+        long sendNanos;
+
+        SentFrame(int sequence, long publishNanos) {
+            this.sequence = sequence;
+            this.publishNanos = publishNanos;
+        }
+    }
+}
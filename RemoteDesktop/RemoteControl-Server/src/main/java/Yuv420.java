@@ -0,0 +1,154 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Yuv420 converts rectangles of BGR pixels to planar YUV 4:2:0 and back, for streams that trade
+ * exact colours for half the bytes. Keep this class identical on the client and the server.
+ *
+ * A rectangle of w x h pixels becomes a Y plane of w * h bytes followed by a U and a V plane of
+ * ceil(w / 2) * ceil(h / 2) bytes each: every pixel keeps its brightness and each 2x2 block
+ * shares the average of its colour. That is 1.5 bytes per pixel instead of 3, and the planes,
+ * each smooth on its own, compress better than interleaved BGR. Blocks cut by an odd edge
+ * average the pixels they have.
+ *
+ * The conversion is the full range BT.601 one of JPEG in fixed point. Each iteration handles a
+ * whole 2x2 block in branch-free integer arithmetic, with the half blocks of odd sizes dealt with
+ * outside the inner loops. The planes are staged in per-thread buffers, so the band threads
+ * convert in parallel without allocating.
+ */
+public final class Yuv420 {
+    private static final int BYTES_PER_PIXEL = 3;
+
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+
+    private Yuv420() {
+    }
+
+    /**
+     * Bytes of a w x h rectangle in this format.
+     */
+    public static int encodedLength(int w, int h) {
+        return w * h + 2 * ((w + 1) / 2) * ((h + 1) / 2);
+    }
+
+    /**
+     * Converts the w x h rectangle at x, y of a BGR image that is {@code stride} pixels wide and
+     * puts its planes into {@code output}.
+     */
+    public static void encode(byte[] bgr, int stride, int x, int y, int w, int h, ByteBuffer output) {
+        int chromaWidth = (w + 1) / 2;
+        int chromaHeight = (h + 1) / 2;
+        int length = encodedLength(w, h);
+        byte[] planes = SCRATCH.get().planes(length);
+        for (int row = 0; row < h; row++) {
+            int source = ((y + row) * stride + x) * BYTES_PER_PIXEL;
+            int target = row * w;
+            for (int i = 0; i < w; i++, source += BYTES_PER_PIXEL) {
+                int b = bgr[source] & 0xFF;
+                int g = bgr[source + 1] & 0xFF;
+                int r = bgr[source + 2] & 0xFF;
+                planes[target + i] = (byte) ((29 * b + 150 * g + 77 * r + 128) >> 8);
+            }
+        }
+        int uPlane = w * h;
+        int vPlane = uPlane + chromaWidth * chromaHeight;
+        int blocks = w / 2;
+        for (int cy = 0; cy < chromaHeight; cy++) {
+            int top = ((y + 2 * cy) * stride + x) * BYTES_PER_PIXEL;
+            // The last row of an odd height stands in for the row below it
+            int bottom = 2 * cy + 1 < h ? top + stride * BYTES_PER_PIXEL : top;
+            int target = cy * chromaWidth;
+            for (int cx = 0; cx < blocks; cx++) {
+                int left = 2 * cx * BYTES_PER_PIXEL;
+                int right = left + BYTES_PER_PIXEL;
+                int b = (bgr[top + left] & 0xFF) + (bgr[top + right] & 0xFF)
+                        + (bgr[bottom + left] & 0xFF) + (bgr[bottom + right] & 0xFF);
+                int g = (bgr[top + left + 1] & 0xFF) + (bgr[top + right + 1] & 0xFF)
+                        + (bgr[bottom + left + 1] & 0xFF) + (bgr[bottom + right + 1] & 0xFF);
+                int r = (bgr[top + left + 2] & 0xFF) + (bgr[top + right + 2] & 0xFF)
+                        + (bgr[bottom + left + 2] & 0xFF) + (bgr[bottom + right + 2] & 0xFF);
+                // Sums of four pixels, so two more bits are shifted out
+                planes[uPlane + target + cx] = (byte) (((-43 * r - 84 * g + 127 * b + 512) >> 10) + 128);
+                planes[vPlane + target + cx] = (byte) (((127 * r - 106 * g - 21 * b + 512) >> 10) + 128);
+            }
+            if (blocks < chromaWidth) {
+                // The half block of an odd width counts its column twice
+                int left = 2 * blocks * BYTES_PER_PIXEL;
+                int b = 2 * ((bgr[top + left] & 0xFF) + (bgr[bottom + left] & 0xFF));
+                int g = 2 * ((bgr[top + left + 1] & 0xFF) + (bgr[bottom + left + 1] & 0xFF));
+                int r = 2 * ((bgr[top + left + 2] & 0xFF) + (bgr[bottom + left + 2] & 0xFF));
+                planes[uPlane + target + blocks] = (byte) (((-43 * r - 84 * g + 127 * b + 512) >> 10) + 128);
+                planes[vPlane + target + blocks] = (byte) (((127 * r - 106 * g - 21 * b + 512) >> 10) + 128);
+            }
+        }
+        output.put(planes, 0, length);
+    }
+
+    /**
+     * Reads the planes of a w x h rectangle from {@code input} and writes its pixels at x, y of a
+     * BGR image that is {@code stride} pixels wide.
+     */
+    public static void decode(ByteBuffer input, byte[] bgr, int stride, int x, int y, int w, int h) {
+        int chromaWidth = (w + 1) / 2;
+        int chromaHeight = (h + 1) / 2;
+        int length = encodedLength(w, h);
+        byte[] planes = SCRATCH.get().planes(length);
+        input.get(planes, 0, length);
+        int uPlane = w * h;
+        int vPlane = uPlane + chromaWidth * chromaHeight;
+        int blocks = w / 2;
+        for (int cy = 0; cy < chromaHeight; cy++) {
+            int chroma = cy * chromaWidth;
+            int topLuma = 2 * cy * w;
+            int top = ((y + 2 * cy) * stride + x) * BYTES_PER_PIXEL;
+            // The last row of an odd height is written twice instead of having a row below it
+            boolean hasBottom = 2 * cy + 1 < h;
+            int bottomLuma = hasBottom ? topLuma + w : topLuma;
+            int bottom = hasBottom ? top + stride * BYTES_PER_PIXEL : top;
+            for (int cx = 0; cx < blocks; cx++) {
+                int u = (planes[uPlane + chroma + cx] & 0xFF) - 128;
+                int v = (planes[vPlane + chroma + cx] & 0xFF) - 128;
+                // What the colour of the block adds to the brightness of each of its pixels
+                int red = (359 * v + 128) >> 8;
+                int green = (-88 * u - 183 * v + 128) >> 8;
+                int blue = (454 * u + 128) >> 8;
+                int luma = 2 * cx;
+                int pixel = luma * BYTES_PER_PIXEL;
+                putPixel(bgr, bottom + pixel, planes[bottomLuma + luma] & 0xFF, red, green, blue);
+                putPixel(bgr, bottom + pixel + BYTES_PER_PIXEL, planes[bottomLuma + luma + 1] & 0xFF, red, green, blue);
+                putPixel(bgr, top + pixel, planes[topLuma + luma] & 0xFF, red, green, blue);
+                putPixel(bgr, top + pixel + BYTES_PER_PIXEL, planes[topLuma + luma + 1] & 0xFF, red, green, blue);
+            }
+            if (blocks < chromaWidth) {
+                int u = (planes[uPlane + chroma + blocks] & 0xFF) - 128;
+                int v = (planes[vPlane + chroma + blocks] & 0xFF) - 128;
+                int red = (359 * v + 128) >> 8;
+                int green = (-88 * u - 183 * v + 128) >> 8;
+                int blue = (454 * u + 128) >> 8;
+                int luma = 2 * blocks;
+                int pixel = luma * BYTES_PER_PIXEL;
+                putPixel(bgr, bottom + pixel, planes[bottomLuma + luma] & 0xFF, red, green, blue);
+                putPixel(bgr, top + pixel, planes[topLuma + luma] & 0xFF, red, green, blue);
+            }
+        }
+    }
+
+    private static void putPixel(byte[] bgr, int offset, int luma, int red, int green, int blue) {
+        bgr[offset] = (byte) Math.max(0, Math.min(255, luma + blue));
+        bgr[offset + 1] = (byte) Math.max(0, Math.min(255, luma + green));
+        bgr[offset + 2] = (byte) Math.max(0, Math.min(255, luma + red));
+    }
+
+    /**
+     * The planes of one thread, grown to the largest rectangle it has converted.
+     */
+    private static final class Scratch {
+        private byte[] planes = new byte[0];
+
+        byte[] planes(int length) {
+            if (planes.length < length) {
+                planes = new byte[length];
+            }
+            return planes;
+        }
+    }
+}